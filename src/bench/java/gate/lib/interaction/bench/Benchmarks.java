@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.bench;
+
+import gate.lib.interaction.data.SparseDoubleVector;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helper methods for the benchmarks.
+ */
+public class Benchmarks {
+  
+  private Benchmarks() {}
+  
+  /**
+   * Get the command for running one of the echo processes of the integration tests.
+   * 
+   * The echo process uses the class path of the benchmark JVM and does not
+   * log anything for each request.
+   * 
+   * @param echo the simple class name of the echo process, optionally followed by arguments
+   * @return the command
+   */
+  public static List<String> echoCommand(String echo) {
+    List<String> command = new ArrayList<>();
+    command.add(System.getProperty("java.home")+File.separator+"bin"+File.separator+"java");
+    command.add("-Decho.quiet=true");
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    String[] parts = echo.split("\\s+");
+    command.add("gate.lib.interaction.process.tests.integration."+parts[0]);
+    command.addAll(Arrays.asList(parts).subList(1, parts.length));
+    return command;
+  }
+  
+  /**
+   * Create a sparse vector with the given number of locations.
+   * 
+   * The locations are spread over 100 times as many dimensions.
+   * 
+   * @param n number of locations
+   * @return vector
+   */
+  public static SparseDoubleVector sparseVector(int n) {
+    SparseDoubleVector ret = new SparseDoubleVector(n);
+    int[] indices = ret.getLocations();
+    double[] values = ret.getValues();
+    for(int i=0; i<n; i++) {
+      indices[i] = i*100 + (i*7919) % 100;
+      values[i] = 1.0 / (i+1);
+    }
+    return ret;
+  }
+  
+  /**
+   * Create a dense copy of a sparse vector.
+   * 
+   * @param vector the sparse vector
+   * @param dimensions the size of the dense array
+   * @return dense array
+   */
+  public static double[] denseVector(SparseDoubleVector vector, int dimensions) {
+    double[] ret = new double[dimensions];
+    int[] indices = vector.getLocations();
+    double[] values = vector.getValues();
+    for(int i=0; i<indices.length; i++) {
+      ret[indices[i]] = values[i];
+    }
+    return ret;
+  }
+  
+  /**
+   * Create a typical feature payload of roughly the given size as text JSON.
+   * 
+   * The payload is a map with a list of token feature maps, a dense
+   * embedding and a sparse feature vector, with about one token, 
+   * embedding value and sparse location per 100 bytes. 
+   * 
+   * @param size the approximate size in bytes
+   * @return payload
+   */
+  public static Map<String,Object> featurePayload(int size) {
+    int n = Math.max(1, size / 100);
+    List<Object> tokens = new ArrayList<>(n);
+    double[] embedding = new double[n];
+    for(int i=0; i<n; i++) {
+      Map<String,Object> token = new HashMap<>();
+      token.put("string", "tok"+i);
+      token.put("kind", i % 5 == 0 ? "punctuation" : "word");
+      token.put("length", 3 + i % 10);
+      token.put("start", i * 5);
+      token.put("score", 1.0 / (i+1));
+      tokens.add(token);
+      embedding[i] = Math.sin(i);
+    }
+    Map<String,Object> ret = new LinkedHashMap<>();
+    ret.put("id", "doc"+size);
+    ret.put("tokens", tokens);
+    ret.put("embedding", embedding);
+    ret.put("vector", sparseVector(n));
+    return ret;
+  }
+  
+  /**
+   * Java serialization of an object.
+   * 
+   * @param obj the object
+   * @return the serialized bytes
+   * @throws IOException if anything goes wrong
+   */
+  public static byte[] serialize(Object obj) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+      oos.writeObject(obj);
+    }
+    return bos.toByteArray();
+  }
+  
+  /**
+   * A sparse vector with the serialized form which SparseDoubleVector had 
+   * before the compact form: the default serialization of the fields.
+   */
+  public static class LegacySparseDoubleVector implements Serializable {
+    private static final long serialVersionUID = 2L;
+    protected int[] indices;
+    protected double[] values;
+    protected double instanceWeight = Double.NaN;
+    
+    /**
+     * Create a copy of a vector.
+     * @param vector the vector
+     */
+    public LegacySparseDoubleVector(SparseDoubleVector vector) {
+      indices = vector.getLocations().clone();
+      values = vector.getValues().clone();
+      instanceWeight = vector.getInstanceWeight();
+    }
+  }
+  
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import gate.lib.interaction.data.PrimitiveArraysModule;
+import gate.lib.interaction.data.SparseDoubleVector;
+import gate.lib.interaction.process.ProcessBase;
+import gate.lib.interaction.process.pipes.Process4JsonStream;
+import gate.lib.interaction.process.pipes.Process4ObjectStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding SparseDoubleVector instances and sending them to an echo process.
+ * 
+ * The encode benchmarks only convert the vector to bytes and back without
+ * any process, the round trip benchmarks send the vector through the 
+ * object stream or the JSON stream with the PrimitiveArraysModule.
+ * encodeJavaLegacy is the baseline of the default Java serialization 
+ * which SparseDoubleVector used before the compact form. The size of the 
+ * vector in each encoding is printed when the trial starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SparseVectorBenchmark {
+  
+  /**
+   * Number of locations of the vector.
+   */
+  @Param({"10", "1000", "100000", "1000000"})
+  public int locations;
+  
+  /**
+   * Whether to serialize the values as 32 bit floats.
+   */
+  @Param({"false", "true"})
+  public boolean float32;
+  
+  private SparseDoubleVector vector;
+  private Benchmarks.LegacySparseDoubleVector legacy;
+  private final ObjectMapper json = new ObjectMapper().registerModule(new PrimitiveArraysModule());
+  private final ObjectMapper smile = new ObjectMapper(new SmileFactory()).registerModule(new PrimitiveArraysModule());
+  private final ObjectMapper cbor = new ObjectMapper(new CBORFactory()).registerModule(new PrimitiveArraysModule());
+  private ProcessBase objectProcess;
+  private ProcessBase smileProcess;
+  
+  /**
+   * Create the vector, print its encoded sizes and start the echo processes.
+   * @throws IOException if encoding the vector fails
+   */
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    vector = Benchmarks.sparseVector(locations);
+    vector.setSerializeValuesAsFloat(float32);
+    legacy = new Benchmarks.LegacySparseDoubleVector(vector);
+    System.out.println("Encoded size in bytes: java="+Benchmarks.serialize(vector).length+
+            " javaLegacy="+Benchmarks.serialize(legacy).length+
+            " json="+json.writeValueAsBytes(vector).length+
+            " smile="+smile.writeValueAsBytes(vector).length+
+            " cbor="+cbor.writeValueAsBytes(vector).length);
+    Process4ObjectStream ops = Process4ObjectStream.create(new File("."), null, 
+            Benchmarks.echoCommand("EchoObjectStream 1"));
+    ops.setResetEveryObjects(1);
+    objectProcess = ops;
+    smileProcess = Process4JsonStream.create(new File("."), null, 
+            Benchmarks.echoCommand("EchoFramedStream"))
+            .setWireFormat(Process4JsonStream.WireFormat.SMILE)
+            .registerModule(new PrimitiveArraysModule());
+  }
+  
+  /**
+   * Stop the echo processes.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    objectProcess.stop();
+    smileProcess.stop();
+  }
+  
+  /**
+   * Java serialization and deserialization in the compact form.
+   * @return the deserialized vector
+   * @throws IOException if anything goes wrong
+   * @throws ClassNotFoundException if anything goes wrong
+   */
+  @Benchmark
+  public Object encodeJava() throws IOException, ClassNotFoundException {
+    return javaRoundTrip(vector);
+  }
+  
+  /**
+   * Java serialization and deserialization in the earlier default form.
+   * @return the deserialized vector
+   * @throws IOException if anything goes wrong
+   * @throws ClassNotFoundException if anything goes wrong
+   */
+  @Benchmark
+  public Object encodeJavaLegacy() throws IOException, ClassNotFoundException {
+    return javaRoundTrip(legacy);
+  }
+  
+  private static Object javaRoundTrip(Object obj) throws IOException, ClassNotFoundException {
+    byte[] bytes = Benchmarks.serialize(obj);
+    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+      return ois.readObject();
+    }
+  }
+  
+  /**
+   * JSON encoding and decoding.
+   * @return the decoded vector
+   * @throws IOException if anything goes wrong
+   */
+  @Benchmark
+  public Object encodeJson() throws IOException {
+    return json.readValue(json.writeValueAsBytes(vector), SparseDoubleVector.class);
+  }
+  
+  /**
+   * Smile encoding and decoding.
+   * @return the decoded vector
+   * @throws IOException if anything goes wrong
+   */
+  @Benchmark
+  public Object encodeSmile() throws IOException {
+    return smile.readValue(smile.writeValueAsBytes(vector), SparseDoubleVector.class);
+  }
+  
+  /**
+   * CBOR encoding and decoding.
+   * @return the decoded vector
+   * @throws IOException if anything goes wrong
+   */
+  @Benchmark
+  public Object encodeCbor() throws IOException {
+    return cbor.readValue(cbor.writeValueAsBytes(vector), SparseDoubleVector.class);
+  }
+  
+  /**
+   * Round trip through the object stream.
+   * @return the response
+   */
+  @Benchmark
+  public Object roundTripObject() {
+    return objectProcess.process(vector);
+  }
+  
+  /**
+   * Round trip through the JSON stream in the Smile wire format.
+   * @return the response
+   */
+  @Benchmark
+  public Object roundTripSmile() {
+    return smileProcess.process(vector);
+  }
+  
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.bench;
+
+import gate.lib.interaction.data.PrimitiveArraysModule;
+import gate.lib.interaction.process.ProcessBase;
+import gate.lib.interaction.process.metrics.ProcessMetrics;
+import gate.lib.interaction.process.pipes.Process4FramedStream;
+import gate.lib.interaction.process.pipes.Process4JsonStream;
+import gate.lib.interaction.process.pipes.Process4ObjectStream;
+import gate.lib.interaction.process.pipes.Process4StringStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trips through each pipe transport to an echo process.
+ * 
+ * The payload is a string of the given size for the string stream, a
+ * byte array of the given size for the framed stream and, for the JSON
+ * and object streams, a map of token features, a dense embedding and a
+ * sparse vector which is roughly of the given size as text JSON (see
+ * {@link Benchmarks#featurePayload(int)}). The number of bytes sent to 
+ * the process per request is printed when the trial ends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+  
+  /**
+   * The transport to use.
+   */
+  @Param({"STRING", "JSON_LINES", "JSON_STREAMING", "SMILE", "CBOR", "OBJECT", "FRAMED"})
+  public String transport;
+  
+  /**
+   * The payload size in bytes (characters for strings, approximate for feature maps).
+   */
+  @Param({"10", "1000", "100000", "10000000"})
+  public int size;
+  
+  private ProcessBase process;
+  private Object payload;
+  
+  /**
+   * Start the echo process and create the payload.
+   */
+  @Setup(Level.Trial)
+  public void setup() {
+    String echo;
+    switch(transport) {
+      case "OBJECT":
+        echo = "EchoObjectStream 1";
+        break;
+      case "FRAMED":
+      case "SMILE":
+      case "CBOR":
+        echo = "EchoFramedStream";
+        break;
+      default:
+        echo = "EchoStream";
+    }
+    List<String> command = Benchmarks.echoCommand(echo);
+    File dir = new File(".");
+    char[] chars = new char[size];
+    Arrays.fill(chars, 'x');
+    String text = new String(chars);
+    switch(transport) {
+      case "STRING":
+        process = Process4StringStream.create(dir, null, command);
+        payload = text;
+        break;
+      case "OBJECT":
+        Process4ObjectStream ops = Process4ObjectStream.create(dir, null, command);
+        // keep the handle tables of both sides from growing
+        ops.setResetEveryObjects(1);
+        process = ops;
+        payload = Benchmarks.featurePayload(size);
+        break;
+      case "FRAMED":
+        process = Process4FramedStream.create(dir, null, command);
+        payload = new byte[size];
+        break;
+      default:
+        Process4JsonStream jps = Process4JsonStream.create(dir, null, command);
+        jps.setWireFormat(Process4JsonStream.WireFormat.valueOf(transport));
+        jps.registerModule(new PrimitiveArraysModule());
+        process = jps;
+        payload = Benchmarks.featurePayload(size);
+    }
+  }
+  
+  /**
+   * Print the bytes sent per request and stop the echo process.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    ProcessMetrics metrics = process.getMetrics();
+    if(metrics.getRequestCount() > 0) {
+      System.out.println("Bytes sent per request: "+metrics.getBytesSent()/metrics.getRequestCount());
+    }
+    process.stop();
+  }
+  
+  /**
+   * Send the payload and wait for the echo.
+   * @return the response
+   */
+  @Benchmark
+  public Object roundTrip() {
+    return process.process(payload);
+  }
+  
+}
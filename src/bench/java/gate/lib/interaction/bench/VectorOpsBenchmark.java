@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.bench;
+
+import gate.lib.interaction.data.SparseDoubleVector;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The vector operations of SparseDoubleVector.
+ * 
+ * The benchmarks ending in "Naive" are the baselines of how the same 
+ * result is computed from the locations and values without these 
+ * operations, with boxed maps, and those starting with "dense" compute
+ * it on dense arrays of the full dimensions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorOpsBenchmark {
+  
+  /**
+   * Number of locations of the vectors.
+   */
+  @Param({"10", "1000", "100000"})
+  public int locations;
+  
+  private SparseDoubleVector a;
+  private SparseDoubleVector b;
+  private double[] dense;
+  private double[] denseA;
+  private double[] denseB;
+  
+  /**
+   * Create the vectors.
+   */
+  @Setup
+  public void setup() {
+    a = Benchmarks.sparseVector(locations);
+    b = Benchmarks.sparseVector(locations / 2 + 1);
+    dense = new double[locations * 100];
+    denseA = Benchmarks.denseVector(a, dense.length);
+    denseB = Benchmarks.denseVector(b, dense.length);
+  }
+  
+  /**
+   * Sparse dot product.
+   * @return result
+   */
+  @Benchmark
+  public double dotSparse() {
+    return a.dot(b);
+  }
+  
+  /**
+   * Sparse dot product by looking up the locations of one vector in a map.
+   * @return result
+   */
+  @Benchmark
+  public double dotSparseNaive() {
+    Map<Integer,Double> other = new HashMap<>();
+    for(int i=0; i<b.nLocations(); i++) {
+      other.put(b.getLocations()[i], b.getValues()[i]);
+    }
+    double sum = 0.0;
+    for(int i=0; i<a.nLocations(); i++) {
+      Double v = other.get(a.getLocations()[i]);
+      if(v != null) {
+        sum += a.getValues()[i] * v;
+      }
+    }
+    return sum;
+  }
+  
+  /**
+   * Dot product of the dense forms of both vectors.
+   * @return result
+   */
+  @Benchmark
+  public double denseDot() {
+    double sum = 0.0;
+    for(int i=0; i<denseA.length; i++) {
+      sum += denseA[i] * denseB[i];
+    }
+    return sum;
+  }
+  
+  /**
+   * Dot product with a dense array.
+   * @return result
+   */
+  @Benchmark
+  public double dotDense() {
+    return a.dot(dense);
+  }
+  
+  /**
+   * Add to a dense array.
+   * @return the array
+   */
+  @Benchmark
+  public double[] axpy() {
+    a.axpy(0.5, dense);
+    return dense;
+  }
+  
+  /**
+   * Sparse sum.
+   * @return result
+   */
+  @Benchmark
+  public SparseDoubleVector add() {
+    return a.add(b);
+  }
+  
+  /**
+   * Sparse sum by merging the locations in a sorted map.
+   * @return result
+   */
+  @Benchmark
+  public SparseDoubleVector addNaive() {
+    TreeMap<Integer,Double> sum = new TreeMap<>();
+    for(int i=0; i<a.nLocations(); i++) {
+      sum.put(a.getLocations()[i], a.getValues()[i]);
+    }
+    for(int i=0; i<b.nLocations(); i++) {
+      sum.merge(b.getLocations()[i], b.getValues()[i], Double::sum);
+    }
+    SparseDoubleVector ret = new SparseDoubleVector(sum.size());
+    int k = 0;
+    for(Map.Entry<Integer,Double> e : sum.entrySet()) {
+      ret.getLocations()[k] = e.getKey();
+      ret.getValues()[k++] = e.getValue();
+    }
+    return ret;
+  }
+  
+  /**
+   * Sum of the dense forms of both vectors.
+   * @return result
+   */
+  @Benchmark
+  public double[] denseAdd() {
+    double[] ret = new double[denseA.length];
+    for(int i=0; i<ret.length; i++) {
+      ret[i] = denseA[i] + denseB[i];
+    }
+    return ret;
+  }
+  
+  /**
+   * Euclidean norm.
+   * @return result
+   */
+  @Benchmark
+  public double norm2() {
+    return a.norm2();
+  }
+  
+  /**
+   * Euclidean norm of the dense form.
+   * @return result
+   */
+  @Benchmark
+  public double denseNorm2() {
+    double sum = 0.0;
+    for(double v : denseA) {
+      sum += v * v;
+    }
+    return Math.sqrt(sum);
+  }
+  
+}
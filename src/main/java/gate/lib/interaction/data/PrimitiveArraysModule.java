@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.data;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Jackson module for exchanging sparse vectors and numeric arrays without boxing.
+ * <p>
+ * When registered with an ObjectMapper, this module does the following:
+ * <ul>
+ * <li>SparseDoubleVector instances are written as an object with the fields
+ * "indices", "values" and, if set, "instanceWeight", and can be read back
+ * from such an object.
+ * <li>When reading untyped data, e.g. into a Map, arrays which only contain
+ * numbers are returned as int[], long[] or double[] instead of a List of
+ * boxed numbers. This applies to all such arrays, including those nested
+ * in maps. Arrays which also contain other values are returned as a List
+ * in which each number has the type it would have on its own (Integer,
+ * Long or Double).
+ * <li>Optionally, int[], long[], float[] and double[] arrays are written in
+ * a packed form: an object with a single field "i32le", "i64le", "f32le" or
+ * "f64le", the value of which is the base64 encoding of the array elements
+ * in little-endian byte order. When reading untyped data, such objects are
+ * always converted back to the corresponding primitive array.
+ * </ul>
+ */
+public final class PrimitiveArraysModule extends SimpleModule {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String I32 = "i32le";
+  private static final String I64 = "i64le";
+  private static final String F32 = "f32le";
+  private static final String F64 = "f64le";
+
+  /**
+   * Create the module which writes arrays as JSON arrays.
+   */
+  public PrimitiveArraysModule() {
+    this(false);
+  }
+
+  /**
+   * Create the module.
+   *
+   * @param packed if true, primitive arrays are written in the packed base64 form
+   */
+  public PrimitiveArraysModule(boolean packed) {
+    super("PrimitiveArraysModule");
+    addSerializer(SparseDoubleVector.class, new SparseDoubleVectorSerializer(packed));
+    addDeserializer(SparseDoubleVector.class, new SparseDoubleVectorDeserializer());
+    addDeserializer(Object.class, new UntypedDeserializer());
+    if(packed) {
+      addSerializer(int[].class, new PackedSerializer<>(int[].class));
+      addSerializer(long[].class, new PackedSerializer<>(long[].class));
+      addSerializer(float[].class, new PackedSerializer<>(float[].class));
+      addSerializer(double[].class, new PackedSerializer<>(double[].class));
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////
+
+  private static void writePacked(Object array, JsonGenerator gen) throws IOException {
+    String key;
+    ByteBuffer bb;
+    if(array instanceof int[]) {
+      int[] a = (int[])array;
+      key = I32;
+      bb = ByteBuffer.allocate(a.length*4).order(ByteOrder.LITTLE_ENDIAN);
+      bb.asIntBuffer().put(a);
+    } else if(array instanceof long[]) {
+      long[] a = (long[])array;
+      key = I64;
+      bb = ByteBuffer.allocate(a.length*8).order(ByteOrder.LITTLE_ENDIAN);
+      bb.asLongBuffer().put(a);
+    } else if(array instanceof float[]) {
+      float[] a = (float[])array;
+      key = F32;
+      bb = ByteBuffer.allocate(a.length*4).order(ByteOrder.LITTLE_ENDIAN);
+      bb.asFloatBuffer().put(a);
+    } else {
+      double[] a = (double[])array;
+      key = F64;
+      bb = ByteBuffer.allocate(a.length*8).order(ByteOrder.LITTLE_ENDIAN);
+      bb.asDoubleBuffer().put(a);
+    }
+    gen.writeStartObject();
+    gen.writeStringField(key, Base64.getEncoder().encodeToString(bb.array()));
+    gen.writeEndObject();
+  }
+
+  /**
+   * Convert the map to a primitive array if it is a packed array.
+   * @param map the map
+   * @return the array or null if the map is not a packed array
+   */
+  private static Object unpack(Map<String,Object> map) {
+    if(map.size() != 1) {
+      return null;
+    }
+    Map.Entry<String,Object> entry = map.entrySet().iterator().next();
+    if(!(entry.getValue() instanceof String)) {
+      return null;
+    }
+    String key = entry.getKey();
+    if(!key.equals(I32) && !key.equals(I64) && !key.equals(F32) && !key.equals(F64)) {
+      return null;
+    }
+    ByteBuffer bb = ByteBuffer.wrap(Base64.getDecoder().decode((String)entry.getValue()))
+            .order(ByteOrder.LITTLE_ENDIAN);
+    switch(key) {
+      case I32:
+        int[] ia = new int[bb.remaining()/4];
+        bb.asIntBuffer().get(ia);
+        return ia;
+      case I64:
+        long[] la = new long[bb.remaining()/8];
+        bb.asLongBuffer().get(la);
+        return la;
+      case F32:
+        float[] fa = new float[bb.remaining()/4];
+        bb.asFloatBuffer().get(fa);
+        return fa;
+      default:
+        double[] da = new double[bb.remaining()/8];
+        bb.asDoubleBuffer().get(da);
+        return da;
+    }
+  }
+
+  /**
+   * Serializer for primitive arrays in the packed form.
+   */
+  private static class PackedSerializer<T> extends StdSerializer<T> {
+    private static final long serialVersionUID = 1L;
+    PackedSerializer(Class<T> clazz) {
+      super(clazz);
+    }
+    @Override
+    public void serialize(T value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+      writePacked(value, gen);
+    }
+  }
+
+  /**
+   * Serializer for sparse vectors.
+   */
+  private static class SparseDoubleVectorSerializer extends StdSerializer<SparseDoubleVector> {
+    private static final long serialVersionUID = 1L;
+    private final boolean packed;
+    SparseDoubleVectorSerializer(boolean packed) {
+      super(SparseDoubleVector.class);
+      this.packed = packed;
+    }
+    @Override
+    public void serialize(SparseDoubleVector value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+      int[] indices = value.getLocations();
+      double[] values = value.getValues();
+      gen.writeStartObject();
+      gen.writeFieldName("indices");
+      if(packed) {
+        writePacked(indices, gen);
+      } else {
+        gen.writeArray(indices, 0, indices.length);
+      }
+      gen.writeFieldName("values");
+      if(packed) {
+        writePacked(values, gen);
+      } else {
+        gen.writeArray(values, 0, values.length);
+      }
+      if(!Double.isNaN(value.getInstanceWeight())) {
+        gen.writeNumberField("instanceWeight", value.getInstanceWeight());
+      }
+      gen.writeEndObject();
+    }
+  }
+
+  /**
+   * Deserializer for sparse vectors, accepts both the plain and the packed form.
+   */
+  private static class SparseDoubleVectorDeserializer extends StdDeserializer<SparseDoubleVector> {
+    private static final long serialVersionUID = 1L;
+    private final UntypedDeserializer untyped = new UntypedDeserializer();
+    SparseDoubleVectorDeserializer() {
+      super(SparseDoubleVector.class);
+    }
+    @Override
+    public SparseDoubleVector deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+      Object obj = untyped.deserialize(p, ctxt);
+      if(!(obj instanceof Map)) {
+        return (SparseDoubleVector)ctxt.handleUnexpectedToken(SparseDoubleVector.class, p);
+      }
+      Map<?,?> map = (Map<?,?>)obj;
+      int[] indices = toIntArray(map.get("indices"));
+      double[] values = toDoubleArray(map.get("values"));
+      if(indices == null || values == null || indices.length != values.length) {
+        throw ctxt.weirdStringException(String.valueOf(map), SparseDoubleVector.class, 
+                "indices and values must be numeric arrays of the same length");
+      }
+      SparseDoubleVector ret = new SparseDoubleVector(0);
+      ret.indices = indices;
+      ret.values = values;
+      Object weight = map.get("instanceWeight");
+      if(weight instanceof Number) {
+        ret.setInstanceWeight(((Number)weight).doubleValue());
+      }
+      return ret;
+    }
+    private static int[] toIntArray(Object obj) {
+      if(obj instanceof int[]) {
+        return (int[])obj;
+      } else if(obj instanceof List && ((List<?>)obj).isEmpty()) {
+        return new int[0];
+      }
+      return null;
+    }
+    private static double[] toDoubleArray(Object obj) {
+      if(obj instanceof double[]) {
+        return (double[])obj;
+      } else if(obj instanceof float[]) {
+        float[] fa = (float[])obj;
+        double[] ret = new double[fa.length];
+        for(int i=0; i<fa.length; i++) {
+          ret[i] = fa[i];
+        }
+        return ret;
+      } else if(obj instanceof int[]) {
+        return Arrays.stream((int[])obj).asDoubleStream().toArray();
+      } else if(obj instanceof long[]) {
+        return Arrays.stream((long[])obj).asDoubleStream().toArray();
+      } else if(obj instanceof List && ((List<?>)obj).isEmpty()) {
+        return new double[0];
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Deserializer for untyped values which returns numeric arrays as primitive arrays.
+   */
+  private static class UntypedDeserializer extends StdDeserializer<Object> {
+    private static final long serialVersionUID = 1L;
+    UntypedDeserializer() {
+      super(Object.class);
+    }
+
+    @Override
+    public Object deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+      JsonToken t = p.currentToken();
+      if(t == null) {
+        return null;
+      }
+      switch(t) {
+        case START_OBJECT:
+        case FIELD_NAME:
+          return readMap(p, ctxt);
+        case START_ARRAY:
+          return readArray(p, ctxt);
+        case VALUE_STRING:
+          return p.getText();
+        case VALUE_NUMBER_INT:
+          return p.getNumberValue();
+        case VALUE_NUMBER_FLOAT:
+          return p.getDoubleValue();
+        case VALUE_TRUE:
+          return Boolean.TRUE;
+        case VALUE_FALSE:
+          return Boolean.FALSE;
+        case VALUE_NULL:
+          return null;
+        case VALUE_EMBEDDED_OBJECT:
+          return p.getEmbeddedObject();
+        default:
+          return ctxt.handleUnexpectedToken(Object.class, p);
+      }
+    }
+
+    private Object readMap(JsonParser p, DeserializationContext ctxt) throws IOException {
+      Map<String,Object> map = new LinkedHashMap<>();
+      JsonToken t = p.currentToken();
+      if(t == JsonToken.START_OBJECT) {
+        t = p.nextToken();
+      }
+      while(t == JsonToken.FIELD_NAME) {
+        String key = p.getText();
+        p.nextToken();
+        map.put(key, deserialize(p, ctxt));
+        t = p.nextToken();
+      }
+      Object array = unpack(map);
+      return array == null ? map : array;
+    }
+
+    private Object readArray(JsonParser p, DeserializationContext ctxt) throws IOException {
+      // as long as we only see numbers, collect them in primitive arrays,
+      // if we get something else, fall back to a list which keeps the
+      // numbers seen so far as they would have been read on their own
+      long[] longs = new long[16];
+      double[] doubles = new double[16];
+      boolean[] floats = new boolean[16];
+      boolean allInts = true;
+      boolean fitInt = true;
+      int n = 0;
+      JsonToken t;
+      while((t = p.nextToken()) != JsonToken.END_ARRAY) {
+        boolean isInt = t == JsonToken.VALUE_NUMBER_INT && 
+                p.getNumberType() != JsonParser.NumberType.BIG_INTEGER;
+        if(!isInt && t != JsonToken.VALUE_NUMBER_FLOAT) {
+          List<Object> list = new ArrayList<>(Math.max(n*2, 10));
+          for(int i=0; i<n; i++) {
+            if(floats[i]) {
+              list.add(doubles[i]);
+            } else if(longs[i] == (int)longs[i]) {
+              list.add((int)longs[i]);
+            } else {
+              list.add(longs[i]);
+            }
+          }
+          list.add(deserialize(p, ctxt));
+          while(p.nextToken() != JsonToken.END_ARRAY) {
+            list.add(deserialize(p, ctxt));
+          }
+          return list;
+        }
+        if(n == longs.length) {
+          longs = Arrays.copyOf(longs, n*2);
+          doubles = Arrays.copyOf(doubles, n*2);
+          floats = Arrays.copyOf(floats, n*2);
+        }
+        if(isInt) {
+          long l = p.getLongValue();
+          longs[n] = l;
+          doubles[n] = l;
+          fitInt &= l == (int)l;
+        } else {
+          doubles[n] = p.getDoubleValue();
+          floats[n] = true;
+          allInts = false;
+        }
+        n++;
+      }
+      if(n == 0) {
+        return new ArrayList<>();
+      } else if(!allInts) {
+        return Arrays.copyOf(doubles, n);
+      } else if(fitInt) {
+        int[] ret = new int[n];
+        for(int i=0; i<n; i++) {
+          ret[i] = (int)longs[i];
+        }
+        return ret;
+      } else {
+        return Arrays.copyOf(longs, n);
+      }
+    }
+  }
+
+}
@@ -19,25 +19,60 @@
  */
 package gate.lib.interaction.data;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Minimal container for a sparse vector of n non-zero locations.
  * 
- * This is meant to be used only for passing on sparse vectors, so 
- * no attempt is made to have any of the specific methods normally
- * needed for sparse vectors, and especially there is no code to make
- * accessing vector elements fast.
+ * This is mainly meant to be used for passing on sparse vectors, so 
+ * there is no code to make accessing individual vector elements fast.
+ * <p>
+ * A few basic operations (dot products, norms, scaling and adding) are 
+ * provided so that simple scoring can be done without copying the 
+ * vector. These do not allocate any memory, except for add(), and 
+ * assume that the indices are sorted in increasing order without 
+ * duplicates.
+ * <p>
+ * For Java serialization, a compact format is used: the indices are 
+ * written as variable length deltas to the previous index, which needs 
+ * only one or two bytes per index if the indices are sorted and dense, 
+ * and all values are written in bulk, optionally as 32 bit floats.
+ * Streams written by earlier versions, which used the default 
+ * serialization of the fields, can still be read.
  * 
  * @author Johann Petrak
  */
 public class SparseDoubleVector implements Serializable {
 
   private static final long serialVersionUID = 2L;
+  
+  // The serialized fields are those of the earlier default serialized form,
+  // with the indices and values always null now, plus a format tag 
+  // which is missing (and thus 0) in streams written by earlier versions.
+  private static final ObjectStreamField[] serialPersistentFields = {
+    new ObjectStreamField("instanceWeight", double.class),
+    new ObjectStreamField("indices", int[].class),
+    new ObjectStreamField("values", double[].class),
+    new ObjectStreamField("format", int.class)
+  };
+  private static final int FORMAT_DEFAULT = 0;
+  private static final int FORMAT_COMPACT = 1;
+  private static final int FLAG_FLOAT32 = 1;
+  // the bytes of the compact format are read in chunks of at most this size
+  private static final int READ_CHUNK = 65536;
  
   protected int[] indices;
   protected double[] values;
   protected double instanceWeight = Double.NaN;
+  protected transient boolean float32Values = false;
   
   /**
    * Create a sparse vector with the specified number of non-zero locations.
@@ -78,5 +113,338 @@ public class SparseDoubleVector implements Serializable {
    * @param weight the weight
    */
   public void setInstanceWeight(double weight) { instanceWeight = weight; }
+  /**
+   * Set if values should be serialized as 32 bit floats.
+   * 
+   * This halves the size needed for the values, but the values lose
+   * precision when the vector gets serialized. A vector that was 
+   * deserialized from the float format has this set.
+   * 
+   * @param flag true to serialize values as floats
+   */
+  public void setSerializeValuesAsFloat(boolean flag) { float32Values = flag; }
+  /**
+   * Check if values get serialized as 32 bit floats.
+   * @return flag
+   */
+  public boolean getSerializeValuesAsFloat() { return float32Values; }
+  
+  /**
+   * Dot product with another sparse vector.
+   * 
+   * @param other the other vector
+   * @return the dot product
+   */
+  public double dot(SparseDoubleVector other) {
+    final int[] ia = indices;
+    final double[] va = values;
+    final int[] ib = other.indices;
+    final double[] vb = other.values;
+    final int na = ia.length;
+    final int nb = ib.length;
+    double sum = 0.0;
+    int i = 0;
+    int j = 0;
+    while(i < na && j < nb) {
+      int a = ia[i];
+      int b = ib[j];
+      if(a == b) {
+        sum += va[i++] * vb[j++];
+      } else if(a < b) {
+        i++;
+      } else {
+        j++;
+      }
+    }
+    return sum;
+  }
+  
+  /**
+   * Dot product with a dense vector.
+   * 
+   * @param dense the dense vector, must be large enough for all indices
+   * @return the dot product
+   */
+  public double dot(double[] dense) {
+    final int[] ia = indices;
+    final double[] va = values;
+    double sum = 0.0;
+    for(int i=0; i<ia.length; i++) {
+      sum += va[i] * dense[ia[i]];
+    }
+    return sum;
+  }
+  
+  /**
+   * The L1 norm, i.e. the sum of absolute values.
+   * 
+   * @return L1 norm
+   */
+  public double norm1() {
+    final double[] va = values;
+    double sum = 0.0;
+    for(int i=0; i<va.length; i++) {
+      sum += Math.abs(va[i]);
+    }
+    return sum;
+  }
+  
+  /**
+   * The L2 norm, i.e. the euclidean length.
+   * 
+   * @return L2 norm
+   */
+  public double norm2() {
+    final double[] va = values;
+    double sum = 0.0;
+    for(int i=0; i<va.length; i++) {
+      sum += va[i] * va[i];
+    }
+    return Math.sqrt(sum);
+  }
+  
+  /**
+   * Multiply all values by a factor, in place.
+   * 
+   * @param factor the factor
+   */
+  public void scale(double factor) {
+    final double[] va = values;
+    for(int i=0; i<va.length; i++) {
+      va[i] *= factor;
+    }
+  }
+  
+  /**
+   * Scale the values in place so that the L2 norm is 1.
+   * 
+   * If the norm is 0, the vector is left unchanged.
+   */
+  public void normalize() {
+    double norm = norm2();
+    if(norm > 0.0) {
+      scale(1.0 / norm);
+    }
+  }
+  
+  /**
+   * Add this vector multiplied by alpha to a dense vector, in place.
+   * 
+   * This computes y = alpha * this + y.
+   * 
+   * @param alpha the factor
+   * @param y the dense vector to update, must be large enough for all indices
+   */
+  public void axpy(double alpha, double[] y) {
+    final int[] ia = indices;
+    final double[] va = values;
+    for(int i=0; i<ia.length; i++) {
+      y[ia[i]] += alpha * va[i];
+    }
+  }
+  
+  /**
+   * Return a new vector which is the sum of this and another vector.
+   * 
+   * The instance weight of the new vector is not set.
+   * 
+   * @param other the other vector 
+   * @return the sum
+   */
+  public SparseDoubleVector add(SparseDoubleVector other) {
+    final int[] ia = indices;
+    final double[] va = values;
+    final int[] ib = other.indices;
+    final double[] vb = other.values;
+    final int na = ia.length;
+    final int nb = ib.length;
+    // count the locations in the result first, so that we can allocate
+    // the result arrays exactly
+    int n = 0;
+    int i = 0;
+    int j = 0;
+    while(i < na && j < nb) {
+      int a = ia[i];
+      int b = ib[j];
+      if(a <= b) {
+        i++;
+      }
+      if(b <= a) {
+        j++;
+      }
+      n++;
+    }
+    n += (na - i) + (nb - j);
+    SparseDoubleVector ret = new SparseDoubleVector(n);
+    final int[] ir = ret.indices;
+    final double[] vr = ret.values;
+    int k = 0;
+    i = 0;
+    j = 0;
+    while(i < na && j < nb) {
+      int a = ia[i];
+      int b = ib[j];
+      if(a == b) {
+        ir[k] = a;
+        vr[k++] = va[i++] + vb[j++];
+      } else if(a < b) {
+        ir[k] = a;
+        vr[k++] = va[i++];
+      } else {
+        ir[k] = b;
+        vr[k++] = vb[j++];
+      }
+    }
+    while(i < na) {
+      ir[k] = ia[i];
+      vr[k++] = va[i++];
+    }
+    while(j < nb) {
+      ir[k] = ib[j];
+      vr[k++] = vb[j++];
+    }
+    return ret;
+  }
+  
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("instanceWeight", instanceWeight);
+    fields.put("indices", null);
+    fields.put("values", null);
+    fields.put("format", FORMAT_COMPACT);
+    out.writeFields();
+    int n = indices.length;
+    // the exact size of the flags, the count, the indices and the values
+    int size = 1 + varIntSize(n) + (float32Values ? 4 : 8)*n;
+    int prev = 0;
+    for(int i=0; i<n; i++) {
+      int delta = indices[i] - prev;
+      size += varIntSize((delta << 1) ^ (delta >> 31));
+      prev = indices[i];
+    }
+    byte[] bytes = new byte[size];
+    int pos = 0;
+    bytes[pos++] = (byte)(float32Values ? FLAG_FLOAT32 : 0);
+    pos = putVarInt(bytes, pos, n);
+    prev = 0;
+    for(int i=0; i<n; i++) {
+      int delta = indices[i] - prev;
+      pos = putVarInt(bytes, pos, (delta << 1) ^ (delta >> 31));
+      prev = indices[i];
+    }
+    ByteBuffer bb = ByteBuffer.wrap(bytes, pos, bytes.length - pos);
+    if(float32Values) {
+      for(int i=0; i<n; i++) {
+        bb.putFloat((float)values[i]);
+      }
+      pos += 4*n;
+    } else {
+      bb.asDoubleBuffer().put(values);
+      pos += 8*n;
+    }
+    out.writeInt(pos);
+    out.write(bytes, 0, pos);
+  }
+  
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = in.readFields();
+    instanceWeight = fields.get("instanceWeight", Double.NaN);
+    int format = fields.get("format", FORMAT_DEFAULT);
+    if(format == FORMAT_DEFAULT) {
+      indices = (int[])fields.get("indices", null);
+      values = (double[])fields.get("values", null);
+      if(indices == null || values == null || indices.length != values.length) {
+        throw new InvalidObjectException("Invalid indices or values");
+      }
+      return;
+    } else if(format != FORMAT_COMPACT) {
+      throw new InvalidObjectException("Unknown SparseDoubleVector format "+format);
+    }
+    int len = in.readInt();
+    if(len < 2) {
+      throw new InvalidObjectException("Invalid length "+len);
+    }
+    ByteBuffer bb = ByteBuffer.wrap(readBytes(in, len));
+    int flags = bb.get();
+    float32Values = (flags & FLAG_FLOAT32) != 0;
+    int n = getVarInt(bb);
+    // each location needs at least one byte for the index and the value bytes
+    if(n < 0 || (long)n*(float32Values ? 5 : 9) > len) {
+      throw new InvalidObjectException("Invalid number of locations "+n);
+    }
+    indices = new int[n];
+    values = new double[n];
+    int prev = 0;
+    for(int i=0; i<n; i++) {
+      int zigzag = getVarInt(bb);
+      prev += (zigzag >>> 1) ^ -(zigzag & 1);
+      indices[i] = prev;
+    }
+    if(bb.remaining() != (float32Values ? 4 : 8)*n) {
+      throw new InvalidObjectException("Invalid number of value bytes "+bb.remaining());
+    }
+    if(float32Values) {
+      for(int i=0; i<n; i++) {
+        values[i] = bb.getFloat();
+      }
+    } else {
+      bb.asDoubleBuffer().get(values);
+    }
+  }
+  
+  /**
+   * Read the given number of bytes.
+   * 
+   * The array only grows as the bytes arrive, so that a corrupt length 
+   * cannot cause a huge allocation.
+   */
+  private static byte[] readBytes(ObjectInputStream in, int len) throws IOException {
+    byte[] bytes = new byte[Math.min(len, READ_CHUNK)];
+    int pos = 0;
+    while(pos < len) {
+      if(pos == bytes.length) {
+        bytes = Arrays.copyOf(bytes, (int)Math.min(len, 2L*bytes.length));
+      }
+      int n = in.read(bytes, pos, bytes.length-pos);
+      if(n < 0) {
+        throw new EOFException("Expected "+len+" bytes, got "+pos);
+      }
+      pos += n;
+    }
+    return bytes;
+  }
+  
+  private static int varIntSize(int value) {
+    int size = 1;
+    while((value & ~0x7F) != 0) {
+      size++;
+      value >>>= 7;
+    }
+    return size;
+  }
+  
+  private static int putVarInt(byte[] bytes, int pos, int value) {
+    while((value & ~0x7F) != 0) {
+      bytes[pos++] = (byte)((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    bytes[pos++] = (byte)value;
+    return pos;
+  }
+  
+  private static int getVarInt(ByteBuffer bb) throws IOException {
+    int value = 0;
+    for(int shift = 0; shift < 35; shift += 7) {
+      if(!bb.hasRemaining()) {
+        throw new InvalidObjectException("Truncated variable length integer");
+      }
+      byte b = bb.get();
+      value |= (b & 0x7F) << shift;
+      if((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new InvalidObjectException("Malformed variable length integer");
+  }
   
 }
@@ -19,18 +19,29 @@
  */
 package gate.lib.interaction.process;
 
-import java.io.BufferedReader;
+import gate.lib.interaction.process.metrics.ProcessMetrics;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,12 +80,50 @@ public abstract class ProcessBase
   protected ProcessBuilder builder = null;
   protected Process process = null;
   protected File workingDir = new File(".");
+  /**
+   * Not used any more: the process streams are copied by the shared StreamPump thread.
+   * @deprecated this is always null
+   */
+  @Deprecated
   protected Thread loggerThread;
   protected Map<String,String> envvars = new HashMap<>();
   // a flag that we set as soon as termination of the process was requested. 
   // Implementations can use the stream interaction with the process to
   // nicely ask for termination through the stopInteraction() method. 
   protected boolean stopRequested = false;   
+  // set while the process gets stopped and restarted after a timeout, so
+  // that stopInteraction() can tell this apart from a final stop
+  protected volatile boolean restarting = false;
+  // the timeout in milliseconds used by process() if no timeout is given, 0 for none
+  protected volatile long defaultTimeout = 0;
+  
+  // the metrics for the exchanges with the process
+  protected final ProcessMetrics metrics = new ProcessMetrics();
+  
+  private final ReentrantLock restartLock = new ReentrantLock();
+  
+  // standby processes which have been started already and can replace the
+  // current process immediately
+  private int standbyCount = 0;
+  private final Deque<Process> standby = new ArrayDeque<>();
+  private boolean refilling = false;
+  private boolean standbyClosed = false;
+  // how newly started processes get warmed up, null for not at all
+  private volatile Warmup warmup = null;
+  
+  // the process streams which are already getting copied
+  private static final Map<InputStream,StreamPump.Source> COPIED_STREAMS = new WeakHashMap<>();
+  
+  // where the output of processes gets logged, if null it gets copied
+  private volatile Logger outputLogger = null;
+  // the copied streams of the current process
+  private final List<StreamPump.Source> outputSources = new ArrayList<>();
+  private Process outputProcess = null;
+  
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProcessBase.class);
+  
+  private static final ScheduledExecutorService WATCHDOG = 
+          Executors.newSingleThreadScheduledExecutor(Threads.factory("ProcessBase-watchdog"));
     
   /**
    * Make sure the process is running.
@@ -91,22 +140,271 @@ public abstract class ProcessBase
     if(need2start()) {
       // System.err.println("ProcessBase: running command:");
       // for(int i=0; i<command.size();i++) { System.err.println(i+": "+command.get(i)); }
-      builder = new ProcessBuilder(command);
-      builder.directory(workingDir);
-      Map<String,String> env = builder.environment();
-      env.putAll(envvars);
-      try {
-        process = builder.start();
-      } catch (IOException ex) {
-        throw new RuntimeException("Could not start the process "+command,ex);
+      if(process != null) {
+        metrics.restarted();
+        if(!restarting && !stopRequested) {
+          logEnded();
+        }
+      }
+      builder = createBuilder();
+      Process spare = takeStandby();
+      if(spare != null) {
+        process = spare;
+      } else {
+        try {
+          process = launch(builder, false);
+        } catch (IOException ex) {
+          throw new RuntimeException("Could not start the process "+command,ex);
+        }
       }
       setupInteraction();
+      refillStandby();
       return true;
     } else {
       return false;
     }
   }
   
+  /**
+   * Log that the process ended by itself, together with its last output.
+   */
+  private void logEnded() {
+    synchronized(outputSources) {
+      // give the pump a moment to read what the process wrote before ending
+      for(StreamPump.Source source : outputSources) {
+        source.awaitFinished(200);
+      }
+    }
+    List<String> lines = getRecentOutput();
+    LOGGER.warn("Process ended with exit value {}, restarting {}{}", 
+            process.isAlive() ? "unknown" : String.valueOf(process.exitValue()), command,
+            lines.isEmpty() ? "" : ", last output:\n"+String.join("\n", lines));
+  }
+  
+  private ProcessBuilder createBuilder() {
+    ProcessBuilder ret = new ProcessBuilder(command);
+    ret.directory(workingDir);
+    Map<String,String> env = ret.environment();
+    env.putAll(envvars);
+    return ret;
+  }
+  
+  /**
+   * Get the metrics for the exchanges with the process.
+   * 
+   * Detailed timing of the phases of each exchange is only recorded by 
+   * the process classes which communicate through pipes.
+   * 
+   * @return metrics
+   */
+  public ProcessMetrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * Set the number of standby processes to keep.
+   * 
+   * Standby processes are started in the background with the same command
+   * as the current process and wait until the current process needs to
+   * be replaced by ensureProcess(), e.g. because it ended or did not 
+   * respond in time. A standby process can then be used immediately instead
+   * of waiting for a new process to start and load its resources. 
+   * Whenever a standby process gets used, a new one is started in the 
+   * background, where it also gets warmed up, see setWarmup(String, String, long),
+   * and it only becomes available once the warm-up is done. Standby 
+   * processes are destroyed by stop().
+   * <p>
+   * Both streams of a standby process are read from the moment it gets 
+   * started, so that it does not block when writing to them while 
+   * waiting: standard error is copied to standard output and standard 
+   * output is kept in memory and handed to the interaction, followed by
+   * whatever the process writes afterwards, once the standby process 
+   * gets used. The handshake of the subclass happens at that point.
+   * 
+   * @param count the number of standby processes, 0 (the default) for none
+   */
+  public void setStandbyCount(int count) {
+    if(count < 0) {
+      throw new RuntimeException("Number of standby processes must not be negative: "+count);
+    }
+    List<Process> toStop = new ArrayList<>();
+    synchronized(standby) {
+      standbyCount = count;
+      while(standby.size() > count) {
+        toStop.add(standby.removeLast());
+      }
+    }
+    for(Process p : toStop) {
+      p.destroy();
+    }
+    if(process != null) {
+      refillStandby();
+    }
+  }
+  
+  /**
+   * Warm up each process after starting it.
+   * 
+   * The input gets written to the standard input of each process started 
+   * afterwards, including standby processes, and the process is only used
+   * once it has written a line to its standard output which matches the
+   * ready pattern. Everything the process wrote to its standard output up
+   * to and including that line is discarded, so the input can be any 
+   * number of requests which load resources or exercise the code paths 
+   * of the process on the other side, as long as their responses end with
+   * such a line. This only works for processes whose standard output 
+   * consists of lines until they are ready.
+   * <p>
+   * Standby processes get warmed up in the background, other processes 
+   * are warmed up by ensureProcess(), which fails if the process does not
+   * become ready within the timeout.
+   * 
+   * @param input the input to send, may be null to only wait for the ready pattern
+   * @param readyPattern the regular expression to find in a line of the 
+   * standard output, null to use everything written to the standard 
+   * output by the interaction
+   * @param timeout the maximum time in milliseconds to wait for the 
+   * process to become ready, 0 for no limit
+   */
+  public void setWarmup(String input, String readyPattern, long timeout) {
+    if(input == null && readyPattern == null) {
+      warmup = null;
+    } else {
+      warmup = new Warmup(input, readyPattern == null ? null : Pattern.compile(readyPattern), timeout);
+    }
+  }
+  
+  /**
+   * Get the number of standby processes to keep.
+   * @return number of standby processes
+   */
+  public int getStandbyCount() {
+    return standbyCount;
+  }
+  
+  /**
+   * Get the number of standby processes which are ready to be used.
+   * @return number of running standby processes
+   */
+  public int getStandbyAvailable() {
+    synchronized(standby) {
+      return standby.size();
+    }
+  }
+  
+  /**
+   * Take the oldest running standby process, if there is one.
+   * @return the standby process or null
+   */
+  private Process takeStandby() {
+    synchronized(standby) {
+      standbyClosed = false;
+      Process ret;
+      while((ret = standby.pollFirst()) != null) {
+        if(ret.isAlive()) {
+          return ret;
+        }
+      }
+      return null;
+    }
+  }
+  
+  /**
+   * Start standby processes in the background until there are enough.
+   */
+  private void refillStandby() {
+    synchronized(standby) {
+      if(refilling || standbyClosed || standby.size() >= standbyCount) {
+        return;
+      }
+      refilling = true;
+    }
+    final ProcessBuilder standbyBuilder = createBuilder();
+    Threads.start("ProcessBase-standby", () -> {
+      while(true) {
+        synchronized(standby) {
+          if(standbyClosed || standby.size() >= standbyCount) {
+            refilling = false;
+            return;
+          }
+        }
+        Process p;
+        try {
+          p = launch(standbyBuilder, true);
+        } catch (IOException ex) {
+          LOGGER.error("Could not start standby process "+command, ex);
+          synchronized(standby) {
+            refilling = false;
+          }
+          return;
+        }
+        synchronized(standby) {
+          if(standbyClosed) {
+            p.destroy();
+          } else {
+            standby.addLast(p);
+          }
+        }
+      }
+    });
+  }
+  
+  /**
+   * Start a process and warm it up, if there is a warm-up.
+   * 
+   * The standard output of standby processes and of processes which get
+   * warmed up is read from the start, and the returned process hands out
+   * what was read so far, followed by the rest of the stream.
+   * 
+   * @param processBuilder the builder to use
+   * @param standby if the process is a standby process
+   * @return the process
+   * @throws IOException if the process could not be started or warmed up
+   */
+  private Process launch(ProcessBuilder processBuilder, boolean standby) throws IOException {
+    Warmup w = warmup;
+    Process p = processBuilder.start();
+    if(w == null && !standby) {
+      return p;
+    }
+    startCopier(p.getErrorStream(), System.out, p);
+    DrainedOutput output = new DrainedOutput(w == null ? null : w.ready);
+    StreamPump.Source source = StreamPump.getDefault().add(p.getInputStream(), output, p);
+    if(w != null) {
+      try {
+        if(w.input != null) {
+          OutputStream in = p.getOutputStream();
+          in.write(w.input.getBytes(StandardCharsets.UTF_8));
+          in.flush();
+        }
+        if(!output.awaitReady(p, w.timeout)) {
+          throw new IOException(p.isAlive() 
+                  ? "Process not ready after "+w.timeout+"ms: "+command
+                  : "Process ended during the warm-up: "+command);
+        }
+      } catch (IOException ex) {
+        p.destroy();
+        throw ex;
+      }
+    }
+    return new DrainedProcess(p, source, output);
+  }
+  
+  /**
+   * Destroy all standby processes and do not start any new ones.
+   */
+  private void stopStandby() {
+    List<Process> toStop;
+    synchronized(standby) {
+      standbyClosed = true;
+      toStop = new ArrayList<>(standby);
+      standby.clear();
+    }
+    for(Process p : toStop) {
+      p.destroy();
+    }
+  }
+  
   /**
    * Preferred way of interaction: process some data and get back some result.
    * This expects that data is one "unit" of information that can get 
@@ -127,6 +425,180 @@ public abstract class ProcessBase
    */
   public abstract Object process(Object data);
   
+  /**
+   * Process some data and get back the response within the given time.
+   * 
+   * If the process does not respond in time, it gets stopped using 
+   * stop(), which makes the waiting call return, and restarted using 
+   * ensureProcess() in the background, and a ProcessTimeoutException 
+   * is thrown. The timeout only starts once the data actually gets sent,
+   * so waiting for other threads which use the same instance does not 
+   * count.
+   * <p>
+   * This default implementation applies the timeout to the whole
+   * process() call.
+   * 
+   * @param data the data to process
+   * @param timeout the timeout in milliseconds, 0 or less for no timeout
+   * @return the response
+   */
+  public Object process(Object data, long timeout) {
+    return callWithTimeout(timeout, () -> process(data));
+  }
+  
+  /**
+   * Process some data in the background.
+   * 
+   * This default implementation runs process(Object) using the executor
+   * from Threads.executor(), so each waiting request occupies one thread,
+   * which is a cheap virtual thread when running on Java 21 or later. 
+   * Requests for the same process are still exchanged one at a time, 
+   * unless the subclass supports several requests in flight.
+   * 
+   * @param data the data to process
+   * @return future for the response
+   */
+  public CompletableFuture<Object> processAsync(Object data) {
+    return CompletableFuture.supplyAsync(() -> process(data), Threads.executor());
+  }
+  
+  /**
+   * Set the timeout used by process() and processBatch().
+   * 
+   * This is only supported by the process classes which communicate 
+   * through pipes, see process(Object, long) for details. For processBatch()
+   * the timeout is for the whole batch.
+   * 
+   * @param timeout the timeout in milliseconds, 0 (the default) for no timeout
+   */
+  public void setDefaultTimeout(long timeout) {
+    defaultTimeout = timeout;
+  }
+  
+  /**
+   * Get the timeout used by process() and processBatch().
+   * @return the timeout in milliseconds, 0 for no timeout
+   */
+  public long getDefaultTimeout() {
+    return defaultTimeout;
+  }
+  
+  /**
+   * Run one exchange with the process and stop and restart it if it takes too long.
+   * 
+   * Subclasses should call this for the part of an exchange during which
+   * they hold the lock for the process, and call awaitRestart() after 
+   * getting the lock.
+   * 
+   * @param <T> the type of the result
+   * @param timeout the timeout in milliseconds, 0 or less for no timeout
+   * @param call the exchange
+   * @return the result of the exchange 
+   */
+  protected <T> T callWithTimeout(long timeout, Supplier<T> call) {
+    if(timeout <= 0) {
+      return call.get();
+    }
+    // whoever sets this first decides if the call finished or timed out
+    final AtomicBoolean finished = new AtomicBoolean();
+    ScheduledFuture<?> watchdog = WATCHDOG.schedule(() -> {
+      if(finished.compareAndSet(false, true)) {
+        // restart in a separate thread so that a slow start does not delay
+        // the watchdogs of other instances
+        Threads.start("ProcessBase-restart", () -> restart("Process did not respond in time"));
+      }
+    }, timeout, TimeUnit.MILLISECONDS);
+    T ret;
+    try {
+      ret = call.get();
+    } catch (RuntimeException ex) {
+      if(finished.compareAndSet(false, true)) {
+        watchdog.cancel(false);
+        throw ex;
+      }
+      metrics.timedOut();
+      throw new ProcessTimeoutException("No response from the process within "+timeout+"ms", ex);
+    }
+    if(finished.compareAndSet(false, true)) {
+      watchdog.cancel(false);
+      return ret;
+    }
+    metrics.timedOut();
+    throw new ProcessTimeoutException("No response from the process within "+timeout+"ms");
+  }
+  
+  /**
+   * Kill the process and start it again.
+   * 
+   * This is used when the process did not respond in time or when the
+   * connection to the process is in an unknown state, e.g. because a 
+   * response could not be read completely, so that the next response 
+   * would be wrong. Requests wait in awaitRestart() until the restart 
+   * has finished.
+   * 
+   * @param reason why the process gets restarted, for the log
+   */
+  protected void restart(String reason) {
+    restartLock.lock();
+    try {
+      LOGGER.warn("{}, restarting {}", reason, command);
+      restarting = true;
+      try {
+        stop(1000, true);
+      } catch (RuntimeException ex) {
+        LOGGER.error("Could not stop the process", ex);
+      }
+      stopRequested = false;
+      try {
+        ensureProcess();
+      } catch (RuntimeException ex) {
+        LOGGER.error("Could not restart the process", ex);
+      } finally {
+        restarting = false;
+      }
+    } finally {
+      restartLock.unlock();
+    }
+  }
+  
+  /**
+   * Wait until any restart after a timeout has finished.
+   * 
+   * Subclasses should call this after getting the lock for exchanging 
+   * data with the process, so that they do not use the streams of 
+   * a process which is being stopped.
+   */
+  protected void awaitRestart() {
+    // nothing to do, just wait for the lock
+    restartLock.lock();
+    restartLock.unlock();
+  }
+  
+  /**
+   * Process several data items and get back the list of responses.
+   * 
+   * The responses are returned in the same order as the data items. 
+   * This default implementation simply calls process() for each item, 
+   * subclasses may override it to send all items before reading all 
+   * the responses. 
+   * <p>
+   * NOTE: if all items are sent before the responses are read, the
+   * process may block when writing its responses if these do not fit into 
+   * the pipe buffer, so the batch size should be kept moderate. The 
+   * processes which use a Codec avoid this by writing the items from 
+   * a separate thread.
+   * 
+   * @param data the list of data items to process
+   * @return the list of responses
+   */
+  public List<Object> processBatch(List<?> data) {
+    List<Object> ret = new ArrayList<>(data.size());
+    for(Object item : data) {
+      ret.add(process(item));
+    }
+    return ret;
+  }
+  
     
   /**
    * Check if the external process is running.
@@ -150,7 +622,37 @@ public abstract class ProcessBase
    * @return the exit value of the process 
    */
   public int stop(int timeoutPerStage) {
+    return stop(timeoutPerStage, false);
+  }
+  
+  /**
+   * Stop the process, optionally killing it before the interaction is stopped.
+   * 
+   * After a timeout, the process may have stopped reading while another
+   * thread is still blocked writing to it. Closing the connection would then
+   * block as well, because it has to wait for that write, so the process 
+   * gets killed first, which makes the write fail.
+   * 
+   * @param timeoutPerStage the timeout in milliseconds per attempt to shut down the process
+   * @param killFirst if the process should be killed before stopping the interaction
+   * @return the exit value of the process 
+   */
+  private int stop(int timeoutPerStage, boolean killFirst) {
     stopRequested = true;
+    if(!restarting) {
+      stopStandby();
+    }
+    if(killFirst) {
+      process.destroy();
+      try {
+        if(!process.waitFor(timeoutPerStage, TimeUnit.MILLISECONDS)) {
+          process.destroyForcibly();
+          process.waitFor(timeoutPerStage, TimeUnit.MILLISECONDS);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
     stopInteraction();
     // wait a little so any pending standard error can still be processed
     try {
@@ -194,98 +696,97 @@ public abstract class ProcessBase
     return stop(1000);
   }
   
-    /**
-     * Copy stream.
-     * A utility function for copying a process stream to one of our streams
-     * in a separate thread. 
-     * 
-     * @param processStream to copy
-     * @param ourStream where to copy
-     */
-  
-  protected void copyStream(final InputStream processStream, final OutputStream ourStream) {
-    loggerThread = new StreamCopierByLine(processStream, ourStream);
-    loggerThread.setDaemon(true);
-    loggerThread.start();
-  }
-
   /**
-   * Helper class for copying a process stream.
-   * This class copies the input stream to the output stream using a buffer.
-   * NOTE: this class was used in older versions, but if several process
-   * streams get copied to a local stream using this class, the output 
-   * may get mixed up. The byLine class should work better and is used now. 
-   */
-  private static class StreamCopierByBuffer extends Thread {
-      public transient Logger logger = LoggerFactory.getLogger(this.getClass());
-      InputStream stream;
-      OutputStream outstream;
-      public StreamCopierByBuffer(InputStream stream, OutputStream outstream) {
-        this.stream = stream;
-        this.outstream = outstream;
+   * Copy stream.
+   * A utility function for copying a stream of the current process to one 
+   * of our streams. All streams are copied by the shared StreamPump thread.
+   * If an output logger is set, the lines of the stream get logged instead.
+   * If the stream is already getting copied, e.g. because it is the error 
+   * stream of a standby process, nothing happens. The last lines of the
+   * stream are available through getRecentOutput().
+   * 
+   * @param processStream to copy
+   * @param ourStream where to copy
+   */
+  protected void copyStream(final InputStream processStream, final OutputStream ourStream) {
+    StreamPump.Source source = startCopier(processStream, ourStream, process);
+    synchronized(outputSources) {
+      if(outputProcess != process) {
+        outputSources.clear();
+        outputProcess = process;
       }
-      @Override
-      public void run() {
-        byte[] buffer = new byte[1024];
-        int n;
-        while(true) { 
-          try {
-            n = this.stream.read(buffer);
-            // if we have reached EOF, exit the copy loop
-            if(n == -1) {
-              break;
-            }
-          } catch (IOException ex) {
-            logger.error("Could not copy stream from the process to our own stream", ex);
-            break;
-          }
-          try {
-            // if we actually got something in our buffer, write it to our stream
-            outstream.write(buffer);
-          } catch (IOException ex) {
-            logger.error("Could not copy stream from the process to our own stream", ex);
-            break;
-          }
-        }
-      }  
+      if(!outputSources.contains(source)) {
+        outputSources.add(source);
+      }
+    }
   }
   
   /**
-   * Helper class for copying a process stream.
-   * This class copies the input stream to the output stream line by line.
+   * Start copying the stream, unless it is already getting copied.
+   * 
+   * @param processStream to copy
+   * @param ourStream where to copy
+   * @param owner the process the stream belongs to
+   * @return the source of the stream in the pump
    */
-  private static class StreamCopierByLine extends Thread {
-      OutputStream outstream;
-      InputStreamReader isr;
-      BufferedReader br;
-      public StreamCopierByLine(InputStream instream, OutputStream outstream) {
-        this.outstream = outstream;
-        try {
-          isr = new InputStreamReader(instream, "utf-8");
-        } catch (UnsupportedEncodingException ex) {
-          throw new RuntimeException("Could not create StreamReader", ex);
+  private StreamPump.Source startCopier(InputStream processStream, OutputStream ourStream, Process owner) {
+    synchronized(COPIED_STREAMS) {
+      StreamPump.Source source = COPIED_STREAMS.get(processStream);
+      if(source == null) {
+        Logger logger = outputLogger;
+        if(logger != null) {
+          source = StreamPump.getDefault().add(processStream, logger, owner);
+        } else {
+          source = StreamPump.getDefault().add(processStream, ourStream, owner);
         }
-        br = new BufferedReader(isr);
+        COPIED_STREAMS.put(processStream, source);
       }
-      @Override
-      public void run() {
-        String strLine;
-        boolean isFirstLine = true;
-        try {
-          while( (strLine = br.readLine()) != null){
-            if(!isFirstLine) {
-              outstream.write("\n".getBytes());
-            }
-            outstream.write(strLine.getBytes("utf-8"));
-            isFirstLine = false;
-            outstream.flush();
-          }        
-        } catch(IOException ex) {
-          throw new RuntimeException("Error during stream copy", ex);
-        }
-      }  
+      return source;
+    }
+  }
+  
+  /**
+   * Log the lines the process writes instead of copying them.
+   * 
+   * This only affects processes started afterwards, including standby 
+   * processes. The lines get logged with level info and are rate limited, 
+   * see StreamPump.setMaxLogLinesPerSecond(int).
+   * 
+   * @param logger the logger to use or null to copy the output to our 
+   * own streams (the default)
+   */
+  public void setOutputLogger(Logger logger) {
+    outputLogger = logger;
+  }
+  
+  /**
+   * Get the logger used for the lines the process writes.
+   * @return the logger or null if the output gets copied to our own streams
+   */
+  public Logger getOutputLogger() {
+    return outputLogger;
   }
   
+  /**
+   * Get the last lines the current or last process wrote to the streams we copy.
+   * 
+   * The lines of each copied stream (usually just standard error) are 
+   * returned one stream after the other. This is mainly useful for finding 
+   * out why a process died. 
+   * The number of lines kept per stream can be set with 
+   * StreamPump.setRecentLines(int).
+   * 
+   * @return the lines
+   */
+  public List<String> getRecentOutput() {
+    List<String> ret = new ArrayList<>();
+    synchronized(outputSources) {
+      for(StreamPump.Source source : outputSources) {
+        ret.addAll(source.getRecentLines());
+      }
+    }
+    return ret;
+  }
   
   ///////////////////////////////////////////////////////////////////
   
@@ -348,5 +849,223 @@ public abstract class ProcessBase
     
   }
   
+  /**
+   * How processes get warmed up.
+   */
+  private static final class Warmup {
+    final String input;
+    final Pattern ready;
+    final long timeout;
+    
+    Warmup(String input, Pattern ready, long timeout) {
+      this.input = input;
+      this.ready = ready;
+      this.timeout = timeout;
+    }
+  }
+  
+  /**
+   * Keeps what a process writes to its standard output until it gets used.
+   * 
+   * If there is a ready pattern, the lines before and including the first 
+   * line which matches it are discarded.
+   */
+  private static final class DrainedOutput extends OutputStream {
+    private final Pattern ready;
+    private boolean isReady;
+    private byte[] line;
+    private int lineLength = 0;
+    private byte[] buffer = new byte[0];
+    private int length = 0;
+    
+    DrainedOutput(Pattern ready) {
+      this.ready = ready;
+      isReady = ready == null;
+      line = isReady ? null : new byte[StreamPump.MAX_LINE_BYTES];
+    }
+    
+    @Override
+    public void write(int b) {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+    
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      while(!isReady && len > 0) {
+        byte c = b[off++];
+        len--;
+        if(c == '\n') {
+          int n = lineLength > 0 && line[lineLength-1] == '\r' ? lineLength-1 : lineLength;
+          lineLength = 0;
+          if(ready.matcher(new String(line, 0, n, StandardCharsets.UTF_8)).find()) {
+            isReady = true;
+            line = null;
+            notifyAll();
+          }
+        } else if(lineLength < line.length) {
+          line[lineLength++] = c;
+        }
+      }
+      if(len > 0) {
+        if(length+len > buffer.length) {
+          buffer = Arrays.copyOf(buffer, Math.max(length+len, 2*buffer.length));
+        }
+        System.arraycopy(b, off, buffer, length, len);
+        length += len;
+      }
+    }
+    
+    /**
+     * Wait until the ready pattern was found.
+     * @param process the process which writes the output
+     * @param timeout maximum time to wait in milliseconds, 0 for no limit
+     * @return true if the process is ready
+     */
+    synchronized boolean awaitReady(Process process, long timeout) {
+      long end = timeout > 0 ? System.currentTimeMillis()+timeout : Long.MAX_VALUE;
+      try {
+        while(!isReady && process.isAlive()) {
+          long wait = end-System.currentTimeMillis();
+          if(wait <= 0) {
+            break;
+          }
+          wait(Math.min(wait, 100));
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      return isReady;
+    }
+    
+    /**
+     * Take what was kept so far.
+     * @return the bytes
+     */
+    synchronized byte[] take() {
+      byte[] ret = Arrays.copyOf(buffer, length);
+      buffer = null;
+      return ret;
+    }
+  }
+  
+  /**
+   * A process whose standard output was read by the pump so far.
+   * 
+   * Once the standard output is requested, the pump stops reading it and
+   * the stream returned starts with what the pump read.
+   */
+  private static final class DrainedProcess extends Process {
+    private final Process process;
+    private final StreamPump.Source source;
+    private final DrainedOutput output;
+    private InputStream in = null;
+    
+    DrainedProcess(Process process, StreamPump.Source source, DrainedOutput output) {
+      this.process = process;
+      this.source = source;
+      this.output = output;
+    }
+    
+    @Override
+    public synchronized InputStream getInputStream() {
+      if(in == null) {
+        source.stop();
+        in = new PrefixedInputStream(output.take(), process.getInputStream());
+      }
+      return in;
+    }
+    
+    @Override
+    public OutputStream getOutputStream() {
+      return process.getOutputStream();
+    }
+    
+    @Override
+    public InputStream getErrorStream() {
+      return process.getErrorStream();
+    }
+    
+    @Override
+    public int waitFor() throws InterruptedException {
+      return process.waitFor();
+    }
+    
+    @Override
+    public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+      return process.waitFor(timeout, unit);
+    }
+    
+    @Override
+    public int exitValue() {
+      return process.exitValue();
+    }
+    
+    @Override
+    public void destroy() {
+      process.destroy();
+    }
+    
+    @Override
+    public Process destroyForcibly() {
+      process.destroyForcibly();
+      return this;
+    }
+    
+    @Override
+    public boolean isAlive() {
+      return process.isAlive();
+    }
+  }
+  
+  /**
+   * A stream which returns some bytes before the bytes of another stream.
+   */
+  private static final class PrefixedInputStream extends InputStream {
+    private byte[] prefix;
+    private int pos = 0;
+    private final InputStream in;
+    
+    PrefixedInputStream(byte[] prefix, InputStream in) {
+      this.prefix = prefix.length > 0 ? prefix : null;
+      this.in = in;
+    }
+    
+    @Override
+    public int read() throws IOException {
+      if(prefix == null) {
+        return in.read();
+      }
+      int ret = prefix[pos++] & 0xff;
+      if(pos == prefix.length) {
+        prefix = null;
+      }
+      return ret;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if(prefix == null || len == 0) {
+        return in.read(b, off, len);
+      }
+      int n = Math.min(len, prefix.length-pos);
+      System.arraycopy(prefix, pos, b, off, n);
+      pos += n;
+      if(pos == prefix.length) {
+        prefix = null;
+      }
+      return n;
+    }
+    
+    @Override
+    public int available() throws IOException {
+      return prefix == null ? in.available() : prefix.length-pos;
+    }
+    
+    @Override
+    public void close() throws IOException {
+      prefix = null;
+      in.close();
+    }
+  }
   
 }
@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import gate.lib.interaction.process.metrics.ProcessMetrics;
+import gate.lib.interaction.process.pipes.Process4ObjectStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache for the responses of another process instance.
+ * 
+ * This wraps any ProcessBase instance and remembers the responses for
+ * the most recently used requests, so that a request which is identical 
+ * to an earlier one is answered without sending it to the process again.
+ * Requests are identified by a SHA-256 hash of their content: the UTF-8 
+ * bytes of a String, the bytes of a byte array, and for other objects the
+ * Java serialization if the process receives Java objects (an object 
+ * stream, or a pool or cache of them), otherwise the JSON representation 
+ * (with sorted map keys) of anything that can be converted to JSON and 
+ * the Java serialization of anything else. 
+ * <p>
+ * Control requests are always sent to the process and never cached: the
+ * String "STOP" and any request added with addUncachedRequest().
+ * <p>
+ * If several threads send the same request at the same time, only one of
+ * them sends it to the process and the others wait for that response.
+ * <p>
+ * NOTE: cached responses are returned to all callers which send the same 
+ * request, so they must not be modified. Null responses, e.g. from a
+ * process which ended, are never cached. This can only be used for 
+ * processes which always give the same response for the same request.
+ */
+public class ProcessCache extends ProcessBase
+{
+  
+  private final ProcessBase delegate;
+  private final int maxEntries;
+  private final Map<Key,Entry> cache;
+  private final Map<Key,CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+  private final Set<Key> uncached = ConcurrentHashMap.newKeySet();
+  // if the process gets the Java serialization of the request
+  private final boolean javaObjects;
+  private final ObjectMapper mapper = 
+          new ObjectMapper().enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+  
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong merged = new AtomicLong();
+  private final AtomicLong timeSavedNanos = new AtomicLong();
+  
+  private ProcessCache(ProcessBase delegate, int maxEntries) {
+    this.delegate = delegate;
+    this.maxEntries = maxEntries;
+    javaObjects = receivesJavaObjects(delegate);
+    // access order makes this a LRU cache
+    cache = new LinkedHashMap<Key,Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key,ProcessCache.Entry> eldest) {
+        return size() > ProcessCache.this.maxEntries;
+      }
+    };
+    uncached.add(key("STOP"));
+  }
+  
+  /**
+   * Factory method to create a cache for the given process.
+   * 
+   * @param delegate the process instance which gets the requests not found in the cache
+   * @param maxEntries the maximum number of responses to keep, at least 1
+   * @return the cache
+   */
+  public static ProcessCache create(ProcessBase delegate, int maxEntries) {
+    if(maxEntries < 1) {
+      throw new RuntimeException("Maximum number of entries must be at least 1, not "+maxEntries);
+    }
+    return new ProcessCache(delegate, maxEntries);
+  }
+  
+  /**
+   * Get the process instance which is wrapped by this cache.
+   * @return process instance
+   */
+  public ProcessBase getDelegate() {
+    return delegate;
+  }
+  
+  /**
+   * Add a control request which is always sent to the process.
+   * 
+   * Such requests are neither answered from nor added to the cache,
+   * e.g. commands which change the state of the process. 
+   * The String "STOP" is always such a request.
+   * 
+   * @param data the request
+   */
+  public void addUncachedRequest(Object data) {
+    uncached.add(key(data));
+  }
+  
+  /**
+   * Get the number of requests answered from the cache.
+   * 
+   * This includes requests which waited for an identical request 
+   * which was in flight at the same time.
+   * 
+   * @return number of hits
+   */
+  public long getHits() {
+    return hits.get();
+  }
+  
+  /**
+   * Get the number of requests which were sent to the process.
+   * @return number of misses
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+  
+  /**
+   * Get the number of requests which waited for an identical request in flight.
+   * @return number of merged requests
+   */
+  public long getMerged() {
+    return merged.get();
+  }
+  
+  /**
+   * Get the time saved by the cache.
+   * 
+   * For each hit, this adds the time it took the process to create the
+   * response originally.
+   * 
+   * @return saved time in nanoseconds
+   */
+  public long getTimeSavedNanos() {
+    return timeSavedNanos.get();
+  }
+  
+  /**
+   * Get the number of responses currently in the cache.
+   * @return number of entries
+   */
+  public int size() {
+    synchronized(cache) {
+      return cache.size();
+    }
+  }
+  
+  /**
+   * Remove all responses from the cache.
+   */
+  public void clear() {
+    synchronized(cache) {
+      cache.clear();
+    }
+  }
+  
+  @Override
+  public Object process(Object data) {
+    return process(data, () -> delegate.process(data));
+  }
+  
+  /**
+   * Process the data, using the given timeout if it is not found in the cache.
+   * 
+   * @param data the data to process
+   * @param timeout the timeout in milliseconds for the wrapped process, 0 or less for no timeout
+   * @return the response
+   */
+  @Override
+  public Object process(Object data, long timeout) {
+    return process(data, () -> delegate.process(data, timeout));
+  }
+  
+  private Object process(Object data, Supplier<Object> call) {
+    Key key = key(data);
+    if(uncached.contains(key)) {
+      return call.get();
+    }
+    Entry entry = lookup(key);
+    if(entry != null) {
+      return entry.value;
+    }
+    CompletableFuture<Object> future = new CompletableFuture<>();
+    CompletableFuture<Object> other = inFlight.putIfAbsent(key, future);
+    if(other != null) {
+      merged.incrementAndGet();
+      hits.incrementAndGet();
+      try {
+        return other.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for the response",ex);
+      } catch (ExecutionException ex) {
+        throw new RuntimeException("Problem when processing the data",ex.getCause());
+      }
+    }
+    try {
+      // the response may have been added since we looked it up
+      entry = lookup(key);
+      if(entry != null) {
+        future.complete(entry.value);
+        return entry.value;
+      }
+      misses.incrementAndGet();
+      long start = System.nanoTime();
+      Object ret = call.get();
+      store(key, ret, System.nanoTime()-start);
+      future.complete(ret);
+      return ret;
+    } catch (RuntimeException ex) {
+      future.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      inFlight.remove(key);
+    }
+  }
+  
+  /**
+   * Process a batch of data items.
+   * 
+   * Only the items not found in the cache are sent to the process, as 
+   * one batch and each at most once. Identical requests in flight from 
+   * other threads are not merged with the items of a batch.
+   * 
+   * @param data the list of data items to process
+   * @return the list of responses
+   */
+  @Override
+  public List<Object> processBatch(List<?> data) {
+    List<Object> ret = new ArrayList<>(data.size());
+    // for each item, the index of its response or -1 if found in the cache
+    int[] responseIdx = new int[data.size()];
+    // the items to send and their keys, null for control requests
+    List<Object> toSend = new ArrayList<>();
+    List<Key> sendKeys = new ArrayList<>();
+    Map<Key,Integer> sendIdx = new HashMap<>();
+    for(int i=0; i<data.size(); i++) {
+      Object item = data.get(i);
+      Key key = key(item);
+      ret.add(null);
+      if(uncached.contains(key)) {
+        key = null;
+      } else if(sendIdx.containsKey(key)) {
+        hits.incrementAndGet();
+        responseIdx[i] = sendIdx.get(key);
+        continue;
+      } else {
+        Entry entry = lookup(key);
+        if(entry != null) {
+          ret.set(i, entry.value);
+          responseIdx[i] = -1;
+          continue;
+        }
+        misses.incrementAndGet();
+        sendIdx.put(key, toSend.size());
+      }
+      responseIdx[i] = toSend.size();
+      toSend.add(item);
+      sendKeys.add(key);
+    }
+    if(toSend.isEmpty()) {
+      return ret;
+    }
+    long start = System.nanoTime();
+    List<Object> responses = delegate.processBatch(toSend);
+    long perItem = (System.nanoTime()-start) / toSend.size();
+    for(int i=0; i<toSend.size(); i++) {
+      if(sendKeys.get(i) != null) {
+        store(sendKeys.get(i), responses.get(i), perItem);
+      }
+    }
+    for(int i=0; i<ret.size(); i++) {
+      if(responseIdx[i] >= 0) {
+        ret.set(i, responses.get(responseIdx[i]));
+      }
+    }
+    return ret;
+  }
+  
+  private Entry lookup(Key key) {
+    Entry entry;
+    synchronized(cache) {
+      entry = cache.get(key);
+    }
+    if(entry != null) {
+      hits.incrementAndGet();
+      timeSavedNanos.addAndGet(entry.nanos);
+    }
+    return entry;
+  }
+  
+  private void store(Key key, Object value, long nanos) {
+    if(value == null) {
+      return;
+    }
+    synchronized(cache) {
+      cache.put(key, new Entry(value, nanos));
+    }
+  }
+  
+  /**
+   * Create the key for a request from the hash of its content.
+   */
+  private Key key(Object data) {
+    byte[] bytes;
+    // make sure the different representations of the same bytes are different
+    byte type;
+    if(data instanceof String) {
+      bytes = ((String)data).getBytes(StandardCharsets.UTF_8);
+      type = 0;
+    } else if(data instanceof byte[]) {
+      bytes = (byte[])data;
+      type = 1;
+    } else if(javaObjects) {
+      bytes = serialize(data);
+      type = 2;
+    } else {
+      try {
+        bytes = mapper.writeValueAsBytes(data);
+        type = 3;
+      } catch (JsonProcessingException ex) {
+        bytes = serialize(data);
+        type = 2;
+      }
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(type);
+      return new Key(digest.digest(bytes));
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException("Could not create the message digest",ex);
+    }
+  }
+  
+  /**
+   * Check if the process gets requests as serialized Java objects, so that
+   * requests with the same JSON representation can be different.
+   */
+  private static boolean receivesJavaObjects(ProcessBase process) {
+    if(process instanceof Process4ObjectStream) {
+      return true;
+    } else if(process instanceof ProcessCache) {
+      return ((ProcessCache)process).javaObjects;
+    } else if(process instanceof ProcessPool) {
+      for(ProcessBase worker : ((ProcessPool)process).getWorkers()) {
+        if(worker != null && receivesJavaObjects(worker)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+  
+  private static byte[] serialize(Object data) {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+      oos.writeObject(data);
+    } catch (IOException ex) {
+      throw new RuntimeException("Could not create a cache key for "+data.getClass(),ex);
+    }
+    return bos.toByteArray();
+  }
+  
+  /**
+   * The hash of a request.
+   */
+  private static class Key {
+    private final byte[] hash;
+    private final int hashCode;
+    Key(byte[] hash) {
+      this.hash = hash;
+      hashCode = Arrays.hashCode(hash);
+    }
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key && Arrays.equals(hash, ((Key)other).hash);
+    }
+  }
+  
+  /**
+   * A cached response together with the time it took to create it.
+   */
+  private static class Entry {
+    private final Object value;
+    private final long nanos;
+    Entry(Object value, long nanos) {
+      this.value = value;
+      this.nanos = nanos;
+    }
+  }
+  
+  /**
+   * Get the metrics of the wrapped process.
+   * 
+   * Requests answered from the cache are not included, see getHits().
+   * 
+   * @return metrics
+   */
+  @Override
+  public ProcessMetrics getMetrics() {
+    return delegate.getMetrics();
+  }
+  
+  /**
+   * Set the default timeout of the wrapped process.
+   * @param timeout the timeout in milliseconds, 0 for no timeout
+   */
+  @Override
+  public void setDefaultTimeout(long timeout) {
+    delegate.setDefaultTimeout(timeout);
+  }
+  
+  @Override
+  public long getDefaultTimeout() {
+    return delegate.getDefaultTimeout();
+  }
+  
+  @Override
+  public void setStandbyCount(int count) {
+    delegate.setStandbyCount(count);
+  }
+  
+  @Override
+  public int getStandbyCount() {
+    return delegate.getStandbyCount();
+  }
+  
+  @Override
+  public int getStandbyAvailable() {
+    return delegate.getStandbyAvailable();
+  }
+  
+  @Override
+  public boolean ensureProcess() {
+    return delegate.ensureProcess();
+  }
+  
+  @Override
+  public boolean isAlive() {
+    return delegate.isAlive();
+  }
+  
+  @Override
+  public int stop(int timeoutPerStage) {
+    stopRequested = true;
+    return delegate.stop(timeoutPerStage);
+  }
+  
+  ///////////////////////////////////////////////////////////////////
+
+  @Override
+  protected void setupInteraction() {
+    // the wrapped process sets up its own interaction
+  }
+
+  @Override
+  protected void stopInteraction() {
+    // the wrapped process ends its own interaction in stop(int)
+  }
+  
+  @Override
+  protected boolean need2start() {
+    return delegate.need2start();
+  }
+  
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process;
+
+import gate.lib.interaction.process.metrics.ProcessMetrics;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of identical worker processes which share the processing load.
+ *
+ * Each of the Process4XxxStream classes wraps exactly one process and
+ * only ever has one request outstanding with that process. This class
+ * starts several identical worker processes using the same factory
+ * method and arguments and sends each call of the process() method to
+ * the worker which currently has the fewest outstanding requests.
+ * <p>
+ * The pool can be used everywhere a ProcessBase instance is expected,
+ * but note that the process() method sends a "STOP" request only to one
+ * of the workers: in order to end all workers, use the stop() method.
+ */
+public class ProcessPool extends ProcessBase
+{
+
+  /**
+   * Factory for creating the worker processes of a pool.
+   *
+   * The create methods of the existing ProcessXxxx classes can be used
+   * directly, e.g. <code>Process4JsonStream::create</code>.
+   */
+  public static interface WorkerFactory {
+    /**
+     * Create and start one worker process.
+     * @param workingDirectory directory to use as a working directory by the process
+     * @param env environment variable settings
+     * @param command the command to run, as a list of strings
+     * @return the initialised process instance
+     */
+    public ProcessBase create(File workingDirectory, Map<String,String> env, List<String> command);
+  }
+
+  private final List<ProcessBase> workers = new ArrayList<>();
+  private final List<AtomicInteger> outstanding = new ArrayList<>();
+  private WorkerFactory factory;
+  private volatile ProcessMetrics combinedMetrics;
+
+  private ProcessPool() {}
+
+  /**
+   * Factory method to create a pool of worker processes.
+   *
+   * @param nWorkers the number of worker processes to start, must be at least 1
+   * @param factory the factory to use for creating each worker
+   * @param workingDirectory directory to use as a working directory by the processes
+   * @param env environment variable settings
+   * @param command the command to run, as a list of strings
+   * @return the initialised pool with all workers started
+   */
+  public static ProcessPool create(int nWorkers, WorkerFactory factory,
+          File workingDirectory, Map<String,String> env,  List<String> command) {
+    if(nWorkers < 1) {
+      throw new RuntimeException("Number of workers must be at least 1, not "+nWorkers);
+    }
+    ProcessPool ret = new ProcessPool();
+    if(workingDirectory != null) {
+      ret.workingDir = workingDirectory;
+    }
+    if(env != null) {
+      ret.envvars.putAll(env);
+    }
+    ret.command.addAll(command);
+    ret.factory = factory;
+    for(int i=0; i<nWorkers; i++) {
+      ret.workers.add(null);
+      ret.outstanding.add(new AtomicInteger());
+    }
+    ret.ensureProcess();
+    return ret;
+  }
+
+  /**
+   * Factory method to create a pool of worker processes.
+   *
+   * @param nWorkers the number of worker processes to start, must be at least 1
+   * @param factory the factory to use for creating each worker
+   * @param workingDirectory directory to use as a working directory by the processes
+   * @param env environment variable settings
+   * @param command the command to run, as additional parameters
+   * @return the initialised pool with all workers started
+   */
+  public static ProcessPool create(int nWorkers, WorkerFactory factory,
+          File workingDirectory, Map<String,String> env,  String... command) {
+    return create(nWorkers, factory, workingDirectory, env, Arrays.asList(command));
+  }
+
+  /**
+   * Get the number of workers in the pool.
+   * @return number of workers
+   */
+  public int size() {
+    return workers.size();
+  }
+
+  /**
+   * Get an unmodifiable view of the worker processes.
+   * @return list of workers
+   */
+  public List<ProcessBase> getWorkers() {
+    return Collections.unmodifiableList(workers);
+  }
+
+  /**
+   * Get the metrics of all workers combined.
+   * 
+   * The counts and latencies are those of all workers together, listeners
+   * get notified of the exchanges of all workers.
+   * 
+   * @return metrics
+   */
+  @Override
+  public ProcessMetrics getMetrics() {
+    ProcessMetrics ret = combinedMetrics;
+    if(ret == null) {
+      List<ProcessMetrics> parts = new ArrayList<>();
+      synchronized(workers) {
+        for(ProcessBase worker : workers) {
+          parts.add(worker.getMetrics());
+        }
+      }
+      ret = ProcessMetrics.combine(parts);
+      combinedMetrics = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * Make sure all the worker processes are running.
+   *
+   * Each worker that is not running is started (again) using the factory,
+   * or if the worker exists, its own ensureProcess() method.
+   *
+   * @return true if at least one worker got started freshly
+   */
+  @Override
+  public boolean ensureProcess() {
+    boolean started = false;
+    synchronized(workers) {
+      for(int i=0; i<workers.size(); i++) {
+        ProcessBase worker = workers.get(i);
+        if(worker == null) {
+          worker = factory.create(workingDir, envvars, command);
+          worker.setDefaultTimeout(defaultTimeout);
+          worker.setStandbyCount(getStandbyCount());
+          workers.set(i, worker);
+          started = true;
+        } else {
+          started |= worker.ensureProcess();
+        }
+      }
+    }
+    return started;
+  }
+
+  /**
+   * Process the data using the worker with the fewest outstanding requests.
+   *
+   * @param data the data to process
+   * @return the response
+   */
+  @Override
+  public Object process(Object data) {
+    int idx = leastOutstanding();
+    AtomicInteger counter = outstanding.get(idx);
+    try {
+      return workers.get(idx).process(data);
+    } finally {
+      counter.decrementAndGet();
+    }
+  }
+
+  /**
+   * Process the data using the worker with the fewest outstanding requests within the given time.
+   *
+   * If the worker does not respond in time, only that worker gets restarted.
+   *
+   * @param data the data to process
+   * @param timeout the timeout in milliseconds, 0 or less for no timeout
+   * @return the response
+   */
+  @Override
+  public Object process(Object data, long timeout) {
+    int idx = leastOutstanding();
+    AtomicInteger counter = outstanding.get(idx);
+    try {
+      return workers.get(idx).process(data, timeout);
+    } finally {
+      counter.decrementAndGet();
+    }
+  }
+
+  /**
+   * Set the default timeout of all workers.
+   *
+   * @param timeout the timeout in milliseconds, 0 for no timeout
+   */
+  @Override
+  public void setDefaultTimeout(long timeout) {
+    super.setDefaultTimeout(timeout);
+    synchronized(workers) {
+      for(ProcessBase worker : workers) {
+        worker.setDefaultTimeout(timeout);
+      }
+    }
+  }
+
+  /**
+   * Set the number of standby processes each worker keeps.
+   *
+   * @param count the number of standby processes per worker
+   */
+  @Override
+  public void setStandbyCount(int count) {
+    super.setStandbyCount(count);
+    synchronized(workers) {
+      for(ProcessBase worker : workers) {
+        worker.setStandbyCount(count);
+      }
+    }
+  }
+
+  /**
+   * Get the number of standby processes of all workers which are ready to be used.
+   * @return number of running standby processes
+   */
+  @Override
+  public int getStandbyAvailable() {
+    int ret = 0;
+    synchronized(workers) {
+      for(ProcessBase worker : workers) {
+        ret += worker.getStandbyAvailable();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Process a batch of data using the worker with the fewest outstanding requests.
+   * 
+   * The whole batch is sent to a single worker.
+   *
+   * @param data the list of data items to process
+   * @return the list of responses
+   */
+  @Override
+  public List<Object> processBatch(List<?> data) {
+    int idx = leastOutstanding();
+    AtomicInteger counter = outstanding.get(idx);
+    try {
+      return workers.get(idx).processBatch(data);
+    } finally {
+      counter.decrementAndGet();
+    }
+  }
+
+  /**
+   * Find the worker with the fewest outstanding requests and reserve it.
+   *
+   * This increments the outstanding count of the returned worker, the
+   * caller must decrement it when the request has finished.
+   *
+   * @return the index of the worker
+   */
+  private int leastOutstanding() {
+    int n = outstanding.size();
+    // start the search at a random position so that ties do not always 
+    // end up with the first worker
+    int start = ThreadLocalRandom.current().nextInt(n);
+    while(true) {
+      int best = start;
+      int bestCount = outstanding.get(best).get();
+      for(int i=1; i<n && bestCount > 0; i++) {
+        int idx = (start+i) % n;
+        int count = outstanding.get(idx).get();
+        if(count < bestCount) {
+          best = idx;
+          bestCount = count;
+        }
+      }
+      // only use the worker if no other thread grabbed it in the meantime
+      if(outstanding.get(best).compareAndSet(bestCount, bestCount+1)) {
+        return best;
+      }
+    }
+  }
+
+  /**
+   * Check if all worker processes are running.
+   * @return flag
+   */
+  @Override
+  public boolean isAlive() {
+    return !need2start();
+  }
+
+  /**
+   * Stop all the worker processes.
+   *
+   * @param timeoutPerStage the timeout in milliseconds per attempt to shut down each process
+   * @return the first non-zero exit value of any worker or 0
+   */
+  @Override
+  public int stop(int timeoutPerStage) {
+    stopRequested = true;
+    int ret = 0;
+    RuntimeException firstException = null;
+    synchronized(workers) {
+      for(ProcessBase worker : workers) {
+        if(worker == null) {
+          continue;
+        }
+        try {
+          int exitValue = worker.stop(timeoutPerStage);
+          if(ret == 0) {
+            ret = exitValue;
+          }
+        } catch(RuntimeException ex) {
+          if(firstException == null) {
+            firstException = ex;
+          }
+        }
+      }
+    }
+    if(firstException != null) {
+      throw firstException;
+    }
+    return ret;
+  }
+
+  ///////////////////////////////////////////////////////////////////
+
+  @Override
+  protected void setupInteraction() {
+    // the workers set up their own interaction
+  }
+
+  @Override
+  protected void stopInteraction() {
+    // the workers end their own interaction in stop(int)
+  }
+
+  @Override
+  protected boolean need2start() {
+    synchronized(workers) {
+      for(ProcessBase worker : workers) {
+        if(worker == null || worker.need2start()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+}
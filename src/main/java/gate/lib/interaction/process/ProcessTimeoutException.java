@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process;
+
+/**
+ * Thrown when the process did not respond within the timeout.
+ */
+public class ProcessTimeoutException extends RuntimeException {
+  
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Create the exception.
+   * @param message the message
+   */
+  public ProcessTimeoutException(String message) {
+    super(message);
+  }
+  
+  /**
+   * Create the exception.
+   * @param message the message
+   * @param cause the exception which was thrown because the process got stopped
+   */
+  public ProcessTimeoutException(String message, Throwable cause) {
+    super(message, cause);
+  }
+  
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A memory-mapped file shared between our process and the external process.
+ * <p>
+ * This can be used by ProcessBase subclasses to pass large payloads
+ * without pushing them through the pipe: the payload gets written into
+ * the region and only a small descriptor with offset and length gets
+ * sent over the pipe. The external process maps the same file and reads
+ * the payload from there.
+ * <p>
+ * The region is divided into two halves: the first half is for requests
+ * and written only by us, the second half is for responses and written
+ * only by the external process. The request half is managed as a ring:
+ * allocate() reserves space after the most recent allocation, wrapping
+ * around to the start if necessary, and release() frees the oldest
+ * allocation. How the response half is used is up to the external process.
+ * <p>
+ * By default, the file is created in /dev/shm if that exists, so that
+ * on Linux the region is backed by memory only.
+ */
+public class SharedMemoryRegion implements Closeable {
+
+  private final File file;
+  private final int size;
+  private final int requestCapacity;
+  private final MappedByteBuffer buffer;
+
+  // ring state for the request half
+  private final Deque<int[]> allocations = new ArrayDeque<>();
+  private int head = 0;
+  private int tail = 0;
+  private boolean wrapped = false;
+
+  /**
+   * Create a region backed by the given file.
+   *
+   * The file is created or truncated and gets deleted when the region is closed.
+   *
+   * @param file the file to use
+   * @param size the size of the region in bytes, must be at least 2
+   */
+  public SharedMemoryRegion(File file, int size) {
+    if(size < 2) {
+      throw new RuntimeException("Size of the shared memory region must be at least 2, not "+size);
+    }
+    this.file = file;
+    this.size = size;
+    this.requestCapacity = size / 2;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(0);
+      raf.setLength(size);
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException ex) {
+      file.delete();
+      throw new RuntimeException("Could not create the shared memory region "+file, ex);
+    }
+  }
+
+  /**
+   * Create a region backed by a new temporary file.
+   *
+   * The file is created in /dev/shm if that directory exists, otherwise
+   * in the default temporary directory.
+   *
+   * @param size the size of the region in bytes
+   * @return the region
+   */
+  public static SharedMemoryRegion create(int size) {
+    File dir = new File("/dev/shm");
+    if(!dir.isDirectory() || !dir.canWrite()) {
+      dir = null;
+    }
+    File file;
+    try {
+      file = File.createTempFile("gatelib-interaction-", ".shm", dir);
+    } catch (IOException ex) {
+      throw new RuntimeException("Could not create file for shared memory region", ex);
+    }
+    return new SharedMemoryRegion(file, size);
+  }
+
+  /**
+   * Get the file which backs the region.
+   * @return file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Get the size of the whole region.
+   * @return size in bytes
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Get the offset where the response half starts.
+   * The request half starts at offset 0 and ends before this offset.
+   * @return offset in bytes
+   */
+  public int getResponseOffset() {
+    return requestCapacity;
+  }
+
+  /**
+   * Reserve space in the request half.
+   *
+   * @param len number of bytes to reserve
+   * @return the offset of the reserved space or -1 if there is not enough
+   * contiguous free space
+   */
+  public synchronized int allocate(int len) {
+    if(len <= 0 || len > requestCapacity) {
+      return -1;
+    }
+    int offset;
+    if(!wrapped) {
+      // free space is from tail to the end and from the start to head
+      if(requestCapacity - tail >= len) {
+        offset = tail;
+        tail += len;
+      } else if(head >= len) {
+        offset = 0;
+        tail = len;
+        wrapped = true;
+      } else {
+        return -1;
+      }
+    } else {
+      // free space is from tail to head
+      if(head - tail >= len) {
+        offset = tail;
+        tail += len;
+      } else {
+        return -1;
+      }
+    }
+    allocations.addLast(new int[] { offset, len });
+    return offset;
+  }
+
+  /**
+   * Release the oldest allocation in the request half.
+   */
+  public synchronized void release() {
+    int[] oldest = allocations.pollFirst();
+    if(oldest == null) {
+      return;
+    }
+    int[] next = allocations.peekFirst();
+    if(next == null) {
+      head = 0;
+      tail = 0;
+      wrapped = false;
+    } else {
+      if(next[0] < oldest[0]) {
+        // we moved past the point where allocation wrapped around
+        wrapped = false;
+      }
+      head = next[0];
+    }
+  }
+
+  /**
+   * Get the number of allocations which have not been released yet.
+   * @return number of allocations
+   */
+  public synchronized int getAllocationCount() {
+    return allocations.size();
+  }
+
+  /**
+   * Copy the remaining bytes of a buffer into the region.
+   *
+   * The position of the source buffer is not changed.
+   *
+   * @param offset where to write in the region
+   * @param src the bytes to write
+   */
+  public void write(int offset, ByteBuffer src) {
+    ByteBuffer dest = buffer.duplicate();
+    // NOTE: call these via Buffer so the code also runs on Java 8
+    ((Buffer)dest).position(offset);
+    dest.put(src.duplicate());
+  }
+
+  /**
+   * Get a read-only view of part of the region, without copying.
+   *
+   * @param offset the start of the part
+   * @param len the length of the part
+   * @return view positioned at the start of the part
+   */
+  public ByteBuffer slice(int offset, int len) {
+    if(offset < 0 || len < 0 || (long)offset + len > size) {
+      throw new RuntimeException("Invalid part of shared memory region: offset="+offset+", length="+len);
+    }
+    ByteBuffer view = buffer.asReadOnlyBuffer();
+    Buffer b = view;
+    b.position(offset);
+    b.limit(offset + len);
+    return view.slice();
+  }
+
+  /**
+   * Close the region and delete the file.
+   *
+   * The memory mapping itself is only removed once the buffer gets
+   * garbage collected.
+   */
+  @Override
+  public void close() {
+    file.delete();
+  }
+
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies the output streams of processes using a single shared thread.
+ *
+ * Instead of one thread per stream which blocks in read(), the pump
+ * thread polls all streams using available() and only reads what is
+ * there, so reading never blocks and one thread can serve any number
+ * of processes. When none of the streams had anything to read, the
+ * thread waits for an increasing time of up to
+ * {@link #MAX_IDLE_WAIT_MS} milliseconds.
+ * <p>
+ * Each stream either gets copied byte by byte to an output stream,
+ * which is flushed once per round over all streams, or routed line by
+ * line to an SLF4J logger. Lines sent to a logger are rate limited, see
+ * {@link #setMaxLogLinesPerSecond(int)}. For each stream, the last few
+ * lines are kept, see {@link Source#getRecentLines()}, which is useful
+ * for finding out why a process died.
+ * <p>
+ * A stream is finished when reading from it fails, e.g. because it was
+ * closed, or when the process it belongs to has ended and everything
+ * it wrote has been read.
+ */
+public class StreamPump {
+
+  /**
+   * The maximum time in milliseconds the pump waits before polling again.
+   */
+  public static final int MAX_IDLE_WAIT_MS = 20;
+
+  /**
+   * Lines longer than this many bytes get split.
+   */
+  public static final int MAX_LINE_BYTES = 8192;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StreamPump.class);
+
+  private static final StreamPump DEFAULT = new StreamPump("StreamPump");
+
+  private final String threadName;
+  private final List<Source> sources = new CopyOnWriteArrayList<>();
+  private Thread thread;
+  private volatile int recentLines = 100;
+  private volatile int maxLogLinesPerSecond = 1000;
+
+  /**
+   * Create a pump with its own thread.
+   *
+   * Normally the shared instance from {@link #getDefault()} should be used.
+   *
+   * @param threadName the name of the pump thread
+   */
+  public StreamPump(String threadName) {
+    this.threadName = threadName;
+  }
+
+  /**
+   * Get the pump which is shared by all process instances.
+   * @return the shared pump
+   */
+  public static StreamPump getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Set the number of most recent lines to keep for each stream added later.
+   * @param lines number of lines, 0 to not keep any
+   */
+  public void setRecentLines(int lines) {
+    if(lines < 0) {
+      throw new RuntimeException("Number of recent lines must not be negative: "+lines);
+    }
+    recentLines = lines;
+  }
+
+  /**
+   * Get the number of most recent lines kept for each stream.
+   * @return number of lines
+   */
+  public int getRecentLines() {
+    return recentLines;
+  }
+
+  /**
+   * Set the maximum number of lines per second logged for each stream added later.
+   *
+   * Lines which exceed the limit are not logged, but still kept as recent
+   * lines, and the number of dropped lines is logged as a warning once
+   * logging is possible again.
+   *
+   * @param lines maximum number of lines per second, 0 for no limit
+   */
+  public void setMaxLogLinesPerSecond(int lines) {
+    if(lines < 0) {
+      throw new RuntimeException("Number of lines per second must not be negative: "+lines);
+    }
+    maxLogLinesPerSecond = lines;
+  }
+
+  /**
+   * Get the maximum number of lines per second logged for each stream.
+   * @return maximum number of lines per second, 0 for no limit
+   */
+  public int getMaxLogLinesPerSecond() {
+    return maxLogLinesPerSecond;
+  }
+
+  /**
+   * Start copying a process stream to an output stream.
+   *
+   * @param in the process stream to copy
+   * @param out where to copy the stream to
+   * @param owner the process the stream belongs to or null if the stream
+   * only ends by throwing an exception when read
+   * @return the source for the copied stream
+   */
+  public Source add(InputStream in, OutputStream out, Process owner) {
+    return add(new Source(in, out, null, owner, recentLines, maxLogLinesPerSecond));
+  }
+
+  /**
+   * Start logging the lines of a process stream.
+   *
+   * Each line gets logged with level info.
+   *
+   * @param in the process stream to copy
+   * @param logger the logger to use
+   * @param owner the process the stream belongs to or null if the stream
+   * only ends by throwing an exception when read
+   * @return the source for the copied stream
+   */
+  public Source add(InputStream in, Logger logger, Process owner) {
+    return add(new Source(in, null, logger, owner, recentLines, maxLogLinesPerSecond));
+  }
+
+  private Source add(Source source) {
+    sources.add(source);
+    synchronized(this) {
+      if(thread == null) {
+        thread = Threads.start(threadName, this::run);
+      } else {
+        LockSupport.unpark(thread);
+      }
+    }
+    return source;
+  }
+
+  /**
+   * Get the number of streams which are currently being copied.
+   * @return number of streams
+   */
+  public int size() {
+    return sources.size();
+  }
+
+  private void run() {
+    byte[] buffer = new byte[MAX_LINE_BYTES];
+    long waitNanos = 0;
+    Set<OutputStream> toFlush = Collections.newSetFromMap(new IdentityHashMap<>());
+    List<Source> done = new ArrayList<>();
+    while(true) {
+      boolean gotData = false;
+      for(Source source : sources) {
+        int status = source.pump(buffer);
+        if(status > 0) {
+          gotData = true;
+          if(source.out != null && !source.outFailed) {
+            toFlush.add(source.out);
+          }
+        } else if(status < 0) {
+          done.add(source);
+        }
+      }
+      for(OutputStream out : toFlush) {
+        try {
+          out.flush();
+        } catch (IOException ex) {
+          LOGGER.error("Could not flush the copy of a process stream", ex);
+        }
+      }
+      toFlush.clear();
+      if(!done.isEmpty()) {
+        sources.removeAll(done);
+        done.clear();
+      }
+      if(gotData) {
+        waitNanos = 0;
+        continue;
+      }
+      synchronized(this) {
+        if(sources.isEmpty()) {
+          thread = null;
+          return;
+        }
+      }
+      waitNanos = Math.min(Math.max(2*waitNanos, 100_000L), MAX_IDLE_WAIT_MS*1_000_000L);
+      LockSupport.parkNanos(waitNanos);
+    }
+  }
+
+  /**
+   * A stream which is copied by the pump.
+   */
+  public static final class Source {
+    private final InputStream in;
+    private final OutputStream out;
+    private final Logger logger;
+    private final Process owner;
+    // the recent lines, as a ring buffer of byte arrays which get reused
+    private final byte[][] recent;
+    private final int[] recentLengths;
+    private int recentNext = 0;
+    private int recentSize = 0;
+    // the current incomplete line
+    private byte[] line = new byte[128];
+    private int lineLength = 0;
+    private final boolean splitLines;
+    // rate limiting for logging
+    private final int maxLinesPerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long pendingSuppressed = 0;
+    private volatile long suppressed = 0;
+    private volatile long bytes = 0;
+    private volatile boolean finished = false;
+    private boolean outFailed = false;
+    private boolean stopped = false;
+
+    private Source(InputStream in, OutputStream out, Logger logger, Process owner,
+            int recentLines, int maxLinesPerSecond) {
+      this.in = in;
+      this.out = out;
+      this.logger = logger;
+      this.owner = owner;
+      this.recent = new byte[recentLines][];
+      this.recentLengths = new int[recentLines];
+      this.splitLines = logger != null || recentLines > 0;
+      this.maxLinesPerSecond = maxLinesPerSecond;
+      this.tokens = maxLinesPerSecond;
+    }
+
+    /**
+     * Read whatever is available without blocking and pass it on.
+     * @param buffer the buffer to use for reading
+     * @return 1 if something was read, 0 if nothing was available, -1 if finished
+     */
+    private synchronized int pump(byte[] buffer) {
+      if(stopped) {
+        return -1;
+      }
+      try {
+        // check if the process has ended before checking what is available,
+        // so that we do not miss anything written just before it ended
+        boolean ended = owner != null && !owner.isAlive();
+        int available = in.available();
+        if(available <= 0) {
+          if(ended) {
+            finish();
+            return -1;
+          }
+          return 0;
+        }
+        int n = in.read(buffer, 0, Math.min(available, buffer.length));
+        if(n < 0) {
+          finish();
+          return -1;
+        }
+        bytes += n;
+        if(out != null && !outFailed) {
+          try {
+            out.write(buffer, 0, n);
+          } catch (IOException ex) {
+            // keep draining the process stream so the process does not block
+            LOGGER.error("Could not copy a process stream, discarding the rest", ex);
+            outFailed = true;
+          }
+        }
+        if(splitLines) {
+          addBytes(buffer, n);
+        }
+        return 1;
+      } catch (IOException ex) {
+        // this normally means the stream got closed
+        finish();
+        return -1;
+      }
+    }
+
+    private void addBytes(byte[] buffer, int n) {
+      int start = 0;
+      for(int i=0; i<n; i++) {
+        if(buffer[i] == '\n') {
+          appendToLine(buffer, start, i-start);
+          endLine();
+          start = i+1;
+        }
+      }
+      appendToLine(buffer, start, n-start);
+    }
+
+    private void appendToLine(byte[] buffer, int from, int length) {
+      while(length > 0) {
+        if(lineLength == MAX_LINE_BYTES) {
+          endLine();
+        }
+        int toCopy = Math.min(length, MAX_LINE_BYTES-lineLength);
+        if(lineLength+toCopy > line.length) {
+          byte[] tmp = new byte[Math.min(MAX_LINE_BYTES, Math.max(lineLength+toCopy, 2*line.length))];
+          System.arraycopy(line, 0, tmp, 0, lineLength);
+          line = tmp;
+        }
+        System.arraycopy(buffer, from, line, lineLength, toCopy);
+        lineLength += toCopy;
+        from += toCopy;
+        length -= toCopy;
+      }
+    }
+
+    private void endLine() {
+      int length = lineLength;
+      if(length > 0 && line[length-1] == '\r') {
+        length--;
+      }
+      if(recent.length > 0) {
+        synchronized(recent) {
+          byte[] slot = recent[recentNext];
+          if(slot == null || slot.length < length) {
+            slot = new byte[Math.max(length, 64)];
+            recent[recentNext] = slot;
+          }
+          System.arraycopy(line, 0, slot, 0, length);
+          recentLengths[recentNext] = length;
+          recentNext = (recentNext+1) % recent.length;
+          if(recentSize < recent.length) {
+            recentSize++;
+          }
+        }
+      }
+      if(logger != null) {
+        log(new String(line, 0, length, StandardCharsets.UTF_8));
+      }
+      lineLength = 0;
+    }
+
+    private void log(String text) {
+      if(maxLinesPerSecond > 0) {
+        long now = System.nanoTime();
+        tokens = Math.min(maxLinesPerSecond,
+                tokens + (now-lastRefill) * maxLinesPerSecond / 1e9);
+        lastRefill = now;
+        if(tokens < 1) {
+          pendingSuppressed++;
+          suppressed++;
+          return;
+        }
+        tokens -= 1;
+      }
+      logSuppressed();
+      logger.info(text);
+    }
+
+    private void logSuppressed() {
+      if(pendingSuppressed > 0) {
+        logger.warn("{} lines of process output were not logged because of the rate limit",
+                pendingSuppressed);
+        pendingSuppressed = 0;
+      }
+    }
+
+    private void finish() {
+      if(lineLength > 0) {
+        endLine();
+      }
+      if(logger != null) {
+        logSuppressed();
+      }
+      if(out != null && !outFailed) {
+        try {
+          out.flush();
+        } catch (IOException ex) {
+          // ignore
+        }
+      }
+      finished = true;
+    }
+
+    /**
+     * Stop copying the stream.
+     *
+     * Once this returns, the pump does not read from the stream any more,
+     * so that it can be read by someone else, starting exactly where the
+     * copy ended.
+     */
+    public synchronized void stop() {
+      stopped = true;
+    }
+
+    /**
+     * Get the most recent complete lines of the stream, oldest first.
+     *
+     * Once the stream is finished, this includes the last line even if
+     * it did not end with a newline.
+     *
+     * @return the lines
+     */
+    public List<String> getRecentLines() {
+      synchronized(recent) {
+        List<String> ret = new ArrayList<>(recentSize);
+        for(int i=0; i<recentSize; i++) {
+          int idx = (recentNext-recentSize+i+recent.length) % recent.length;
+          ret.add(new String(recent[idx], 0, recentLengths[idx], StandardCharsets.UTF_8));
+        }
+        return ret;
+      }
+    }
+
+    /**
+     * Check if the stream has been copied completely.
+     * @return flag
+     */
+    public boolean isFinished() {
+      return finished;
+    }
+
+    /**
+     * Wait until the stream has been copied completely.
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if the stream is finished
+     */
+    public boolean awaitFinished(long timeout) {
+      long end = System.currentTimeMillis()+timeout;
+      while(!finished && System.currentTimeMillis() < end) {
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      return finished;
+    }
+
+    /**
+     * Get the number of bytes read from the stream so far.
+     * @return number of bytes
+     */
+    public long getBytesCopied() {
+      return bytes;
+    }
+
+    /**
+     * Get the number of lines which were not logged because of the rate limit.
+     * @return number of lines
+     */
+    public long getLinesSuppressed() {
+      return suppressed;
+    }
+  }
+
+}
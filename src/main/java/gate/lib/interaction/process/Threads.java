@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates all the threads used by the library.
+ *
+ * This is the implementation for Java 8 to 20, which uses daemon platform
+ * threads. The jar contains a second implementation for Java 21 and later
+ * which uses virtual threads, so that waiting for processes and copying
+ * their output does not tie up platform threads. That implementation
+ * can be turned off by setting the system property
+ * <code>gate.lib.interaction.virtualThreads</code> to <code>false</code>.
+ */
+public final class Threads {
+
+  private static final AtomicInteger ASYNC_COUNT = new AtomicInteger();
+
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "gatelib-interaction-async-"+ASYNC_COUNT.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  });
+
+  private Threads() {}
+
+  /**
+   * Check if virtual threads are used.
+   * @return flag
+   */
+  public static boolean isVirtual() {
+    return false;
+  }
+
+  /**
+   * Start a daemon thread.
+   * @param name the name of the thread
+   * @param task what to run in the thread
+   * @return the started thread
+   */
+  public static Thread start(String name, Runnable task) {
+    Thread t = new Thread(task, name);
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+
+  /**
+   * Get a factory for daemon threads, e.g. for a scheduled executor.
+   * @param name the name of the threads
+   * @return the thread factory
+   */
+  public static ThreadFactory factory(String name) {
+    return r -> {
+      Thread t = new Thread(r, name);
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  /**
+   * Get the executor for running asynchronous requests.
+   *
+   * Each task may block for as long as the process takes to respond,
+   * so the executor does not limit the number of threads.
+   *
+   * @return the shared executor
+   */
+  public static ExecutorService executor() {
+    return EXECUTOR;
+  }
+
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.http;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gate.lib.interaction.process.Threads;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The response records of a streamed NDJSON request.
+ *
+ * The request records are written as newline-delimited JSON in a
+ * chunked request body by a separate thread, while the records of
+ * the streamed NDJSON response are parsed one at a time when they are
+ * requested from this iterator. So neither side has to hold the whole
+ * batch and the server can send responses while it still receives
+ * records. The request and the response body may be gzip compressed.
+ * <p>
+ * This uses its own HTTP/1.1 connection, which gets closed once the
+ * response has been read completely or close() is called. If anything
+ * goes wrong, hasNext() or next() throw a RuntimeException.
+ * <p>
+ * The connection is not made through the HTTP client used for the other
+ * requests, because that client sends the whole request before it reads
+ * the response. This has the following limits: only http and https URIs
+ * are supported, no proxy is used, redirects are not followed and 
+ * interim 1xx responses (e.g. 100 Continue) are skipped. The number of 
+ * concurrent streams is limited by ProcessHttp.setMaxConnections(), 
+ * separately from the other requests.
+ */
+public final class NdjsonStream implements Iterator<Map<String,Object>>, Closeable {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper()
+          .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+
+  private final Socket socket;
+  private final Runnable onClose;
+  private volatile Throwable writeError = null;
+  private MappingIterator<Map<String,Object>> records;
+  private boolean closed = false;
+
+  /**
+   * Send the request and read the header of the response.
+   *
+   * @param uri the http or https URI, including the query
+   * @param input the records to send
+   * @param compress if the request should be compressed and a compressed response accepted
+   * @param connectTimeout the timeout for connecting in milliseconds
+   * @param readTimeout the timeout for waiting for data of the response in milliseconds
+   * @param onClose called when the connection gets closed, may be called 
+   * more than once, may be null
+   */
+  NdjsonStream(URI uri,
+          Iterator<? extends Map<String,?>> input, boolean compress,
+          int connectTimeout, int readTimeout, Runnable onClose) {
+    this.onClose = onClose;
+    String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+    boolean secure = scheme.equals("https");
+    String host = uri.getHost();
+    int port = uri.getPort() >= 0 ? uri.getPort() : secure ? 443 : 80;
+    String pathAndQuery = (uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath()) +
+            (uri.getRawQuery() == null ? "" : "?"+uri.getRawQuery());
+    Socket plain = new Socket();
+    Socket connected = plain;
+    try {
+      if(!secure && !scheme.equals("http")) {
+        throw new IOException("Only http and https URIs are supported");
+      }
+      plain.connect(new InetSocketAddress(host, port), connectTimeout);
+      if(secure) {
+        connected = ((SSLSocketFactory)SSLSocketFactory.getDefault()).createSocket(plain, host, port, true);
+      }
+      connected.setSoTimeout(readTimeout);
+      connected.setTcpNoDelay(true);
+    } catch (IOException | RuntimeException ex) {
+      closeSocket(connected);
+      if(onClose != null) {
+        onClose.run();
+      }
+      throw new RuntimeException("Could not connect to "+uri, ex);
+    }
+    socket = connected;
+    try {
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+      StringBuilder head = new StringBuilder();
+      head.append("POST ").append(pathAndQuery).append(" HTTP/1.1\r\n");
+      head.append("Host: ").append(host).append(":").append(port).append("\r\n");
+      head.append("Content-Type: application/x-ndjson; charset=UTF-8\r\n");
+      head.append("Accept: application/x-ndjson\r\n");
+      head.append("Transfer-Encoding: chunked\r\n");
+      if(compress) {
+        head.append("Content-Encoding: gzip\r\n");
+        head.append("Accept-Encoding: gzip\r\n");
+      }
+      head.append("Connection: close\r\n\r\n");
+      out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+      Threads.start("NdjsonStream-writer", () -> writeRecords(out, input, compress));
+      readResponseHead();
+    } catch (IOException | RuntimeException ex) {
+      closeQuietly();
+      if(writeError != null) {
+        ex.addSuppressed(writeError);
+      }
+      throw new RuntimeException("Could not stream the request to "+uri, ex);
+    }
+  }
+
+  /**
+   * Write all records as the chunked request body.
+   */
+  private void writeRecords(OutputStream out, Iterator<? extends Map<String,?>> input, boolean compress) {
+    try {
+      ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+      OutputStream body = compress
+              ? new GZIPOutputStream(chunked, 65536)
+              : new BufferedOutputStream(chunked, 65536);
+      while(input.hasNext()) {
+        MAPPER.writeValue(body, input.next());
+        body.write('\n');
+      }
+      // this finishes the gzip stream and writes the last chunk, but does
+      // not close the socket
+      body.close();
+      out.flush();
+    } catch (IOException | RuntimeException ex) {
+      writeError = ex;
+      // make the reading side stop waiting for a response
+      closeQuietly();
+    }
+  }
+
+  private void readResponseHead() throws IOException {
+    InputStream in = new BufferedInputStream(socket.getInputStream(), 65536);
+    String statusLine;
+    int status;
+    Map<String,String> headers = new HashMap<>();
+    // skip interim responses, e.g. 100 Continue, which only have a header
+    do {
+      statusLine = readLine(in);
+      String[] parts = statusLine.split(" ", 3);
+      if(parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+        throw new IOException("Not a HTTP response: "+statusLine);
+      }
+      status = Integer.parseInt(parts[1]);
+      headers.clear();
+      String line;
+      while(!(line = readLine(in)).isEmpty()) {
+        int idx = line.indexOf(':');
+        if(idx > 0) {
+          headers.put(line.substring(0, idx).trim().toLowerCase(Locale.ROOT), line.substring(idx+1).trim());
+        }
+      }
+    } while(status >= 100 && status < 200 && status != 101);
+    InputStream body;
+    if("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+      body = new ChunkedInputStream(in);
+    } else if(headers.containsKey("content-length")) {
+      body = new LimitedInputStream(in, Long.parseLong(headers.get("content-length")));
+    } else {
+      body = in;
+    }
+    if("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+      body = new GZIPInputStream(body, 65536);
+    }
+    if(status < 200 || status >= 300) {
+      ByteArrayOutputStream error = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int n;
+      while(error.size() < 4096 && (n = body.read(buf)) > 0) {
+        error.write(buf, 0, n);
+      }
+      throw new IOException("Server responded with "+statusLine+": "+
+              new String(error.toByteArray(), StandardCharsets.UTF_8));
+    }
+    records = MAPPER.readerFor(Map.class).readValues(body);
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while((c = in.read()) != '\n') {
+      if(c < 0) {
+        throw new EOFException("Connection closed while reading the response");
+      }
+      if(c != '\r') {
+        sb.append((char)c);
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public boolean hasNext() {
+    if(closed) {
+      return false;
+    }
+    try {
+      if(records.hasNextValue()) {
+        return true;
+      }
+    } catch (IOException | RuntimeException ex) {
+      closeQuietly();
+      RuntimeException rex = new RuntimeException("Could not read the streamed response", ex);
+      if(writeError != null) {
+        rex.addSuppressed(writeError);
+      }
+      throw rex;
+    }
+    closeQuietly();
+    if(writeError != null) {
+      throw new RuntimeException("Could not stream the request", writeError);
+    }
+    return false;
+  }
+
+  @Override
+  public Map<String,Object> next() {
+    if(!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    try {
+      return records.nextValue();
+    } catch (IOException ex) {
+      closeQuietly();
+      throw new RuntimeException("Could not read the streamed response", ex);
+    }
+  }
+
+  /**
+   * Close the connection, even if not all of the response has been read.
+   */
+  @Override
+  public void close() {
+    closeQuietly();
+  }
+
+  private void closeQuietly() {
+    closed = true;
+    closeSocket(socket);
+    if(onClose != null) {
+      onClose.run();
+    }
+  }
+
+  private static void closeSocket(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException ex) {
+      // ignore
+    }
+  }
+
+  /**
+   * Add query parameters to a URI.
+   * @param uri the URI
+   * @param parms the query parameters or null
+   * @return the URI with the parameters
+   */
+  static URI withQuery(String uri, Map<String,String> parms) {
+    StringBuilder sb = new StringBuilder(uri);
+    char sep = uri.contains("?") ? '&' : '?';
+    try {
+      if(parms != null) {
+        for(Map.Entry<String,String> entry : parms.entrySet()) {
+          sb.append(sep).append(URLEncoder.encode(entry.getKey(), "UTF-8"))
+                  .append('=').append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+          sep = '&';
+        }
+      }
+      return new URI(sb.toString());
+    } catch (IOException | URISyntaxException ex) {
+      throw new RuntimeException("Could not create the URI for "+uri, ex);
+    }
+  }
+
+  /**
+   * Writes everything as HTTP chunks, close() writes the last chunk
+   * without closing the underlying stream.
+   */
+  private static class ChunkedOutputStream extends FilterOutputStream {
+    ChunkedOutputStream(OutputStream out) {
+      super(out);
+    }
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte)b}, 0, 1);
+    }
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if(len == 0) {
+        return;
+      }
+      out.write((Integer.toHexString(len)+"\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      out.write(b, off, len);
+      out.write('\r');
+      out.write('\n');
+    }
+    @Override
+    public void close() throws IOException {
+      out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+      out.flush();
+    }
+  }
+
+  /**
+   * Reads the body of a chunked response.
+   */
+  private static class ChunkedInputStream extends InputStream {
+    private final InputStream in;
+    private long remaining = 0;
+    private boolean eof = false;
+    ChunkedInputStream(InputStream in) {
+      this.in = in;
+    }
+    private boolean nextChunk() throws IOException {
+      if(eof) {
+        return false;
+      }
+      if(remaining == 0) {
+        String line = readLine(in);
+        int idx = line.indexOf(';');
+        remaining = Long.parseLong((idx < 0 ? line : line.substring(0, idx)).trim(), 16);
+        if(remaining == 0) {
+          // skip any trailers
+          while(!readLine(in).isEmpty()) {
+            // nothing to do
+          }
+          eof = true;
+          return false;
+        }
+      }
+      return true;
+    }
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+    }
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if(len == 0) {
+        return 0;
+      }
+      if(!nextChunk()) {
+        return -1;
+      }
+      int n = in.read(b, off, (int)Math.min(len, remaining));
+      if(n < 0) {
+        throw new EOFException("Connection closed within a chunk");
+      }
+      remaining -= n;
+      if(remaining == 0) {
+        // the CRLF after the chunk
+        readLine(in);
+      }
+      return n;
+    }
+  }
+
+  /**
+   * Reads the body of a response with a content length.
+   */
+  private static class LimitedInputStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+    LimitedInputStream(InputStream in, long length) {
+      this.in = in;
+      this.remaining = length;
+    }
+    @Override
+    public int read() throws IOException {
+      if(remaining <= 0) {
+        return -1;
+      }
+      int c = in.read();
+      if(c >= 0) {
+        remaining--;
+      }
+      return c;
+    }
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if(remaining <= 0) {
+        return -1;
+      }
+      int n = in.read(b, off, (int)Math.min(len, remaining));
+      if(n > 0) {
+        remaining -= n;
+      }
+      return n;
+    }
+  }
+
+}
@@ -20,19 +20,54 @@
 package gate.lib.interaction.process.http;
 
 import java.net.ServerSocket;
+import kong.unirest.Config;
+import kong.unirest.HttpRequestWithBody;
 import kong.unirest.HttpResponse;
-import kong.unirest.Unirest;
+import kong.unirest.RequestBodyEntity;
 import kong.unirest.UnirestException;
+import kong.unirest.UnirestInstance;
 import gate.lib.interaction.process.ProcessSimple;
+import gate.lib.interaction.process.Threads;
 import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.util.SocketUtils;
 
 
 /**
+ * Exchange strings or streams of JSON records with a server over HTTP.
+ * 
+ * Each instance has its own HTTP client with a pool of keep-alive 
+ * connections to the server, so that many requests, including 
+ * asynchronous requests from processStringAsync(), can be sent 
+ * concurrently without opening a new connection for each request.
+ * The client is created by start() and shut down by stop().
+ * <p>
+ * Several identical server instances can be run on different ports,
+ * see setInstances(int). Requests are then spread across the instances
+ * and instances which died get restarted.
  *
  * @author Johann Petrak
  */
@@ -59,12 +94,39 @@ public class ProcessHttp {
   private int port = 57117;
   private String host = "127.0.0.1";
   private ServerSocket socket = null;
-  private String uri = "${host}:${port}${path}";
+  private String uri = "http://${host}:${port}${path}";
+  // the URI before the variables got replaced, for creating instances
+  private String uriTemplate = null;
   private List<String> command;
-  private ProcessState state = ProcessState.NOT_STARTED;
-  private Map<String,String> env;
+  private volatile ProcessState state = ProcessState.NOT_STARTED;
+  private Map<String,String> env = new HashMap<>();
   private File workingDir = new File(".");
   private ProcessSimple process;
+  private UnirestInstance client;
+  // limits the concurrent streams, which do not use the client
+  private Semaphore streamConnections;
+  private int maxConnections = 200;
+  private int connectTimeout = 10000;
+  private int requestTimeout = 60000;
+  private long readyTimeout = 0;
+  private boolean compression = false;
+  private String healthPath = null;
+  private final List<WarmupRequest> warmupRequests = new ArrayList<>();
+  private long timeToReady = -1;
+  private long warmupTime = -1;
+  // multi-instance mode
+  private int instanceCount = 1;
+  private int fromPort = -1;
+  private int toPort = -1;
+  private List<Instance> instances = null;
+  private final AtomicInteger restarts = new AtomicInteger();
+  
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProcessHttp.class);
+  
+  // the delay before the second attempt to restart an instance, which 
+  // doubles with each further attempt up to the maximum
+  private static final long RESTART_DELAY_MS = 500;
+  private static final long MAX_RESTART_DELAY_MS = 30000;
   
   /**
    * Set the host address.
@@ -87,17 +149,15 @@ public class ProcessHttp {
    * This sets the port to use. Note: the port is not immediately used,
    * so the user should make sure that this port number is not used by
    * any other process on the same system until the server is started. 
+   * If a command to run the server is set, start() checks that the port 
+   * is available, otherwise the port is expected to be used by the server
+   * which is already running.
    * @param port the port to use
    * @return modified ProcessHttp instance
    */
   public ProcessHttp setPort(int port) {
     ensure(ProcessState.NOT_STARTED);
-    try {
-      this.port = SocketUtils.findAvailableTcpPort(port, port);
-    } catch (Exception ex) {
-      state = ProcessState.ENDED_OR_ABORTED;
-      throw new RuntimeException("Port not available:"+port);
-    }
+    this.port = port;
     return this;
   }
   
@@ -113,6 +173,113 @@ public class ProcessHttp {
     return this;
   }
 
+  /**
+   * Run several instances of the server.
+   * 
+   * Each instance is started with the command set by setRunServerCmd(),
+   * which is required for this, on its own free port: 
+   * the placeholder ${port} gets replaced by the port of the instance.
+   * The ports are taken from the range set with setPort(int, int), or if 
+   * only a port was set, from the port upwards. All other settings apply 
+   * to each instance, e.g. setMaxConnections() limits the connections to 
+   * each instance and each instance gets checked for readiness and warmed
+   * up. The instances are started in parallel.
+   * <p>
+   * Each request is sent to the one with fewer requests in flight of two 
+   * randomly chosen instances. If the process of an instance ended or 
+   * the connection to it is refused, the instance does not get any further
+   * requests until it has been restarted in the background, and the 
+   * request which failed is sent to another instance once. If restarting
+   * fails, it is tried again with increasing delays until it works or 
+   * the process gets stopped.
+   * 
+   * @param count the number of instances, default is 1
+   * @return  modified ProcessHttp instance
+   */
+  public ProcessHttp setInstances(int count) {
+    ensure(ProcessState.NOT_STARTED);
+    if(count < 1) {
+      throw new RuntimeException("Number of instances must be at least 1, not "+count);
+    }
+    instanceCount = count;
+    return this;
+  }
+  
+  /**
+   * Get the ports of the running server instances.
+   * @return list of ports, with only one port if only one instance is used
+   */
+  public List<Integer> getPorts() {
+    if(instances == null) {
+      return Collections.singletonList(port);
+    }
+    List<Integer> ret = new ArrayList<>(instances.size());
+    for(Instance instance : instances) {
+      ret.add(instance.http.port);
+    }
+    return ret;
+  }
+  
+  /**
+   * Get how often server instances have been restarted after they died.
+   * @return number of restarts
+   */
+  public int getRestarts() {
+    return restarts.get();
+  }
+  
+  /**
+   * Set the environment variables for the process to run the command.
+   * This is only used if the command is set as well.
+   * @param env the environment variable settings
+   * @return  modified ProcessHttp instance
+   */
+  public ProcessHttp setEnv(Map<String,String> env) {
+    ensure(ProcessState.NOT_STARTED);
+    this.env = new HashMap<>(env);
+    return this;
+  }
+  
+  /**
+   * Set the maximum number of connections to the server.
+   * This limits how many requests can be sent concurrently, any other
+   * requests wait until a connection becomes free.
+   * @param max maximum number of connections, default is 200
+   * @return  modified ProcessHttp instance
+   */
+  public ProcessHttp setMaxConnections(int max) {
+    ensure(ProcessState.NOT_STARTED);
+    maxConnections = max;
+    return this;
+  }
+  
+  /**
+   * Compress streamed requests and accept compressed responses.
+   * This is only used by processStream() and processBatch(), the server 
+   * must be able to decompress a request with gzip content encoding.
+   * @param compression true to use gzip, default is false
+   * @return  modified ProcessHttp instance
+   */
+  public ProcessHttp setCompression(boolean compression) {
+    ensure(ProcessState.NOT_STARTED);
+    this.compression = compression;
+    return this;
+  }
+  
+  /**
+   * Set the timeouts of the HTTP client.
+   * @param connectTimeout the timeout for connecting in milliseconds, default is 10000
+   * @param requestTimeout the timeout for waiting for data of the response 
+   * in milliseconds, default is 60000
+   * @return  modified ProcessHttp instance
+   */
+  public ProcessHttp setTimeouts(int connectTimeout, int requestTimeout) {
+    ensure(ProcessState.NOT_STARTED);
+    this.connectTimeout = connectTimeout;
+    this.requestTimeout = requestTimeout;
+    return this;
+  }
+
   /**
    * Set the root path of the server. 
    * @param path the path to use, this should start with a slash
@@ -139,6 +306,8 @@ public class ProcessHttp {
     ensure(ProcessState.NOT_STARTED);
     try {
       this.port = SocketUtils.findAvailableTcpPort(fromport, toport);
+      this.fromPort = fromport;
+      this.toPort = toport;
     } catch (Exception ex) {
       state = ProcessState.ENDED_OR_ABORTED;
       throw new RuntimeException("Port not available from range:"+fromport+"-"+toport, ex);
@@ -154,6 +323,15 @@ public class ProcessHttp {
     return port;
   }
   
+  /**
+   * Get the URI requests are sent to.
+   * Before start() this still contains the placeholders.
+   * @return the URI
+   */
+  public String getUri() {
+    return uri;
+  }
+  
   /**
    * Set the command to run to start the server.
    * This should be a string that can be used to start the server process.
@@ -171,7 +349,7 @@ public class ProcessHttp {
    */
   public ProcessHttp setRunServerCmd(String command) {
     ensure(ProcessState.NOT_STARTED);    
-    this.command = Arrays.asList(command.split("\\s+", 0));
+    this.command = new ArrayList<>(Arrays.asList(command.split("\\s+", 0)));
     return this;
   }
   
@@ -184,38 +362,107 @@ public class ProcessHttp {
    */
   public ProcessHttp setRunServerCmd(List<String> command) {
     ensure(ProcessState.NOT_STARTED);
-    this.command = command;
+    this.command = new ArrayList<>(command);
     return this;
   }
   
+  /**
+   * Wait in start() until the server is ready.
+   * 
+   * If a health path is given, the server is ready once a GET request 
+   * for that path returns a success status, otherwise once a connection 
+   * to the port can be opened. The check is repeated with exponentially
+   * increasing waits of up to one second in between. If the server is 
+   * not ready in time or the server process ends, start() stops the 
+   * process and throws an exception.
+   * 
+   * @param timeout the maximum time to wait in milliseconds, 0 (the default) 
+   * for not waiting at all
+   * @param healthPath the absolute path to use for checking, e.g. "/health", 
+   * or null to only check if the port accepts connections
+   * @return  modified ProcessHttp instance
+   */
+  public ProcessHttp setReadiness(long timeout, String healthPath) {
+    ensure(ProcessState.NOT_STARTED);
+    readyTimeout = timeout;
+    this.healthPath = healthPath;
+    return this;
+  }
+  
+  /**
+   * Add a request to send in start() once the server is ready.
+   * 
+   * Warm-up requests are sent one after the other before start() returns,
+   * so that any lazy initialisation of the server happens before the 
+   * actual requests. The responses are ignored, but if a request fails,
+   * start() stops the process and throws an exception. 
+   * 
+   * @param toProcess the data to send
+   * @param command the server command to invoke, may be null
+   * @param parms any additional parameters, may be null
+   * @return  modified ProcessHttp instance
+   */
+  public ProcessHttp addWarmupRequest(String toProcess, String command, Map<String,String> parms) {
+    ensure(ProcessState.NOT_STARTED);
+    warmupRequests.add(new WarmupRequest(toProcess, command, parms));
+    return this;
+  }
+  
+  /**
+   * Get the time it took until the server was ready.
+   * This is measured from the start of the server process, or the start 
+   * of start() if the server was already running, until the readiness 
+   * check succeeded, and does not include warm-up requests.
+   * With several instances, this is the time of the slowest instance.
+   * @return the time in milliseconds or -1 if start() did not succeed yet
+   */
+  public long getTimeToReady() {
+    return timeToReady;
+  }
+  
+  /**
+   * Get the time it took to send the warm-up requests.
+   * @return the time in milliseconds or -1 if start() did not succeed yet
+   */
+  public long getWarmupTime() {
+    return warmupTime;
+  }
+  
   /**
    * Start communication with the server. 
    * If a command was set this actually starts the process for running 
    * the server. Otherwise it is expected that server is running.
    * This may also initialise and configure the communication with the server
    * and must always be called once before the actual communication starts.
+   * If set, this waits until the server is ready and sends the warm-up 
+   * requests, see setReadiness(long, String) and 
+   * addWarmupRequest(String, String, Map). 
    * 
    * @return modified ProcessHttp instance
    */
   public ProcessHttp start() {
     ensure(ProcessState.NOT_STARTED);
-    if(uri == null || command == null || command.isEmpty() || workingDir == null
-            || env == null) {
+    if(instanceCount > 1) {
+      return startInstances();
+    }
+    long startTime = System.nanoTime();
+    if(uri == null || workingDir == null || env == null) {
       state = ProcessState.ENDED_OR_ABORTED;
-      throw new RuntimeException("One of uri, command, workingDir or env is null or empty");
+      throw new RuntimeException("One of uri, workingDir or env is null");
     }
     // create a usable URI
-    uri = uri.replaceAll("$\\{path\\}", path);
-    uri = uri.replaceAll("$\\{port\\}", ""+port);
-    uri = uri.replaceAll("$\\{host\\}", host);
+    uri = replaceVars(uri);
     // if we have a command, replace any vars and actually run the command    
-    if(command != null) {
+    if(command != null && !command.isEmpty()) {
+      try {
+        SocketUtils.findAvailableTcpPort(port, port);
+      } catch (Exception ex) {
+        state = ProcessState.ENDED_OR_ABORTED;
+        throw new RuntimeException("Port not available:"+port, ex);
+      }
       for(int i=0; i<command.size();i++) {
-        command.set(i, command.get(i).replaceAll("$\\{path\\}", path));
-        command.set(i, command.get(i).replaceAll("$\\{port\\}", ""+port));
-        command.set(i, command.get(i).replaceAll("$\\{host\\}", host));    
+        command.set(i, replaceVars(command.get(i)));
       }
-      // TODO set environment variables before running the command!
       // Start a process to run the server - for now we could use our own
       // ProcessSimple, but eventually maybe use
       // https://github.com/fleipold/jproc or learn from that?
@@ -224,25 +471,355 @@ public class ProcessHttp {
       
       process = ProcessSimple.create(workingDir, env, command);      
     }
-    
+    streamConnections = new Semaphore(maxConnections);
+    client = new UnirestInstance(new Config()
+            .concurrency(maxConnections, maxConnections)
+            .connectTimeout(connectTimeout)
+            .socketTimeout(requestTimeout)
+            .followRedirects(false)
+            .automaticRetries(false)
+            .addShutdownHook(false));
+    if(readyTimeout > 0) {
+      awaitReady();
+    }
+    timeToReady = (System.nanoTime()-startTime)/1000000L;
     state = ProcessState.STARTED;
+    long warmupStart = System.nanoTime();
+    for(WarmupRequest request : warmupRequests) {
+      try {
+        processString(request.toProcess, request.command, request.parms);
+      } catch (RuntimeException ex) {
+        abort("Warm-up request failed", ex);
+      }
+    }
+    warmupTime = (System.nanoTime()-warmupStart)/1000000L;
+    LOGGER.info("Server at {} ready after {}ms, warm-up took {}ms", uri, timeToReady, warmupTime);
     return this;
   }
   
+  /**
+   * Check the server until it is ready or the timeout is reached.
+   */
+  private void awaitReady() {
+    long deadline = System.currentTimeMillis()+readyTimeout;
+    long wait = 10;
+    Exception lastError = null;
+    while(true) {
+      if(process != null && !process.isAlive()) {
+        abort("Server process ended before it was ready", lastError);
+      }
+      try {
+        if(isReady()) {
+          return;
+        }
+        lastError = null;
+      } catch (IOException | RuntimeException ex) {
+        lastError = ex;
+      }
+      long left = deadline-System.currentTimeMillis();
+      if(left <= 0) {
+        abort("Server not ready within "+readyTimeout+"ms", lastError);
+      }
+      try {
+        Thread.sleep(Math.min(wait, left));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        abort("Interrupted while waiting for the server", ex);
+      }
+      wait = Math.min(2*wait, 1000);
+    }
+  }
+  
+  private boolean isReady() throws IOException {
+    if(healthPath == null) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        return true;
+      }
+    } else {
+      return client.get("http://"+host+":"+port+healthPath).asString().isSuccess();
+    }
+  }
+  
+  /**
+   * Stop everything we started and throw an exception.
+   * @param message the message of the exception
+   * @param cause the cause or null
+   */
+  private void abort(String message, Throwable cause) {
+    state = ProcessState.ENDED_OR_ABORTED;
+    String output = "";
+    if(process != null) {
+      try {
+        process.stop();
+      } catch (RuntimeException ex) {
+        LOGGER.error("Could not stop the server process", ex);
+      }
+      List<String> lines = process.getRecentOutput();
+      if(!lines.isEmpty()) {
+        output = ", last output of the server process:\n"+String.join("\n", lines);
+      }
+    }
+    client.shutDown(false);
+    throw new RuntimeException(message+": "+uri+output, cause);
+  }
+  
+  /**
+   * Start all instances in parallel.
+   * @return this instance
+   */
+  private ProcessHttp startInstances() {
+    if(command == null || command.isEmpty()) {
+      state = ProcessState.ENDED_OR_ABORTED;
+      throw new RuntimeException("A command is required for running several instances");
+    }
+    List<Integer> ports;
+    try {
+      ports = new ArrayList<>(fromPort < 0 
+              ? SocketUtils.findAvailableTcpPorts(instanceCount, port, SocketUtils.PORT_RANGE_MAX)
+              : SocketUtils.findAvailableTcpPorts(instanceCount, fromPort, toPort));
+    } catch (Exception ex) {
+      state = ProcessState.ENDED_OR_ABORTED;
+      throw new RuntimeException("Not enough available ports for "+instanceCount+" instances", ex);
+    }
+    List<CompletableFuture<ProcessHttp>> started = new ArrayList<>();
+    for(int p : ports) {
+      final ProcessHttp instance = createInstance(p);
+      started.add(CompletableFuture.supplyAsync(instance::start, Threads.executor()));
+    }
+    List<Instance> ret = new ArrayList<>();
+    RuntimeException error = null;
+    for(CompletableFuture<ProcessHttp> future : started) {
+      try {
+        ret.add(new Instance(future.join()));
+      } catch (CompletionException ex) {
+        if(error == null) {
+          error = new RuntimeException("Could not start all instances", ex.getCause());
+        }
+      }
+    }
+    if(error != null) {
+      for(Instance instance : ret) {
+        instance.http.stop();
+      }
+      state = ProcessState.ENDED_OR_ABORTED;
+      throw error;
+    }
+    instances = ret;
+    port = ports.get(0);
+    uriTemplate = uri;
+    uri = replaceVars(uri);
+    for(Instance instance : instances) {
+      timeToReady = Math.max(timeToReady, instance.http.timeToReady);
+      warmupTime = Math.max(warmupTime, instance.http.warmupTime);
+    }
+    state = ProcessState.STARTED;
+    return this;
+  }
+  
+  /**
+   * Create a single instance with the same settings as this one.
+   * @param port the port to use
+   * @return the instance, not started yet
+   */
+  private ProcessHttp createInstance(int port) {
+    ProcessHttp ret = new ProcessHttp();
+    ret.host = host;
+    ret.path = path;
+    ret.port = port;
+    ret.uri = uriTemplate == null ? uri : uriTemplate;
+    ret.command = new ArrayList<>(command);
+    ret.env = env;
+    ret.workingDir = workingDir;
+    ret.maxConnections = maxConnections;
+    ret.connectTimeout = connectTimeout;
+    ret.requestTimeout = requestTimeout;
+    ret.readyTimeout = readyTimeout;
+    ret.compression = compression;
+    ret.healthPath = healthPath;
+    ret.warmupRequests.addAll(warmupRequests);
+    return ret;
+  }
+  
+  /**
+   * Choose the instance for a request.
+   * @param exclude an instance not to choose or null
+   * @return the chosen instance
+   */
+  private Instance choose(Instance exclude) {
+    List<Instance> candidates = new ArrayList<>(instances.size());
+    for(Instance instance : instances) {
+      if(instance == exclude || instance.ejected) {
+        continue;
+      }
+      if(instance.http.process != null && !instance.http.process.isAlive()) {
+        eject(instance);
+        continue;
+      }
+      candidates.add(instance);
+    }
+    if(candidates.isEmpty()) {
+      throw new RuntimeException("No server instance available");
+    }
+    if(candidates.size() == 1) {
+      return candidates.get(0);
+    }
+    // power of two choices
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int i = random.nextInt(candidates.size());
+    int j = random.nextInt(candidates.size()-1);
+    if(j >= i) {
+      j++;
+    }
+    Instance a = candidates.get(i);
+    Instance b = candidates.get(j);
+    return a.inFlight.get() <= b.inFlight.get() ? a : b;
+  }
+  
+  /**
+   * Handle a failed request to an instance.
+   * 
+   * The instance gets ejected if it is dead. The request may only be sent
+   * to another instance if it could not be sent at all, because a request
+   * which made the server crash would likely crash the next one as well.
+   * 
+   * @param instance the instance
+   * @param ex the exception of the request
+   * @return true if the request should be sent to another instance
+   */
+  private boolean failOver(Instance instance, Throwable ex) {
+    boolean refused = false;
+    for(Throwable t = ex; t != null; t = t.getCause()) {
+      if(t instanceof ConnectException) {
+        refused = true;
+      }
+    }
+    if(refused || (instance.http.process != null && !instance.http.process.isAlive())) {
+      eject(instance);
+    }
+    return refused;
+  }
+  
+  /**
+   * Stop sending requests to the instance and restart it in the background.
+   * @param instance the instance
+   */
+  private void eject(Instance instance) {
+    synchronized(instance) {
+      if(instance.ejected) {
+        return;
+      }
+      instance.ejected = true;
+    }
+    LOGGER.warn("Server instance on port {} died, restarting it", instance.http.port);
+    Threads.start("ProcessHttp-restart", () -> restart(instance));
+  }
+  
+  /**
+   * Restart an ejected instance, trying again with increasing delays 
+   * until it works or the process gets stopped.
+   * @param instance the instance
+   */
+  private void restart(Instance instance) {
+    ProcessHttp old = instance.http;
+    try {
+      old.stopIfStarted();
+    } catch (RuntimeException ex) {
+      // the process is gone already
+    }
+    int newPort = old.port;
+    long delay = RESTART_DELAY_MS;
+    while(state == ProcessState.STARTED) {
+      try {
+        ProcessHttp fresh = createInstance(newPort).start();
+        synchronized(instance) {
+          instance.http = fresh;
+          instance.ejected = false;
+        }
+        restarts.incrementAndGet();
+        if(state != ProcessState.STARTED) {
+          // we got stopped in the meantime
+          try {
+            fresh.stopIfStarted();
+          } catch (RuntimeException ex) {
+            LOGGER.error("Could not stop the restarted server instance", ex);
+          }
+        }
+        return;
+      } catch (RuntimeException ex) {
+        LOGGER.error("Could not restart the server instance on port "+newPort+
+                ", trying again in "+delay+"ms", ex);
+      }
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      delay = Math.min(2*delay, MAX_RESTART_DELAY_MS);
+      try {
+        newPort = fromPort < 0 
+                ? SocketUtils.findAvailableTcpPort(port, SocketUtils.PORT_RANGE_MAX)
+                : SocketUtils.findAvailableTcpPort(fromPort, toPort);
+      } catch (RuntimeException ex) {
+        LOGGER.error("No port available for restarting the server instance, trying again", ex);
+      }
+    }
+    LOGGER.warn("Gave up restarting the server instance on port {}", newPort);
+  }
+  
+  private String replaceVars(String str) {
+    return str.replace("${path}", path)
+            .replace("${port}", ""+port)
+            .replace("${host}", host);
+  }
+  
+  /**
+   * Stop an instance unless it has been stopped already.
+   * 
+   * This is used for the instances of a multi-instance ProcessHttp, which
+   * may get stopped by stop() and by a restart at the same time.
+   */
+  private synchronized void stopIfStarted() {
+    if(state == ProcessState.STARTED) {
+      stop();
+    }
+  }
+  
   /**
    * Stop the process.
+   * This shuts down the HTTP client of this instance and stops the server
+   * process, if it was started by this instance.
    * @return ProcessHttp instance
    */
   public ProcessHttp stop() {
     ensure(ProcessState.STARTED);
+    if(instances != null) {
+      state = ProcessState.ENDED_OR_ABORTED;
+      RuntimeException error = null;
+      for(Instance instance : instances) {
+        try {
+          instance.http.stopIfStarted();
+        } catch (RuntimeException ex) {
+          // this happens if the instance died and is being restarted
+          if(!instance.ejected && error == null) {
+            error = ex;
+          }
+        }
+      }
+      if(error != null) {
+        throw error;
+      }
+      return this;
+    }
     // !!! ONLY actuall send the stop command to the server if we 
     // started the server ourselves, i.e. if we have a command
-    if(command != null) {
+    if(process != null) {
       process.stop();
       // TODO: send the stop command over to the server. Who should do this?
     }
     state = ProcessState.ENDED_OR_ABORTED;
-    Unirest.shutDown();
+    client.shutDown(false);
     return this;
   }
   
@@ -253,22 +830,248 @@ public class ProcessHttp {
    * in the body of the response. 
    * 
    * @param toProcess the data to run the command on
-   * @param command the server command to invoke, may be null
-   * @param parms any additional parameters, may be null
+   * @param command the server command to invoke, which gets appended to the
+   * path of the URI, may be null
+   * @param parms any additional parameters, which get sent as query 
+   * parameters, may be null
    * @return the processed data, as String
    */
   public String processString(String toProcess, String command, Map<String,String> parms) {
+    if(instances != null) {
+      ensure(ProcessState.STARTED);
+      Instance instance = choose(null);
+      try {
+        return instance.processString(toProcess, command, parms);
+      } catch (RuntimeException ex) {
+        if(!failOver(instance, ex)) {
+          throw ex;
+        }
+        return choose(instance).processString(toProcess, command, parms);
+      }
+    }
     try {
-      HttpResponse<String> response = Unirest.post(uri)
-              .header("accept","text/plain")
-              .header("content-type","text/plain")
-              .body(command)
-              .asString();
+      HttpResponse<String> response = createRequest(toProcess, command, parms).asString();
       return response.getBody();
     } catch (UnirestException ex) {
       throw new RuntimeException("Exception when connecting to the server",ex);
     }
   }
-
+  
+  /**
+   * Send a string to process in the background.
+   * This sends the request like processString() without waiting for 
+   * the response. 
+   * 
+   * @param toProcess the data to run the command on
+   * @param command the server command to invoke, which gets appended to the
+   * path of the URI, may be null
+   * @param parms any additional parameters, which get sent as query 
+   * parameters, may be null
+   * @return future for the processed data
+   */
+  public CompletableFuture<String> processStringAsync(String toProcess, String command, Map<String,String> parms) {
+    if(instances != null) {
+      ensure(ProcessState.STARTED);
+      Instance instance = choose(null);
+      return instance.processStringAsync(toProcess, command, parms)
+              .handle((response, ex) -> {
+                if(ex == null) {
+                  return CompletableFuture.completedFuture(response);
+                }
+                if(!failOver(instance, ex)) {
+                  CompletableFuture<String> failed = new CompletableFuture<>();
+                  failed.completeExceptionally(ex);
+                  return failed;
+                }
+                return choose(instance).processStringAsync(toProcess, command, parms);
+              })
+              .thenCompose(Function.identity());
+    }
+    return createRequest(toProcess, command, parms).asStringAsync()
+            .thenApply(HttpResponse::getBody);
+  }
+  
+  /**
+   * Send many records in one request and read the response records as they arrive.
+   * 
+   * The records are sent as newline-delimited JSON (NDJSON) in a chunked
+   * request body, while the server is expected to respond with NDJSON 
+   * as well, usually one response record per record sent. 
+   * The records are written by a separate thread while the returned
+   * iterator parses the response records when they are requested, so 
+   * the records can come from and go to a file without keeping all of 
+   * them in memory and the server can start responding while it still 
+   * receives records. If compression is enabled, see setCompression(boolean), 
+   * the request body is gzip compressed and a compressed response is accepted.
+   * <p>
+   * The request uses its own connection, which is closed once all response
+   * records have been read. If not all response records get read, the 
+   * returned stream must be closed. At most as many streams as set with
+   * setMaxConnections() can be open at the same time, see NdjsonStream 
+   * for the other limits of these connections.
+   * 
+   * @param records the records to send
+   * @param command the server command to invoke, which gets appended to the
+   * path of the URI, may be null
+   * @param parms any additional parameters, which get sent as query 
+   * parameters, may be null
+   * @return iterator over the response records
+   */
+  public NdjsonStream processStream(Iterator<? extends Map<String,?>> records, 
+          String command, Map<String,String> parms) {
+    ensure(ProcessState.STARTED);
+    if(instances != null) {
+      Instance instance = choose(null);
+      try {
+        return instance.processStream(records, command, parms);
+      } catch (RuntimeException ex) {
+        // the records have not been read yet if the connection was refused
+        if(!failOver(instance, ex)) {
+          throw ex;
+        }
+        return choose(instance).processStream(records, command, parms);
+      }
+    }
+    return openStream(records, command, parms, null);
+  }
+  
+  private NdjsonStream openStream(Iterator<? extends Map<String,?>> records, 
+          String command, Map<String,String> parms, Runnable onClose) {
+    ensure(ProcessState.STARTED);
+    URI target = NdjsonStream.withQuery(appendCommand(uri, command), parms);
+    try {
+      if(!streamConnections.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+        throw new RuntimeException("No free connection for streaming to "+target+
+                " within "+connectTimeout+"ms");
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for a connection", ex);
+    }
+    AtomicBoolean released = new AtomicBoolean();
+    return new NdjsonStream(target, records, compression, connectTimeout, requestTimeout, () -> {
+      if(released.compareAndSet(false, true)) {
+        streamConnections.release();
+        if(onClose != null) {
+          onClose.run();
+        }
+      }
+    });
+  }
+  
+  /**
+   * Send many records in one request and get back all the response records.
+   * 
+   * This uses processStream() and collects the response records.
+   * 
+   * @param records the records to send
+   * @param command the server command to invoke, which gets appended to the
+   * path of the URI, may be null
+   * @param parms any additional parameters, which get sent as query 
+   * parameters, may be null
+   * @return list of response records
+   */
+  public List<Map<String,Object>> processBatch(List<? extends Map<String,?>> records, 
+          String command, Map<String,String> parms) {
+    List<Map<String,Object>> ret = new ArrayList<>(records.size());
+    try (NdjsonStream stream = processStream(records.iterator(), command, parms)) {
+      while(stream.hasNext()) {
+        ret.add(stream.next());
+      }
+    }
+    return ret;
+  }
+  
+  private RequestBodyEntity createRequest(String toProcess, String command, Map<String,String> parms) {
+    ensure(ProcessState.STARTED);
+    HttpRequestWithBody request = client.post(appendCommand(uri, command))
+              .charset(StandardCharsets.UTF_8)
+              .header("accept","text/plain")
+              .header("content-type","text/plain; charset=UTF-8");
+    if(parms != null) {
+      for(Map.Entry<String,String> entry : parms.entrySet()) {
+        request.queryString(entry.getKey(), entry.getValue());
+      }
+    }
+    return request.body(toProcess);
+  }
+  
+  /**
+   * Append the command to the URI or path.
+   * @param base the URI or path
+   * @param command the command or null
+   * @return the URI or path for the command
+   */
+  private static String appendCommand(String base, String command) {
+    if(command == null || command.isEmpty()) {
+      return base;
+    }
+    if(base.endsWith("/") && command.startsWith("/")) {
+      return base + command.substring(1);
+    } else if(base.endsWith("/") || command.startsWith("/")) {
+      return base + command;
+    } else {
+      return base + "/" + command;
+    }
+  }
+  
+  /**
+   * One of several server instances.
+   */
+  private static class Instance {
+    volatile ProcessHttp http;
+    volatile boolean ejected = false;
+    final AtomicInteger inFlight = new AtomicInteger();
+    Instance(ProcessHttp http) {
+      this.http = http;
+    }
+    String processString(String toProcess, String command, Map<String,String> parms) {
+      inFlight.incrementAndGet();
+      try {
+        return http.processString(toProcess, command, parms);
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    }
+    CompletableFuture<String> processStringAsync(String toProcess, String command, Map<String,String> parms) {
+      inFlight.incrementAndGet();
+      CompletableFuture<String> ret;
+      try {
+        ret = http.processStringAsync(toProcess, command, parms);
+      } catch (RuntimeException ex) {
+        inFlight.decrementAndGet();
+        throw ex;
+      }
+      return ret.whenComplete((response, ex) -> inFlight.decrementAndGet());
+    }
+    NdjsonStream processStream(Iterator<? extends Map<String,?>> records, 
+            String command, Map<String,String> parms) {
+      inFlight.incrementAndGet();
+      // the request is in flight until the stream gets closed
+      AtomicBoolean closed = new AtomicBoolean();
+      Runnable onClose = () -> {
+        if(closed.compareAndSet(false, true)) {
+          inFlight.decrementAndGet();
+        }
+      };
+      try {
+        return http.openStream(records, command, parms, onClose);
+      } catch (RuntimeException ex) {
+        onClose.run();
+        throw ex;
+      }
+    }
+  }
+  
+  private static class WarmupRequest {
+    final String toProcess;
+    final String command;
+    final Map<String,String> parms;
+    WarmupRequest(String toProcess, String command, Map<String,String> parms) {
+      this.toProcess = toProcess;
+      this.command = command;
+      this.parms = parms;
+    }
+  }
   
 }
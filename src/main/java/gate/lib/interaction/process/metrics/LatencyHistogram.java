@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with a fixed relative precision.
+ * 
+ * Values are counted in buckets which cover each power of two in 16 
+ * equally sized sub-buckets, so any recorded value is known with a relative 
+ * error of less than 1/16, similar to HdrHistogram with one significant 
+ * digit. Recording a value is a few bit operations and one atomic 
+ * increment and never allocates, so it can be used on every request.
+ */
+public class LatencyHistogram {
+  
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  // enough buckets for all non-negative long values
+  private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+  
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+  
+  /**
+   * Record one value.
+   * @param nanos the value, negative values are recorded as 0
+   */
+  public void record(long nanos) {
+    if(nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(bucket(nanos));
+    count.incrementAndGet();
+    sum.addAndGet(nanos);
+    long m;
+    while(nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+      // retry
+    }
+  }
+  
+  /**
+   * Get the number of recorded values.
+   * @return count
+   */
+  public long getCount() {
+    return count.get();
+  }
+  
+  /**
+   * Get the sum of all recorded values.
+   * @return sum in nanoseconds
+   */
+  public long getSum() {
+    return sum.get();
+  }
+  
+  /**
+   * Get the mean of all recorded values.
+   * @return mean in nanoseconds or 0 if nothing was recorded
+   */
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0.0 : (double)sum.get() / n;
+  }
+  
+  /**
+   * Get the largest recorded value.
+   * @return maximum in nanoseconds
+   */
+  public long getMax() {
+    return max.get();
+  }
+  
+  /**
+   * Get the value below or at which the given percentage of recorded values are.
+   * 
+   * The returned value is the upper end of the bucket which contains the 
+   * percentile, but never more than the maximum recorded value.
+   * 
+   * @param percentile the percentile, between 0 and 100
+   * @return the value in nanoseconds or 0 if nothing was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    long n = count.get();
+    if(n == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long)Math.ceil(n * Math.min(100.0, percentile) / 100.0));
+    long seen = 0;
+    for(int i=0; i<BUCKETS; i++) {
+      seen += counts.get(i);
+      if(seen >= target) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+  
+  /**
+   * Add all values recorded by another histogram.
+   * @param other the other histogram
+   */
+  void add(LatencyHistogram other) {
+    for(int i=0; i<BUCKETS; i++) {
+      long c = other.counts.get(i);
+      if(c != 0) {
+        counts.addAndGet(i, c);
+      }
+    }
+    count.addAndGet(other.count.get());
+    sum.addAndGet(other.sum.get());
+    long otherMax = other.max.get();
+    long m;
+    while(otherMax > (m = max.get()) && !max.compareAndSet(m, otherMax)) {
+      // retry
+    }
+  }
+  
+  /**
+   * Remove all recorded values.
+   * 
+   * Values recorded at the same time by other threads may be partly lost.
+   */
+  public void reset() {
+    for(int i=0; i<BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+  
+  static int bucket(long value) {
+    if(value < SUB_BUCKETS) {
+      return (int)value;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int)(value >>> (exp - SUB_BITS)) - SUB_BUCKETS;
+    return SUB_BUCKETS + (exp - SUB_BITS) * SUB_BUCKETS + sub;
+  }
+  
+  static long upperBound(int bucket) {
+    if(bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exp = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+    long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    long width = 1L << (exp - SUB_BITS);
+    return sub * width + width - 1;
+  }
+  
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.metrics;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics for the exchanges with one process instance.
+ * 
+ * Each ProcessBase instance has one instance of this, which records 
+ * the number of requests, errors, timeouts and restarts, the bytes sent
+ * to and received from the process and a latency histogram for each 
+ * phase of an exchange. The transports mark the phases through the
+ * RequestTimer returned by start() and pass it back to finish() or
+ * failed(). The metrics can be read directly, passed on to listeners
+ * after each exchange or published through JMX with registerMBean().
+ */
+public class ProcessMetrics implements ProcessMetricsMXBean {
+  
+  /**
+   * The phases of one exchange with the process.
+   */
+  public enum Phase {
+    /**
+     * Waiting for other threads which use the same process instance.
+     */
+    LOCK_WAIT,
+    /**
+     * Converting the data and writing it to the buffer of the pipe.
+     */
+    ENCODE,
+    /**
+     * Flushing the written data to the process.
+     */
+    FLUSH,
+    /**
+     * From the flush until the first byte of the response arrived, which
+     * is mainly the time the process needs for computing the response.
+     */
+    RESPONSE_WAIT,
+    /**
+     * Reading the rest of the response and converting it.
+     */
+    DECODE,
+    /**
+     * The whole exchange.
+     */
+    TOTAL
+  }
+  
+  private final Map<Phase,LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong items = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong restarts = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final List<ProcessMetricsListener> listeners = new CopyOnWriteArrayList<>();
+  
+  // the exchange which is waiting for its response, if any
+  private volatile RequestTimer current;
+  private ObjectName mbeanName;
+  
+  /**
+   * Create empty metrics.
+   */
+  public ProcessMetrics() {
+    for(Phase phase : Phase.values()) {
+      histograms.put(phase, new LatencyHistogram());
+    }
+  }
+  
+  /**
+   * Create metrics which combine the metrics of several process instances.
+   * 
+   * This is used for the workers of a pool. The returned metrics do not
+   * record anything themselves: the counts are the sums of the counts of 
+   * all parts, the histograms contain the values of all parts, listeners 
+   * are added to all parts and reset() resets all parts.
+   * 
+   * @param parts the metrics to combine
+   * @return the combined metrics
+   */
+  public static ProcessMetrics combine(List<ProcessMetrics> parts) {
+    return new Combined(parts);
+  }
+  
+  /**
+   * Start timing an exchange.
+   * 
+   * The start time is taken before waiting for the lock, the transport 
+   * should call lockAcquired() on the returned timer once it got the lock.
+   * 
+   * @return the timer for the exchange
+   */
+  public RequestTimer start() {
+    return new RequestTimer(System.nanoTime());
+  }
+  
+  /**
+   * Make the timer the one which receives the time of the first response byte.
+   * 
+   * This should be called while holding the lock, before the request 
+   * is written.
+   * 
+   * @param timer the timer of the exchange
+   */
+  public void awaitResponse(RequestTimer timer) {
+    current = timer;
+  }
+  
+  /**
+   * Record a successful exchange.
+   * @param timer the timer of the exchange
+   */
+  public void finish(RequestTimer timer) {
+    timer.decoded();
+    current = null;
+    for(Phase phase : Phase.values()) {
+      histograms.get(phase).record(timer.getNanos(phase));
+    }
+    requests.incrementAndGet();
+    items.addAndGet(timer.getItems());
+    for(ProcessMetricsListener listener : listeners) {
+      listener.requestCompleted(timer);
+    }
+  }
+  
+  /**
+   * Record a failed exchange.
+   * @param timer the timer of the exchange
+   * @param error the exception 
+   */
+  public void failed(RequestTimer timer, Throwable error) {
+    timer.decoded();
+    current = null;
+    errors.incrementAndGet();
+    for(ProcessMetricsListener listener : listeners) {
+      listener.requestFailed(timer, error);
+    }
+  }
+  
+  /**
+   * Record that an exchange timed out.
+   */
+  public void timedOut() {
+    timeouts.incrementAndGet();
+  }
+  
+  /**
+   * Record that the process was started again.
+   */
+  public void restarted() {
+    restarts.incrementAndGet();
+  }
+  
+  /**
+   * Wrap the stream from the process so that received bytes get counted.
+   * @param in the stream connected to the standard output of the process
+   * @return the wrapped stream
+   */
+  public InputStream wrap(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int ret = in.read();
+        if(ret >= 0) {
+          received(1);
+        }
+        return ret;
+      }
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int ret = in.read(b, off, len);
+        if(ret > 0) {
+          received(ret);
+        }
+        return ret;
+      }
+    };
+  }
+  
+  private void received(int n) {
+    bytesReceived.addAndGet(n);
+    RequestTimer timer = current;
+    if(timer != null) {
+      timer.firstByte(System.nanoTime());
+    }
+  }
+  
+  /**
+   * Wrap the stream to the process so that sent bytes get counted.
+   * @param out the stream connected to the standard input of the process
+   * @return the wrapped stream
+   */
+  public OutputStream wrap(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        bytesSent.incrementAndGet();
+      }
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytesSent.addAndGet(len);
+      }
+    };
+  }
+  
+  /**
+   * Add a listener which gets notified after each exchange.
+   * @param listener the listener
+   */
+  public void addListener(ProcessMetricsListener listener) {
+    listeners.add(listener);
+  }
+  
+  /**
+   * Remove a listener.
+   * @param listener the listener
+   */
+  public void removeListener(ProcessMetricsListener listener) {
+    listeners.remove(listener);
+  }
+  
+  /**
+   * Get the latency histogram of a phase.
+   * @param phase the phase
+   * @return histogram
+   */
+  public LatencyHistogram getHistogram(Phase phase) {
+    return histograms.get(phase);
+  }
+  
+  /**
+   * Publish the metrics through the platform MBean server.
+   * 
+   * The object name is "gate.lib.interaction:type=ProcessMetrics,name=" followed
+   * by the given name, quoted if necessary. 
+   * 
+   * @param name the name which identifies the process instance
+   * @return the object name
+   */
+  public synchronized ObjectName registerMBean(String name) {
+    unregisterMBean();
+    try {
+      String value = name.matches("[\\w.-]+") ? name : ObjectName.quote(name);
+      ObjectName objectName = new ObjectName("gate.lib.interaction:type=ProcessMetrics,name="+value);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(this, objectName);
+      mbeanName = objectName;
+      return objectName;
+    } catch (JMException ex) {
+      throw new RuntimeException("Could not register the metrics MBean for "+name,ex);
+    }
+  }
+  
+  /**
+   * Remove the metrics from the platform MBean server, if they were published.
+   */
+  public synchronized void unregisterMBean() {
+    if(mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (JMException ex) {
+        // ignore, nothing we can do
+      }
+      mbeanName = null;
+    }
+  }
+  
+  @Override
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  @Override
+  public long getItemCount() {
+    return items.get();
+  }
+
+  @Override
+  public long getErrorCount() {
+    return errors.get();
+  }
+
+  @Override
+  public long getTimeoutCount() {
+    return timeouts.get();
+  }
+
+  @Override
+  public long getRestartCount() {
+    return restarts.get();
+  }
+
+  @Override
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  @Override
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  @Override
+  public Map<String,Double> getMeanNanos() {
+    Map<String,Double> ret = new LinkedHashMap<>();
+    for(Phase phase : Phase.values()) {
+      ret.put(phase.name(), getHistogram(phase).getMean());
+    }
+    return ret;
+  }
+
+  @Override
+  public Map<String,Long> getP50Nanos() {
+    return percentiles(50.0);
+  }
+
+  @Override
+  public Map<String,Long> getP99Nanos() {
+    return percentiles(99.0);
+  }
+
+  @Override
+  public Map<String,Long> getMaxNanos() {
+    Map<String,Long> ret = new LinkedHashMap<>();
+    for(Phase phase : Phase.values()) {
+      ret.put(phase.name(), getHistogram(phase).getMax());
+    }
+    return ret;
+  }
+  
+  private Map<String,Long> percentiles(double percentile) {
+    Map<String,Long> ret = new LinkedHashMap<>();
+    for(Phase phase : Phase.values()) {
+      ret.put(phase.name(), getHistogram(phase).getValueAtPercentile(percentile));
+    }
+    return ret;
+  }
+
+  @Override
+  public void reset() {
+    for(LatencyHistogram histogram : histograms.values()) {
+      histogram.reset();
+    }
+    requests.set(0);
+    items.set(0);
+    errors.set(0);
+    timeouts.set(0);
+    restarts.set(0);
+    bytesSent.set(0);
+    bytesReceived.set(0);
+  }
+  
+  /**
+   * The metrics of several process instances.
+   */
+  private static class Combined extends ProcessMetrics {
+    private final List<ProcessMetrics> parts;
+    Combined(List<ProcessMetrics> parts) {
+      this.parts = new ArrayList<>(parts);
+    }
+    private long sum(ToLongFunction<ProcessMetrics> getter) {
+      long ret = 0;
+      for(ProcessMetrics part : parts) {
+        ret += getter.applyAsLong(part);
+      }
+      return ret;
+    }
+    @Override
+    public LatencyHistogram getHistogram(Phase phase) {
+      LatencyHistogram ret = new LatencyHistogram();
+      for(ProcessMetrics part : parts) {
+        ret.add(part.getHistogram(phase));
+      }
+      return ret;
+    }
+    @Override
+    public void addListener(ProcessMetricsListener listener) {
+      for(ProcessMetrics part : parts) {
+        part.addListener(listener);
+      }
+    }
+    @Override
+    public void removeListener(ProcessMetricsListener listener) {
+      for(ProcessMetrics part : parts) {
+        part.removeListener(listener);
+      }
+    }
+    @Override
+    public long getRequestCount() {
+      return sum(ProcessMetrics::getRequestCount);
+    }
+    @Override
+    public long getItemCount() {
+      return sum(ProcessMetrics::getItemCount);
+    }
+    @Override
+    public long getErrorCount() {
+      return sum(ProcessMetrics::getErrorCount);
+    }
+    @Override
+    public long getTimeoutCount() {
+      return sum(ProcessMetrics::getTimeoutCount);
+    }
+    @Override
+    public long getRestartCount() {
+      return sum(ProcessMetrics::getRestartCount);
+    }
+    @Override
+    public long getBytesSent() {
+      return sum(ProcessMetrics::getBytesSent);
+    }
+    @Override
+    public long getBytesReceived() {
+      return sum(ProcessMetrics::getBytesReceived);
+    }
+    @Override
+    public void reset() {
+      for(ProcessMetrics part : parts) {
+        part.reset();
+      }
+    }
+  }
+  
+}
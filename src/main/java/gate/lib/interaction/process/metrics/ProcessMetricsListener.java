@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.metrics;
+
+/**
+ * Listener which gets notified about each exchange with a process.
+ * 
+ * The methods are called on the thread which made the request, right after
+ * the request finished, so they should return quickly.
+ */
+public interface ProcessMetricsListener {
+  
+  /**
+   * Called after an exchange with the process finished successfully.
+   * @param timer the timing of the phases of the exchange
+   */
+  public void requestCompleted(RequestTimer timer);
+  
+  /**
+   * Called after an exchange with the process failed or timed out.
+   * @param timer the timing of the phases up to the failure
+   * @param error the exception
+   */
+  public void requestFailed(RequestTimer timer, Throwable error);
+  
+}
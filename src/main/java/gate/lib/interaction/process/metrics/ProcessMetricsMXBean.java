@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of one process instance.
+ * 
+ * The latency maps are keyed by the name of the phase, see 
+ * {@link ProcessMetrics.Phase}.
+ */
+public interface ProcessMetricsMXBean {
+  
+  /**
+   * Get the number of exchanges which finished successfully.
+   * @return count
+   */
+  public long getRequestCount();
+  
+  /**
+   * Get the number of data items exchanged successfully, counting each item of a batch.
+   * @return count
+   */
+  public long getItemCount();
+  
+  /**
+   * Get the number of exchanges which failed, including timeouts.
+   * @return count
+   */
+  public long getErrorCount();
+  
+  /**
+   * Get the number of exchanges which timed out.
+   * @return count
+   */
+  public long getTimeoutCount();
+  
+  /**
+   * Get the number of times the process was started again after the first start.
+   * @return count
+   */
+  public long getRestartCount();
+  
+  /**
+   * Get the number of bytes sent to the process.
+   * @return bytes
+   */
+  public long getBytesSent();
+  
+  /**
+   * Get the number of bytes received from the process.
+   * @return bytes
+   */
+  public long getBytesReceived();
+  
+  /**
+   * Get the mean latency of each phase.
+   * @return map from phase name to nanoseconds
+   */
+  public Map<String,Double> getMeanNanos();
+  
+  /**
+   * Get the median latency of each phase.
+   * @return map from phase name to nanoseconds
+   */
+  public Map<String,Long> getP50Nanos();
+  
+  /**
+   * Get the 99th percentile latency of each phase.
+   * @return map from phase name to nanoseconds
+   */
+  public Map<String,Long> getP99Nanos();
+  
+  /**
+   * Get the maximum latency of each phase.
+   * @return map from phase name to nanoseconds
+   */
+  public Map<String,Long> getMaxNanos();
+  
+  /**
+   * Reset all counters and histograms.
+   */
+  public void reset();
+  
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.metrics;
+
+import gate.lib.interaction.process.metrics.ProcessMetrics.Phase;
+
+/**
+ * The points in time of the phases of one exchange with a process.
+ * 
+ * An instance is created by ProcessMetrics.start() when a request is 
+ * made, the transport marks the end of each phase and passes the instance
+ * to ProcessMetrics.finish() at the end, which records the phase durations 
+ * and passes the instance on to the listeners. Phases which the transport
+ * does not mark have a duration of 0.
+ */
+public class RequestTimer {
+  
+  private final long start;
+  private long lockAcquired;
+  private long encoded;
+  private long flushed;
+  private volatile long firstByte;
+  private long decoded;
+  private int items = 1;
+  
+  RequestTimer(long start) {
+    this.start = start;
+    lockAcquired = start;
+    encoded = start;
+    flushed = start;
+  }
+  
+  /**
+   * Mark that the lock for exchanging data with the process was acquired.
+   */
+  public void lockAcquired() {
+    lockAcquired = encoded = flushed = System.nanoTime();
+  }
+  
+  /**
+   * Mark that the request data has been encoded and written.
+   */
+  public void encoded() {
+    encoded = flushed = System.nanoTime();
+  }
+  
+  /**
+   * Mark that the request data has been flushed to the process.
+   */
+  public void flushed() {
+    flushed = System.nanoTime();
+  }
+  
+  /**
+   * Mark that the response has arrived.
+   * 
+   * This is only needed if the response is not read through a stream 
+   * wrapped by ProcessMetrics, which marks this automatically.
+   */
+  public void responseArrived() {
+    firstByte(System.nanoTime());
+  }
+  
+  void firstByte(long nanos) {
+    if(firstByte == 0) {
+      firstByte = nanos;
+    }
+  }
+  
+  /**
+   * Mark that the response has been read and decoded.
+   */
+  public void decoded() {
+    decoded = System.nanoTime();
+  }
+  
+  /**
+   * Set the number of data items exchanged, for a batch.
+   * @param items number of items
+   */
+  public void setItems(int items) {
+    this.items = items;
+  }
+  
+  /**
+   * Get the number of data items exchanged.
+   * @return number of items
+   */
+  public int getItems() {
+    return items;
+  }
+  
+  /**
+   * Get the duration of a phase.
+   * @param phase the phase
+   * @return the duration in nanoseconds
+   */
+  public long getNanos(Phase phase) {
+    long end = decoded == 0 ? System.nanoTime() : decoded;
+    // the first byte may have arrived before the flush if it was read 
+    // ahead for an earlier request or never if it was already buffered
+    long first = firstByte == 0 ? flushed : Math.max(flushed, Math.min(firstByte, end));
+    switch(phase) {
+      case LOCK_WAIT:
+        return lockAcquired - start;
+      case ENCODE:
+        return encoded - lockAcquired;
+      case FLUSH:
+        return flushed - encoded;
+      case RESPONSE_WAIT:
+        return first - flushed;
+      case DECODE:
+        return end - first;
+      default:
+        return end - start;
+    }
+  }
+  
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.pipes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encoding and decoding of the data exchanged with a process.
+ * 
+ * A codec converts the objects passed to the process() method of
+ * {@link Process4CodecStream} into bytes written to the standard input 
+ * of the process and the bytes read from the standard output of the
+ * process back into objects. 
+ * <p>
+ * A codec instance is used for one process instance only and is not
+ * used by more than one thread at the same time, except that 
+ * decode() may be called from a reader thread while another thread 
+ * calls encode() and flush(). The init() method is called again each
+ * time the process gets restarted.
+ */
+public interface Codec {
+  
+  /**
+   * Set up the codec for a freshly started process.
+   * 
+   * This is where any handshake with the process should happen.
+   * 
+   * @param in the stream connected to the standard output of the process
+   * @param out the stream connected to the standard input of the process
+   * @throws IOException if the streams cannot be set up
+   */
+  public void init(InputStream in, OutputStream out) throws IOException;
+  
+  /**
+   * Encode the data and write it to the process without flushing.
+   * 
+   * @param data the data to write
+   * @throws IOException if writing fails
+   */
+  public void encode(Object data) throws IOException;
+  
+  /**
+   * Flush everything written so far to the process.
+   * 
+   * @throws IOException if flushing fails
+   */
+  public void flush() throws IOException;
+  
+  /**
+   * Read and decode the next response from the process.
+   * 
+   * This blocks until a complete response is available.
+   * 
+   * @return the decoded response or null if the stream ended
+   * @throws IOException if reading or decoding fails
+   */
+  public Object decode() throws IOException;
+  
+  /**
+   * Close the streams to and from the process, ignoring any errors.
+   */
+  public void close();
+  
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.pipes;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Codec which exchanges objects through Java object streams.
+ * <p>
+ * Creating an object input stream blocks until the header of the
+ * other side has been received, so both sides first send a hello 
+ * object, which should be a string that indicates the sending component 
+ * and version.
+ * <p>
+ * An object output stream remembers every object written to it so that
+ * it can send back-references when the same object is written again. 
+ * This keeps all objects ever sent reachable and also means that an object
+ * which got modified after it was sent is not sent again, only a reference 
+ * to the old copy. To avoid this, a reset policy can be configured with 
+ * setResetEveryObjects(int) and/or setResetEveryBytes(long): whenever
+ * the limit is reached, the stream gets reset after the object has been
+ * written. The object input stream on the other side automatically 
+ * clears its own table when it reads the reset marker, but the process
+ * should use the same policy for its own output stream so that the 
+ * object input stream on this side does not grow either.
+ */
+public class JavaObjectCodec implements Codec {
+  
+  private ObjectInputStream ois;
+  private ObjectOutputStream oos;
+  private CountingOutputStream counter;
+  
+  private volatile int resetEveryObjects = 0;
+  private volatile long resetEveryBytes = 0;
+  private volatile long resetCount = 0;
+  private volatile long objectsSinceReset = 0;
+  private volatile long bytesAtReset = 0;
+
+  /**
+   * Reset the object stream after this many objects have been written.
+   * 
+   * @param n number of objects, 1 resets after every object, 0 (the default) never resets
+   */
+  public void setResetEveryObjects(int n) {
+    if(n < 0) {
+      throw new RuntimeException("Number of objects must not be negative: "+n);
+    }
+    resetEveryObjects = n;
+  }
+  
+  /**
+   * Get the number of objects after which the stream gets reset.
+   * @return number of objects or 0 if never reset based on object count
+   */
+  public int getResetEveryObjects() {
+    return resetEveryObjects;
+  }
+  
+  /**
+   * Reset the object stream after this many bytes have been written.
+   * 
+   * The reset happens after the object which made the byte count reach 
+   * the limit has been written, so the actual number of bytes between
+   * resets may be larger.
+   * 
+   * @param n number of bytes, 0 (the default) never resets
+   */
+  public void setResetEveryBytes(long n) {
+    if(n < 0) {
+      throw new RuntimeException("Number of bytes must not be negative: "+n);
+    }
+    resetEveryBytes = n;
+  }
+  
+  /**
+   * Get the number of bytes after which the stream gets reset.
+   * @return number of bytes or 0 if never reset based on bytes written
+   */
+  public long getResetEveryBytes() {
+    return resetEveryBytes;
+  }
+  
+  /**
+   * Get the number of times the object output stream has been reset.
+   * @return reset count
+   */
+  public long getResetCount() {
+    return resetCount;
+  }
+  
+  /**
+   * Get the number of objects written since the last reset.
+   * 
+   * The object output stream does not expose the size of its handle table,
+   * this is the number of objects encoded since the last reset,
+   * which bounds the handle table together with the objects they reference.
+   * 
+   * @return number of objects
+   */
+  public long getObjectsSinceReset() {
+    return objectsSinceReset;
+  }
+  
+  /**
+   * Get the number of bytes sent since the last reset.
+   * 
+   * This only includes bytes which have actually been flushed to the process.
+   * 
+   * @return number of bytes
+   */
+  public long getBytesSinceReset() {
+    return counter == null ? 0 : counter.count - bytesAtReset;
+  }
+
+  @Override
+  public void init(InputStream in, OutputStream out) throws IOException {
+    counter = new CountingOutputStream(out);
+    oos = new ObjectOutputStream(counter);
+    objectsSinceReset = 0;
+    bytesAtReset = 0;
+    oos.writeObject("Hello from Process4ObjectStream v1.0");
+    ois = new ObjectInputStream(in);
+    try {
+      Object ret = ois.readObject();
+      System.err.println("Got hello from process: "+ret);
+    } catch (ClassNotFoundException ex) {
+      throw new RuntimeException("Could not receive the other side's hello object");
+    }
+  }
+
+  @Override
+  public void encode(Object data) throws IOException {
+    oos.writeObject(data);
+    objectsSinceReset++;
+    if((resetEveryObjects > 0 && objectsSinceReset >= resetEveryObjects) ||
+       (resetEveryBytes > 0 && counter.count - bytesAtReset >= resetEveryBytes)) {
+      oos.reset();
+      resetCount++;
+      objectsSinceReset = 0;
+      bytesAtReset = counter.count;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    oos.flush();
+  }
+
+  @Override
+  public Object decode() throws IOException {
+    try {
+      return ois.readObject();
+    } catch (ClassNotFoundException ex) {
+      throw new IOException("Could not find the class of the received object",ex);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      ois.close();
+    } catch (IOException ex) {
+      //ignore
+    }
+    try {
+      oos.close();
+    } catch (IOException ex) {
+      //ignore
+    }
+  }
+  
+  /**
+   * Output stream which counts the bytes passed on to the wrapped stream.
+   */
+  private static class CountingOutputStream extends FilterOutputStream {
+    private volatile long count = 0;
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+  
+}
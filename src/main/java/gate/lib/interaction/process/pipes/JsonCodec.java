@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.pipes;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gate.lib.interaction.process.pipes.Process4JsonStream.WireFormat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * Codec which exchanges data as JSON in one of the wire formats.
+ * 
+ * See {@link WireFormat} for how the data is represented for each format.
+ * The object mapper must match the wire format: a mapper for a JSON 
+ * factory for JSON_LINES and JSON_STREAMING, a mapper for a Smile 
+ * factory for SMILE and a mapper for a CBOR factory for CBOR.
+ */
+public class JsonCodec implements Codec {
+  
+  private final WireFormat format;
+  private final ObjectMapper mapper;
+  // JSON_LINES
+  private BufferedReader ir;
+  private PrintStream ps;
+  // JSON_STREAMING
+  private JsonGenerator generator;
+  private JsonParser parser;
+  private InputStream pis;
+  // SMILE, CBOR
+  private DataOutputStream dos;
+  private DataInputStream dis;
+  private ExposedByteArrayOutputStream encoded;
+  private byte[] decodeBuffer;
+  // larger frames get encoded and decoded with buffers which are not kept,
+  // so that a single large message does not pin its memory
+  private static final int MAX_KEPT_BUFFER = 1024*1024;
+  
+  /**
+   * Create a codec for the given wire format.
+   * @param format the wire format
+   * @param mapper the object mapper for converting between objects and the wire format
+   */
+  public JsonCodec(WireFormat format, ObjectMapper mapper) {
+    this.format = format;
+    this.mapper = mapper;
+  }
+  
+  /**
+   * Get the wire format of this codec.
+   * @return wire format
+   */
+  public WireFormat getWireFormat() {
+    return format;
+  }
+
+  @Override
+  public void init(InputStream in, OutputStream out) throws IOException {
+    pis = in;
+    parser = null;
+    switch(format) {
+      case JSON_STREAMING:
+        generator = mapper.getFactory().createGenerator(
+                new BufferedOutputStream(out), JsonEncoding.UTF8);
+        // we write our own newline after each value 
+        generator.setRootValueSeparator(null);
+        // NOTE: the parser is only created when it is first needed because 
+        // creating it blocks until the first bytes for detecting the 
+        // encoding are available.
+        break;
+      case SMILE:
+      case CBOR:
+        dos = new DataOutputStream(new BufferedOutputStream(out));
+        dis = new DataInputStream(new BufferedInputStream(in));
+        encoded = new ExposedByteArrayOutputStream();
+        decodeBuffer = new byte[8192];
+        break;
+      default:
+        ps = new PrintStream(out,false,"UTF-8");
+        ir = new BufferedReader(new InputStreamReader(in,"UTF-8"));
+    }
+  }
+
+  @Override
+  public void encode(Object data) throws IOException {
+    switch(format) {
+      case JSON_STREAMING:
+        mapper.writeValue(generator, data);
+        generator.writeRaw('\n');
+        break;
+      case SMILE:
+      case CBOR:
+        encoded.reset();
+        mapper.writeValue(encoded, data);
+        dos.writeInt(encoded.size());
+        dos.write(encoded.buffer(), 0, encoded.size());
+        if(encoded.buffer().length > MAX_KEPT_BUFFER) {
+          encoded = new ExposedByteArrayOutputStream();
+        }
+        break;
+      default:
+        String json = mapper.writeValueAsString(data);
+        ps.println(json);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    switch(format) {
+      case JSON_STREAMING:
+        generator.flush();
+        break;
+      case SMILE:
+      case CBOR:
+        dos.flush();
+        break;
+      default:
+        ps.flush();
+    }
+  }
+
+  /**
+   * Read the next value.
+   * 
+   * For JSON_LINES, lines are read, skipping any lines which
+   * do not look like a JSON object. 
+   * 
+   * @return the parsed object or null if we reached EOF
+   * @throws IOException if reading or parsing fails
+   */
+  @Override
+  public Object decode() throws IOException {
+    switch(format) {
+      case JSON_STREAMING:
+        if(parser == null) {
+          parser = mapper.getFactory().createParser(pis);
+        }
+        if(parser.nextToken() == null) {
+          return null;
+        }
+        return mapper.readValue(parser, Object.class);
+      case SMILE:
+      case CBOR:
+        int len;
+        try {
+          len = dis.readInt();
+        } catch (EOFException ex) {
+          return null;
+        }
+        if(len < 0) {
+          throw new IOException("Invalid frame size "+len);
+        }
+        byte[] frame;
+        if(len > MAX_KEPT_BUFFER) {
+          frame = new byte[len];
+        } else {
+          if(len > decodeBuffer.length) {
+            decodeBuffer = new byte[Math.min(MAX_KEPT_BUFFER, Math.max(len, 2*decodeBuffer.length))];
+          }
+          frame = decodeBuffer;
+        }
+        dis.readFully(frame, 0, len);
+        return mapper.readValue(frame, 0, len, Object.class);
+      default:
+        String json = "";
+        while(json != null && !json.trim().startsWith("{")) {
+          try {
+            json = ir.readLine();
+          } catch (EOFException eofex) {
+            return null;
+          }
+        }
+        if(json == null) {
+          return null;
+        } else {
+          return mapper.readValue(json,Map.class);
+        }
+    }
+  }
+
+  @Override
+  public void close() {
+    // NOTE: the reader and data input stream are not closed, just the
+    // underlying stream, because closing them would block while another
+    // thread is waiting for a response
+    try {
+      pis.close();
+      if(parser != null) {
+        parser.close();
+      }
+    } catch (IOException ex) {
+      //ignore
+    }
+    try {
+      if(generator != null) {
+        generator.close();
+      } else if(dos != null) {
+        dos.close();
+      } else {
+        ps.close();
+      }
+    } catch (Exception ex) {
+      //ignore
+    }
+  }
+  
+  /**
+   * Byte array output stream which gives access to its buffer without copying.
+   */
+  private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    byte[] buffer() {
+      return buf;
+    }
+  }
+  
+}
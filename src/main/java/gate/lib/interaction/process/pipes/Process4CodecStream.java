@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.pipes;
+
+import gate.lib.interaction.process.ProcessBase;
+import gate.lib.interaction.process.Threads;
+import gate.lib.interaction.process.metrics.RequestTimer;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class for exchanging data with a command line process using any codec.
+ * 
+ * This takes care of starting the process and of sending requests and 
+ * reading back responses over the standard input and output of the 
+ * process, while the given {@link Codec} determines how the data is 
+ * represented. The Process4StringStream, Process4ObjectStream and
+ * Process4JsonStream classes are this transport used with the
+ * {@link StringLinesCodec}, {@link JavaObjectCodec} and {@link JsonCodec}. 
+ * <p>
+ * The items of a batch are written by a separate thread while the responses
+ * are read, so that a process which writes responses before it has read 
+ * the whole batch does not block once the pipe buffers are full. The same
+ * can be enabled for single requests with setFullDuplex(boolean).
+ * <p>
+ * NOTE: reading from the process can block forever unless a timeout is
+ * used, see setDefaultTimeout(long) and process(Object, long).
+ */
+public class Process4CodecStream extends ProcessBase
+{
+  
+  /**
+   * Used for making sure only one request/response exchange happens at a time.
+   */
+  protected final ReentrantLock synchronizer = new ReentrantLock();
+  
+  /**
+   * How long to wait in milliseconds for the writer to finish after reading 
+   * the response failed, before the process gets restarted.
+   */
+  static final long AWAIT_WRITE_MS = 1000;
+  
+  /**
+   * The codec used for the process.
+   */
+  protected Codec codec;
+  
+  private volatile boolean fullDuplex = false;
+  
+  /**
+   * Create an instance which uses the given codec.
+   * 
+   * The process is only started by startProcess().
+   * 
+   * @param codec the codec to use
+   */
+  protected Process4CodecStream(Codec codec) {
+    this.codec = codec;
+  }
+  
+  /**
+   * Factory method to create a process that exchanges data using the given codec.
+   * @param codec the codec to use, must not be shared with other processes
+   * @param workingDirectory directory to use as a working directory by the process
+   * @param env environment variable settings
+   * @param command the command to run, as a list of strings
+   * @return the initialised process instance
+   */
+  public static Process4CodecStream create(Codec codec, File workingDirectory, Map<String,String> env,  List<String> command) {
+    Process4CodecStream ret = new Process4CodecStream(codec);
+    ret.startProcess(workingDirectory, env, command);
+    return ret;
+  }
+  
+  /**
+   * Factory method to create a process that exchanges data using the given codec.
+   * @param codec the codec to use, must not be shared with other processes
+   * @param workingDirectory directory to use as a working directory by the process
+   * @param env environment variable settings
+   * @param command the command to run, as a list of arguments to the method
+   * @return the initialised process instance
+   */
+  public static Process4CodecStream create(Codec codec, File workingDirectory, Map<String,String> env,  String... command) {
+    return create(codec, workingDirectory, env, Arrays.asList(command));
+  }
+  
+  /**
+   * Set the working directory, environment and command and start the process.
+   * 
+   * This is what the factory methods of subclasses should call after 
+   * creating the instance.
+   * 
+   * @param workingDirectory directory to use as a working directory by the process
+   * @param env environment variable settings
+   * @param command the command to run, as a list of strings
+   */
+  protected void startProcess(File workingDirectory, Map<String,String> env,  List<String> command) {
+    if(workingDirectory != null) {
+      workingDir = workingDirectory;
+    }
+    if(env != null) {
+      envvars.putAll(env);
+    }
+    this.command.addAll(command);
+    updateCommand4OS(this.command);
+    ensureProcess();
+  }
+  
+  /**
+   * Get the codec used for the process.
+   * @return codec
+   */
+  public Codec getCodec() {
+    return codec;
+  }
+  
+  /**
+   * Replace the codec used for the process.
+   * 
+   * If the process is already running, the new codec gets initialised 
+   * with the streams of the running process. 
+   * 
+   * @param codec the new codec
+   */
+  protected void setCodec(Codec codec) {
+    synchronizer.lock();
+    try {
+      this.codec = codec;
+      if(process != null) {
+        initCodec();
+      }
+    } finally {
+      synchronizer.unlock();
+    }
+  }
+  
+  /**
+   * Write single requests while reading the response.
+   * 
+   * By default, process() writes the whole request before it starts 
+   * reading the response, which is fastest for small requests. If the 
+   * process may start writing a large response before it has read all of
+   * a large request, both sides block once the pipe buffers are full.
+   * With this enabled, the request is written by a thread from 
+   * Threads.executor() while the response is read, which avoids this and 
+   * overlaps writing and reading for multi-megabyte requests. 
+   * processBatch() always writes this way.
+   * 
+   * @param flag true to write requests while reading the response
+   */
+  public void setFullDuplex(boolean flag) {
+    fullDuplex = flag;
+  }
+  
+  /**
+   * Check if single requests are written while reading the response.
+   * @return flag
+   */
+  public boolean isFullDuplex() {
+    return fullDuplex;
+  }
+  
+  @Override
+  public Object process(Object data) {
+    return process(data, defaultTimeout);
+  }
+  
+  @Override
+  public Object process(Object data, long timeout) {
+    RequestTimer timer = metrics.start();
+    synchronizer.lock();
+    try {
+      awaitRestart();
+      timer.lockAcquired();
+      return callWithTimeout(timeout, () -> exchange(data, timer));
+    } finally {
+      synchronizer.unlock();
+    }
+  }
+  
+  private Object exchange(Object data, RequestTimer timer) {
+    metrics.awaitResponse(timer);
+    try {
+      RequestWriter writer = () -> {
+        codec.encode(data);
+        timer.encoded();
+        codec.flush();
+        timer.flushed();
+      };
+      CompletableFuture<Void> writing = null;
+      if(fullDuplex) {
+        writing = writeAsync(writer);
+      } else {
+        writer.write();
+      }
+      // if we get an end of file, we return null 
+      // This is mainly for the case where the other side got a STOP command
+      // and terminated without sending any response back first.
+      Object ret;
+      boolean ended = false;
+      try {
+        ret = codec.decode();
+      } catch (EOFException eofex) {
+        ret = null;
+        ended = true;
+      } catch (IOException | RuntimeException ex) {
+        awaitWrite(writing, ex);
+        throw ex;
+      }
+      awaitWrite(writing, ended);
+      metrics.finish(timer);
+      return ret;
+    } catch (IOException ex) {
+      RuntimeException rex = new RuntimeException("Problem when writing to output connection",ex);
+      metrics.failed(timer, rex);
+      throw rex;
+    } catch (RuntimeException ex) {
+      metrics.failed(timer, ex);
+      throw ex;
+    }
+  }
+  
+  /**
+   * Process a batch of data items.
+   * 
+   * This sends all items from a separate thread, flushing only once, 
+   * while reading back one response for each, so the batch may be 
+   * larger than the pipe buffers. If the process ends before all
+   * responses have been read, the missing responses are null.
+   * 
+   * @param data the list of data items to process
+   * @return the list of responses
+   */
+  @Override
+  public List<Object> processBatch(List<?> data) {
+    RequestTimer timer = metrics.start();
+    timer.setItems(data.size());
+    synchronizer.lock();
+    try {
+      awaitRestart();
+      timer.lockAcquired();
+      return callWithTimeout(defaultTimeout, () -> exchangeBatch(data, timer));
+    } finally {
+      synchronizer.unlock();
+    }
+  }
+  
+  private List<Object> exchangeBatch(List<?> data, RequestTimer timer) {
+    List<Object> ret = new ArrayList<>(data.size());
+    metrics.awaitResponse(timer);
+    try {
+      CompletableFuture<Void> writing = writeAsync(() -> {
+        for(Object item : data) {
+          codec.encode(item);
+        }
+        timer.encoded();
+        codec.flush();
+        timer.flushed();
+      });
+      boolean ended = false;
+      try {
+        for(int i=0; i<data.size(); i++) {
+          Object obj = null;
+          if(!ended) {
+            try {
+              obj = codec.decode();
+            } catch (EOFException eofex) {
+              ended = true;
+            }
+          }
+          ret.add(obj);
+        }
+      } catch (IOException | RuntimeException ex) {
+        awaitWrite(writing, ex);
+        throw ex;
+      }
+      awaitWrite(writing, ended);
+      metrics.finish(timer);
+    } catch (IOException ex) {
+      RuntimeException rex = new RuntimeException("Problem when writing to output connection",ex);
+      metrics.failed(timer, rex);
+      throw rex;
+    } catch (RuntimeException ex) {
+      metrics.failed(timer, ex);
+      throw ex;
+    }
+    return ret;
+  }
+  
+  /**
+   * Writes a request to the process.
+   */
+  interface RequestWriter {
+    void write() throws IOException;
+  }
+  
+  /**
+   * Run the writer on a thread from Threads.executor().
+   */
+  static CompletableFuture<Void> writeAsync(RequestWriter writer) {
+    CompletableFuture<Void> ret = new CompletableFuture<>();
+    Threads.executor().execute(() -> {
+      try {
+        writer.write();
+        ret.complete(null);
+      } catch (Throwable ex) {
+        // complete in any case, so that nobody waits for the writer forever
+        ret.completeExceptionally(ex);
+      }
+    });
+    return ret;
+  }
+  
+  /**
+   * Wait until writing has finished after the response has been read.
+   * 
+   * If the process ended before sending the response, it is expected that
+   * writing failed as well, so the error is ignored.
+   * 
+   * @param writing the writer or null if the request was already written
+   * @param ended true if the process closed its output
+   * @throws IOException if writing failed
+   */
+  static void awaitWrite(CompletableFuture<Void> writing, boolean ended) throws IOException {
+    if(writing == null) {
+      return;
+    }
+    try {
+      writing.join();
+    } catch (CompletionException ex) {
+      if(ended) {
+        return;
+      }
+      if(ex.getCause() instanceof IOException) {
+        throw (IOException)ex.getCause();
+      }
+      if(ex.getCause() instanceof Error) {
+        throw (Error)ex.getCause();
+      }
+      throw (RuntimeException)ex.getCause();
+    }
+  }
+  
+  /**
+   * Wait until writing has finished after reading failed.
+   * 
+   * This makes sure that the next request does not get written while
+   * the writer still uses the stream. Any error from writing gets added 
+   * to the error from reading.
+   * <p>
+   * The process may be blocked writing responses which nobody reads any 
+   * more, so that it never reads the rest of the request. If writing does 
+   * not finish within AWAIT_WRITE_MS milliseconds, the process gets 
+   * restarted, which kills it first and so makes writing fail.
+   * 
+   * @param writing the writer or null if the request was already written
+   * @param readError the error from reading the response
+   */
+  void awaitWrite(CompletableFuture<Void> writing, Throwable readError) {
+    if(writing == null) {
+      return;
+    }
+    try {
+      try {
+        writing.get(AWAIT_WRITE_MS, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException ex) {
+        restart("Process did not read the request after reading the response failed");
+        writing.get();
+      }
+    } catch (ExecutionException ex) {
+      readError.addSuppressed(ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      readError.addSuppressed(ex);
+    }
+  }
+  
+  /**
+   * Check if the external process is running.
+   * @return flag 
+   */
+  @Override
+  public boolean isAlive() {
+    return !need2start();
+  }
+  
+  ///////////////////////////////////////////////////////////////////
+  
+  private void initCodec() {
+    try {
+      codec.init(metrics.wrap(process.getInputStream()), metrics.wrap(process.getOutputStream()));
+    } catch (IOException ex) {
+      throw new RuntimeException("Could not set up the connection",ex);
+    }
+  }
+
+  @Override
+  protected void setupInteraction() {
+    initCodec();
+    copyStream(process.getErrorStream(), System.out);
+  }
+
+  @Override
+  protected void stopInteraction() {
+    stopRequested = true;
+    codec.close();
+  }
+  
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.pipes;
+
+import gate.lib.interaction.process.ProcessBase;
+import gate.lib.interaction.process.metrics.RequestTimer;
+import gate.lib.interaction.process.SharedMemoryRegion;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Minimalist class for exchanging binary frames with a command line process.
+ * <p>
+ * Each message in either direction is a frame which consists of
+ * the length of the payload as a 4 byte big-endian integer, followed by
+ * the payload bytes. This makes it possible to send arbitrary binary
+ * data, e.g. some custom serialisation format, without any escaping
+ * and without the overhead of Java serialisation.
+ * <p>
+ * The process() method accepts a byte[] or ByteBuffer and returns a new
+ * byte[] for each response. The processBuffer() method avoids the
+ * allocation for the response by returning a view of an internal buffer
+ * which gets re-used for the next response.
+ * <p>
+ * Optionally, large payloads can be passed through a shared memory region
+ * instead of the pipe, see {@link #enableSharedMemory(SharedMemoryRegion, int)}.
+ * In that case, a length of -1 indicates that instead of the payload,
+ * the offset and the length of the payload in the shared memory region
+ * follow, each as a 4 byte big-endian integer. The external process may
+ * also send responses in this way, using the response half of the region.
+ * When shared memory is enabled, a frame with length -2 gets sent first: it
+ * contains the path of the file to map as a modified UTF-8 string 
+ * (as written by DataOutputStream.writeUTF) and the size of the region 
+ * as a 4 byte big-endian integer.
+ * <p>
+ * NOTE: reading from the process can block forever unless a timeout is
+ * used, see setDefaultTimeout(long) and process(Object, long).
+ */
+public class Process4FramedStream extends ProcessBase
+{
+
+  private static final int BUFFER_SIZE = 64*1024;
+  private static final int FRAME_SHARED = -1;
+  private static final int FRAME_SETUP_SHARED = -2;
+
+  private final ReentrantLock synchronizer = new ReentrantLock();
+
+  private DataInputStream dis;
+  private DataOutputStream dos;
+
+  // the buffer into which responses get read, grows as needed
+  private byte[] responseBuffer = new byte[BUFFER_SIZE];
+  private ByteBuffer responseView = ByteBuffer.wrap(responseBuffer);
+  // scratch buffer for copying from direct byte buffers
+  private byte[] scratch;
+
+  private int maxFrameSize = Integer.MAX_VALUE;
+  
+  private SharedMemoryRegion sharedMemory;
+  private int sharedMemoryThreshold;
+
+  private Process4FramedStream() {}
+
+  /**
+   * Factory method to create a process that exchanges binary frames.
+   * @param workingDirectory directory to use as a working directory by the process
+   * @param env environment variable settings
+   * @param command the command to run, as a list of String to the method
+   * @return the initialised process instance
+   */
+  public static Process4FramedStream create(File workingDirectory, Map<String,String> env,  List<String> command) {
+    Process4FramedStream ret = new Process4FramedStream();
+    if(workingDirectory != null) {
+      ret.workingDir = workingDirectory;
+    }
+    if(env != null) {
+      ret.envvars.putAll(env);
+    }
+    ret.command.addAll(command);
+    ret.updateCommand4OS(ret.command);
+    ret.ensureProcess();
+    return ret;
+  }
+
+  /**
+   * Factory method to create a process that exchanges binary frames.
+   * @param workingDirectory directory to use as a working directory by the process
+   * @param env environment variable settings
+   * @param command the command to run, as a list of arguments to the method
+   * @return the initialised process instance
+   */
+  public static Process4FramedStream create(File workingDirectory, Map<String,String> env,  String... command) {
+    Process4FramedStream ret = new Process4FramedStream();
+    if(workingDirectory != null) {
+      ret.workingDir = workingDirectory;
+    }
+    if(env != null) {
+      ret.envvars.putAll(env);
+    }
+    ret.command.addAll(Arrays.asList(command));
+    ret.updateCommand4OS(ret.command);
+    ret.ensureProcess();
+    return ret;
+  }
+
+  /**
+   * Set the maximum size of a response frame we accept.
+   *
+   * If the process sends a larger frame, an exception is thrown: this
+   * protects against allocating huge buffers if the process writes
+   * something which is not a proper frame. The default is not to limit
+   * the size.
+   *
+   * @param size maximum number of payload bytes
+   * @return modified instance
+   */
+  public Process4FramedStream setMaxFrameSize(int size) {
+    maxFrameSize = size;
+    return this;
+  }
+
+  /**
+   * Pass payloads larger than the threshold through shared memory.
+   * 
+   * The external process is told to map the file of the region, and
+   * from then on, each request payload larger than the threshold gets 
+   * written into the request half of the region if there is enough space,
+   * and only its offset and length are sent over the pipe. The region
+   * gets closed when the process is stopped.
+   * 
+   * @param region the shared memory region to use
+   * @param threshold the payload size above which to use the region
+   * @return modified instance
+   */
+  public Process4FramedStream enableSharedMemory(SharedMemoryRegion region, int threshold) {
+    try {
+      synchronizer.lock();
+      try {
+        sharedMemory = region;
+        sharedMemoryThreshold = threshold;
+        announceSharedMemory();
+      } finally {
+        synchronizer.unlock();
+      }
+    } catch (IOException ex) {
+      throw new RuntimeException("Could not send shared memory setup to the process",ex);
+    }
+    return this;
+  }
+  
+  private void announceSharedMemory() throws IOException {
+    dos.writeInt(FRAME_SETUP_SHARED);
+    dos.writeUTF(sharedMemory.getFile().getAbsolutePath());
+    dos.writeInt(sharedMemory.getSize());
+    dos.flush();
+  }
+  
+  /**
+   * Send a frame and return the response frame as a new byte array.
+   *
+   * @param data a byte[] or ByteBuffer, for a ByteBuffer the remaining bytes are sent
+   * @return the response as a byte array or null if the process ended
+   */
+  @Override
+  public Object process(Object data) {
+    return process(data, defaultTimeout);
+  }
+
+  /**
+   * Send a frame and return the response frame within the given time.
+   *
+   * @param data a byte[] or ByteBuffer, for a ByteBuffer the remaining bytes are sent
+   * @param timeout the timeout in milliseconds, 0 or less for no timeout
+   * @return the response as a byte array or null if the process ended
+   */
+  @Override
+  public Object process(Object data, long timeout) {
+    ByteBuffer buffer = toByteBuffer(data);
+    RequestTimer timer = metrics.start();
+    synchronizer.lock();
+    try {
+      awaitRestart();
+      timer.lockAcquired();
+      return callWithTimeout(timeout, () -> toBytes(exchange(buffer, timer)));
+    } finally {
+      synchronizer.unlock();
+    }
+  }
+
+  /**
+   * Send a frame and return the response frame without copying it.
+   *
+   * The returned buffer is a view of an internal buffer or of the shared
+   * memory region, positioned at the start of the response with the limit 
+   * set to the end of the response.
+   * It is only valid until the next method call on this instance which
+   * reads a response, so if an instance is shared between threads, the
+   * process() method should be used instead.
+   *
+   * @param data the frame to send, the remaining bytes are sent
+   * @return the response or null if the process ended
+   */
+  public ByteBuffer processBuffer(ByteBuffer data) {
+    RequestTimer timer = metrics.start();
+    synchronizer.lock();
+    try {
+      awaitRestart();
+      timer.lockAcquired();
+      return callWithTimeout(defaultTimeout, () -> exchange(data, timer));
+    } finally {
+      synchronizer.unlock();
+    }
+  }
+  
+  private ByteBuffer exchange(ByteBuffer data, RequestTimer timer) {
+    metrics.awaitResponse(timer);
+    int shared = 0;
+    try {
+      shared = writeFrame(data);
+      timer.encoded();
+      dos.flush();
+      timer.flushed();
+      ByteBuffer ret = readFrame();
+      metrics.finish(timer);
+      return ret;
+    } catch (IOException ex) {
+      metrics.failed(timer, ex);
+      throw new RuntimeException("Problem when exchanging frames with the process",ex);
+    } catch (RuntimeException ex) {
+      metrics.failed(timer, ex);
+      throw ex;
+    } finally {
+      // also if the exchange failed, otherwise the space would never be freed
+      releaseShared(shared);
+    }
+  }
+
+  /**
+   * Process a batch of frames.
+   *
+   * This sends all frames, flushing only once and then reads back
+   * one response frame for each. If the process ends before all
+   * responses have been read, the missing responses are null.
+   *
+   * @param data the list of byte[] or ByteBuffer to send
+   * @return the list of response byte arrays
+   */
+  @Override
+  public List<Object> processBatch(List<?> data) {
+    RequestTimer timer = metrics.start();
+    timer.setItems(data.size());
+    synchronizer.lock();
+    try {
+      awaitRestart();
+      timer.lockAcquired();
+      return callWithTimeout(defaultTimeout, () -> exchangeBatch(data, timer));
+    } finally {
+      synchronizer.unlock();
+    }
+  }
+  
+  private List<Object> exchangeBatch(List<?> data, RequestTimer timer) {
+    List<Object> ret = new ArrayList<>(data.size());
+    metrics.awaitResponse(timer);
+    int shared = 0;
+    try {
+      for(Object item : data) {
+        shared += writeFrame(toByteBuffer(item));
+      }
+      timer.encoded();
+      dos.flush();
+      timer.flushed();
+      for(int i=0; i<data.size(); i++) {
+        ret.add(toBytes(readFrame()));
+      }
+      metrics.finish(timer);
+    } catch (IOException ex) {
+      metrics.failed(timer, ex);
+      throw new RuntimeException("Problem when exchanging frames with the process",ex);
+    } catch (RuntimeException ex) {
+      metrics.failed(timer, ex);
+      throw ex;
+    } finally {
+      releaseShared(shared);
+    }
+    return ret;
+  }
+
+  private static ByteBuffer toByteBuffer(Object data) {
+    if(data instanceof byte[]) {
+      return ByteBuffer.wrap((byte[])data);
+    } else if(data instanceof ByteBuffer) {
+      return (ByteBuffer)data;
+    } else {
+      throw new RuntimeException("Data must be a byte[] or ByteBuffer, not "+
+              (data == null ? "null" : data.getClass()));
+    }
+  }
+
+  private static byte[] toBytes(ByteBuffer response) {
+    if(response == null) {
+      return null;
+    }
+    byte[] ret = new byte[response.remaining()];
+    response.duplicate().get(ret);
+    return ret;
+  }
+  
+  private void releaseShared(int n) {
+    for(int i=0; i<n; i++) {
+      sharedMemory.release();
+    }
+  }
+
+  /**
+   * Write the remaining bytes of the buffer as a frame, without flushing.
+   * The position of the buffer is not changed.
+   * @param data the payload
+   * @return 1 if the payload was written to shared memory, 0 otherwise
+   * @throws IOException if writing fails
+   */
+  private int writeFrame(ByteBuffer data) throws IOException {
+    int len = data.remaining();
+    if(sharedMemory != null && len > sharedMemoryThreshold) {
+      int offset = sharedMemory.allocate(len);
+      if(offset >= 0) {
+        try {
+          sharedMemory.write(offset, data);
+          dos.writeInt(FRAME_SHARED);
+          dos.writeInt(offset);
+          dos.writeInt(len);
+        } catch (IOException | RuntimeException ex) {
+          // the caller does not know about this allocation
+          sharedMemory.release();
+          throw ex;
+        }
+        return 1;
+      }
+    }
+    dos.writeInt(len);
+    if(data.hasArray()) {
+      dos.write(data.array(), data.arrayOffset()+data.position(), len);
+    } else {
+      if(scratch == null) {
+        scratch = new byte[BUFFER_SIZE];
+      }
+      ByteBuffer src = data.duplicate();
+      while(src.hasRemaining()) {
+        int n = Math.min(src.remaining(), scratch.length);
+        src.get(scratch, 0, n);
+        dos.write(scratch, 0, n);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Read the next frame into the response buffer.
+   * @return view of the response buffer or null on EOF
+   * @throws IOException if reading fails
+   */
+  private ByteBuffer readFrame() throws IOException {
+    int len;
+    try {
+      len = dis.readInt();
+    } catch (EOFException ex) {
+      return null;
+    }
+    if(len == FRAME_SHARED && sharedMemory != null) {
+      int offset = dis.readInt();
+      len = dis.readInt();
+      if(offset < sharedMemory.getResponseOffset() || len < 0 || 
+              (long)offset + len > sharedMemory.getSize()) {
+        throw new IOException("Response not in the response half of the shared memory region: offset="+
+                offset+", length="+len);
+      }
+      return sharedMemory.slice(offset, len);
+    }
+    if(len < 0 || len > maxFrameSize) {
+      throw new IOException("Invalid frame size "+len);
+    }
+    if(len > responseBuffer.length) {
+      responseBuffer = new byte[Math.max(len, (int)Math.min(Integer.MAX_VALUE, 2L*responseBuffer.length))];
+      responseView = ByteBuffer.wrap(responseBuffer);
+    }
+    dis.readFully(responseBuffer, 0, len);
+    // NOTE: call these via Buffer so the code also runs on Java 8
+    Buffer view = responseView;
+    view.clear();
+    view.limit(len);
+    return responseView;
+  }
+
+
+  /**
+   * Check if the external process is running.
+   * @return the indicator if running or not
+   */
+  @Override
+  public boolean isAlive() {
+    return !need2start();
+  }
+
+  ///////////////////////////////////////////////////////////////////
+
+
+
+  @Override
+  protected void setupInteraction() {
+    dos = new DataOutputStream(new BufferedOutputStream(metrics.wrap(process.getOutputStream()), BUFFER_SIZE));
+    dis = new DataInputStream(new BufferedInputStream(metrics.wrap(process.getInputStream()), BUFFER_SIZE));
+    copyStream(process.getErrorStream(), System.out);
+    if(sharedMemory != null) {
+      // a restarted process needs to be told about the region again and
+      // allocations of requests which never got a response are dropped
+      while(sharedMemory.getAllocationCount() > 0) {
+        sharedMemory.release();
+      }
+      try {
+        announceSharedMemory();
+      } catch (IOException ex) {
+        throw new RuntimeException("Could not send shared memory setup to the process",ex);
+      }
+    }
+  }
+
+  @Override
+  protected void stopInteraction() {
+    stopRequested = true;
+    try {
+      dos.close();
+    } catch (IOException ex) {
+      //ignore
+    }
+    try {
+      dis.close();
+    } catch (IOException ex) {
+      //ignore
+    }
+    // keep the region if the process just gets restarted after a timeout
+    if(sharedMemory != null && !restarting) {
+      sharedMemory.close();
+    }
+  }
+
+}
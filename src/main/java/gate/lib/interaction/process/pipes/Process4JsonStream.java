@@ -19,34 +19,107 @@
  */
 package gate.lib.interaction.process.pipes;
 
-import java.io.BufferedReader;
+import com.fasterxml.jackson.databind.*;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import gate.lib.interaction.process.ProcessTimeoutException;
+import gate.lib.interaction.process.Threads;
+import gate.lib.interaction.process.metrics.RequestTimer;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import com.fasterxml.jackson.databind.*;
-import gate.lib.interaction.process.ProcessBase;
-import java.io.EOFException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Minimalist class for exchanging objects through JSON
- * 
- * NOTE: at the moment, reading from the process can block forever, there is
- * no timeout! 
+ * <p>
+ * Besides the blocking process() method, this also supports pipelined
+ * requests through processAsync(): each request map gets a request id 
+ * added and a separate reader thread matches the responses, which may 
+ * arrive in any order, to the requests through that id. This requires
+ * that the process on the other side copies the request id field 
+ * into each response.
+ * <p>
+ * How the JSON gets written and read is determined by the wire format,
+ * see {@link WireFormat}. This is a {@link Process4CodecStream} which
+ * uses a {@link JsonCodec} for the configured wire format.
+ * <p>
+ * NOTE: reading from the process can block forever unless a timeout is
+ * used, see setDefaultTimeout(long) and process(Object, long).
  */
-public class Process4JsonStream extends ProcessBase
+public class Process4JsonStream extends Process4CodecStream
 {
   
-  private final Object synchronizer = new Object();
+  /**
+   * The ways in which the JSON data can be exchanged with the process.
+   */
+  public enum WireFormat {
+    /**
+     * Each request is written as a single line. Response lines which do
+     * not start with "{" are skipped and each response must be a JSON object
+     * on a single line. This is the default.
+     */
+    JSON_LINES,
+    /**
+     * Requests are written directly as UTF-8 bytes by a streaming generator, 
+     * each followed by a newline, and responses are read by a streaming 
+     * parser from the input stream. Any JSON value, including arrays, 
+     * scalars and values which span several lines can be exchanged, but
+     * the process must not write anything else to its standard output.
+     * This avoids creating intermediate Strings for each message.
+     */
+    JSON_STREAMING,
+    /**
+     * Each message is encoded in the binary Smile format and sent as 
+     * a frame, the length of the encoded message as a 4 byte big-endian 
+     * integer, followed by the encoded bytes, like for 
+     * {@link Process4FramedStream}. Smile back-references repeated keys
+     * and short values, which makes messages with many repeated keys 
+     * considerably smaller and faster to encode and decode.
+     */
+    SMILE,
+    /**
+     * Each message is encoded in the binary CBOR format (RFC 7049) and sent 
+     * as a frame like for SMILE. 
+     */
+    CBOR
+  }
   
-  private final ObjectMapper mapper = new ObjectMapper();
+  private static final Logger LOGGER = LoggerFactory.getLogger(Process4JsonStream.class);
+  
+  private final ObjectMapper mapper = 
+          new ObjectMapper().disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+  private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+  private final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+  
+  private WireFormat wireFormat = WireFormat.JSON_LINES;
+  
+  // settings and state for asynchronous, pipelined processing
+  private String requestIdField = "requestId";
+  private int maxInFlight = 64;
+  private volatile boolean asyncMode = false;
+  private Semaphore inFlight;
+  private final AtomicLong lastRequestId = new AtomicLong();
+  // the requests waiting for a response from the current reader, each
+  // reader gets its own map, which is only replaced while holding the lock
+  private volatile Map<Long,CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
 
-  private Process4JsonStream() { }
+  private Process4JsonStream() { 
+    super(null);
+    codec = new JsonCodec(wireFormat, mapper);
+  }
   
   /**
    * Factory method to create a process that exchanges JSON over stdin/stdout.
@@ -58,15 +131,7 @@ public class Process4JsonStream extends ProcessBase
    */
   public static Process4JsonStream create(File workingDirectory, Map<String,String> env,  List<String> command) {
     Process4JsonStream ret = new Process4JsonStream();    
-    if(workingDirectory != null) {
-      ret.workingDir = workingDirectory;
-    }
-    if(env != null) {
-      ret.envvars.putAll(env);
-    }
-    ret.command.addAll(command);
-    ret.updateCommand4OS(ret.command);
-    ret.ensureProcess();
+    ret.startProcess(workingDirectory, env, command);
     return ret;
   }
   
@@ -79,107 +144,383 @@ public class Process4JsonStream extends ProcessBase
    * @return the initialised process instance
    */
   public static Process4JsonStream create(File workingDirectory, Map<String,String> env,  String... command) {
-    Process4JsonStream ret = new Process4JsonStream();    
-    if(workingDirectory != null) {
-      ret.workingDir = workingDirectory;
-    }
-    if(env != null) {
-      ret.envvars.putAll(env);
+    return create(workingDirectory, env, Arrays.asList(command));
+  }
+  
+  /**
+   * Set the wire format to use for exchanging JSON with the process.
+   * 
+   * This should be called before any data has been exchanged with the 
+   * process and cannot be used once asynchronous processing has started. 
+   * 
+   * @param format the wire format
+   * @return modified instance
+   */
+  public Process4JsonStream setWireFormat(WireFormat format) {
+    synchronizer.lock();
+    try {
+      if(asyncMode) {
+        throw new RuntimeException("Cannot change the wire format after asynchronous processing started");
+      }
+      wireFormat = format;
+      setCodec(new JsonCodec(format, mapperFor(format)));
+    } finally {
+      synchronizer.unlock();
     }
-    ret.command.addAll(Arrays.asList(command));    
-    ret.updateCommand4OS(ret.command);
-    ret.ensureProcess(); 
-    return ret;
-    
+    return this;
+  }
+  
+  /**
+   * Get the wire format used for exchanging JSON with the process.
+   * @return the wire format
+   */
+  public WireFormat getWireFormat() {
+    return wireFormat;
   }
   
-  private BufferedReader ir;
-  private PrintStream ps;
+  private ObjectMapper mapperFor(WireFormat format) {
+    switch(format) {
+      case SMILE:
+        return smileMapper;
+      case CBOR:
+        return cborMapper;
+      default:
+        return mapper;
+    }
+  }
   
-  @Override
-  public Object process(Object data) {
+  /**
+   * Register a Jackson module for converting between objects and JSON.
+   * 
+   * The module is used for all wire formats. For example, registering
+   * a {@link gate.lib.interaction.data.PrimitiveArraysModule} makes 
+   * it possible to send SparseDoubleVector instances and get numeric arrays 
+   * back as primitive arrays.
+   * 
+   * @param module the module to register
+   * @return modified instance
+   */
+  public Process4JsonStream registerModule(com.fasterxml.jackson.databind.Module module) {
+    synchronizer.lock();
     try {
-      synchronized(synchronizer) {
-        String json = mapper.writeValueAsString(data);
-        ps.println(json);
-        ps.flush();
-        // 
-        json = "";
-        while(json != null && !json.trim().startsWith("{")) {
-          try {
-            json = ir.readLine();
-            // System.err.println("DEBUG: got response line: "+json);
-          } catch (EOFException eofex) {
-            return null;
-          }
-        }
-        // System.err.println("Using this response line: "+json);
-        if(json == null) {
-          return null;
-        } else {
-          Object obj = mapper.readValue(json,Map.class);
-          return obj;
-        }
-      }
-    } catch (IOException ex) {
-      throw new RuntimeException("Problem when writing to output connection",ex);
+      mapper.registerModule(module);
+      smileMapper.registerModule(module);
+      cborMapper.registerModule(module);
+    } finally {
+      synchronizer.unlock();
     }
+    return this;
   }
-
   
+  /**
+   * Set the name of the field used for the request id in asynchronous mode.
+   * 
+   * This must be set before processAsync() is used for the first time.
+   * The default is "requestId".
+   * 
+   * @param name the field name
+   * @return modified instance
+   */
+  public Process4JsonStream setRequestIdField(String name) {
+    if(asyncMode) {
+      throw new RuntimeException("Cannot change the request id field after asynchronous processing started");
+    }
+    requestIdField = name;
+    return this;
+  }
   
+  /**
+   * Set the maximum number of requests which may be in flight at the same time.
+   * 
+   * If this many requests are waiting for a response, processAsync() blocks 
+   * until a response arrives. This must be set before processAsync() is 
+   * used for the first time. The default is 64.
+   * 
+   * @param max the maximum number of outstanding requests, at least 1
+   * @return modified instance
+   */
+  public Process4JsonStream setMaxInFlight(int max) {
+    if(asyncMode) {
+      throw new RuntimeException("Cannot change the maximum in-flight requests after asynchronous processing started");
+    }
+    if(max < 1) {
+      throw new RuntimeException("Maximum in-flight requests must be at least 1, not "+max);
+    }
+    maxInFlight = max;
+    return this;
+  }
   
   /**
-   * Check if the external process is running.
-   * @return flag flag
+   * Process data and return the response.
+   * 
+   * Once processAsync() has been used, this simply waits for the result of 
+   * processAsync() and only Map data can be processed. 
+   * 
+   * @param data the data to process 
+   * @return the response 
    */
   @Override
-  public boolean isAlive() {
-    return !need2start();
+  public Object process(Object data) {
+    return process(data, defaultTimeout);
   }
   
-  ///////////////////////////////////////////////////////////////////
-  
+  /**
+   * Process data and return the response within the given time.
+   * 
+   * Once processAsync() has been used, this waits for the result of 
+   * processAsync() and throws a ProcessTimeoutException if it does
+   * not arrive in time, but the process does not get restarted, since 
+   * other requests may still be in flight.
+   * 
+   * @param data the data to process 
+   * @param timeout the timeout in milliseconds, 0 or less for no timeout
+   * @return the response 
+   */
+  @Override
+  public Object process(Object data, long timeout) {
+    if(asyncMode) {
+      return await(processAsync(data, timeout), timeout);
+    }
+    return super.process(data, timeout);
+  }
   
+  /**
+   * Wait for the response of an asynchronous request.
+   * 
+   * If the response does not arrive in time, the request is given up, 
+   * so that it does not count as in flight any more. 
+   * 
+   * @param future the future of the request
+   * @param timeout the timeout in milliseconds, 0 or less for no timeout
+   * @return the response
+   */
+  private Object await(CompletableFuture<Object> future, long timeout) {
+    try {
+      if(timeout > 0) {
+        return future.get(timeout, TimeUnit.MILLISECONDS);
+      } else {
+        return future.get();
+      }
+    } catch (InterruptedException ex) {
+      future.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for the response",ex);
+    } catch (ExecutionException ex) {
+      throw new RuntimeException("Problem when processing the data",ex.getCause());
+    } catch (TimeoutException ex) {
+      ProcessTimeoutException tex = 
+              new ProcessTimeoutException("No response from the process within "+timeout+"ms", ex);
+      if(future.completeExceptionally(tex)) {
+        metrics.timedOut();
+      }
+      throw tex;
+    }
+  }
 
+  /**
+   * Process a batch of data items.
+   * 
+   * This sends all items, flushing only once, and then reads back one
+   * response for each. In asynchronous mode, all items are sent with
+   * processAsync() instead and the method waits for all the responses.
+   * If the process ends before all responses have been read, the 
+   * missing responses are null.
+   * 
+   * @param data the list of data items to process
+   * @return the list of responses
+   */
   @Override
-  protected void setupInteraction() {
+  public List<Object> processBatch(List<?> data) {
+    if(asyncMode) {
+      List<Object> ret = new ArrayList<>(data.size());
+      List<CompletableFuture<Object>> futures = new ArrayList<>(data.size());
+      long deadline = System.currentTimeMillis() + defaultTimeout;
+      for(Object item : data) {
+        long timeout = defaultTimeout > 0 ? Math.max(1, deadline - System.currentTimeMillis()) : 0;
+        futures.add(processAsync(item, timeout));
+      }
+      for(CompletableFuture<Object> future : futures) {
+        long timeout = defaultTimeout > 0 ? Math.max(1, deadline - System.currentTimeMillis()) : 0;
+        ret.add(await(future, timeout));
+      }
+      return ret;
+    }
+    return super.processBatch(data);
+  }
+
+  /**
+   * Send a request without waiting for the response.
+   * 
+   * The data must be a map: a copy of the map with the request id 
+   * field added is sent to the process, and the returned future is 
+   * completed with the response which contains the same request id.
+   * The request id field is removed from the response.
+   * The first call of this method switches the instance to asynchronous 
+   * mode and starts the reader thread. 
+   * If the maximum number of requests is already in flight, this 
+   * blocks until a response arrives, or until the default timeout has 
+   * passed, in which case a ProcessTimeoutException is thrown.
+   * A request stops counting as in flight as soon as the future gets 
+   * completed, so a request which is not needed any more can be given 
+   * up by cancelling the future.
+   * <p>
+   * If the process ends without sending a response, the future is 
+   * completed with null.
+   * 
+   * @param data the map to process
+   * @return future for the response
+   */
+  @Override
+  public CompletableFuture<Object> processAsync(Object data) {
+    return processAsync(data, defaultTimeout);
+  }
+  
+  private CompletableFuture<Object> processAsync(Object data, long timeout) {
+    if(!(data instanceof Map)) {
+      throw new RuntimeException("Only Map data can be processed asynchronously, not "+
+              (data == null ? "null" : data.getClass()));
+    }
+    ensureAsyncMode();
+    RequestTimer timer = metrics.start();
     try {
-      //System.err.println("Setting up the Print Stream");
-      ps = new PrintStream(process.getOutputStream());
-      //ps.println("Hello from Process4ObjectStream v1.0");
-    } catch (Exception ex) {
-      throw new RuntimeException("Could not create output connection",ex);
+      if(timeout > 0) {
+        if(!inFlight.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+          metrics.timedOut();
+          throw new ProcessTimeoutException("Still "+maxInFlight+" requests in flight after "+timeout+"ms");
+        }
+      } else {
+        inFlight.acquire();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting to send a request",ex);
     }
+    long id = lastRequestId.incrementAndGet();
+    Map<Object,Object> request = new LinkedHashMap<>((Map<?,?>)data);
+    request.put(requestIdField, id);
+    CompletableFuture<Object> future = new CompletableFuture<>();
     try {
-      //System.err.println("Setting up the input stream");
-      InputStream pis = process.getInputStream();
-      ir = new BufferedReader(new InputStreamReader(pis,"UTF-8"));
+      synchronizer.lock();
       try {
-        //String ret = ir.readLine();
-        //System.err.println("Got hello from process: "+ret);
-      } catch (Exception ex) {
-        throw new RuntimeException("Could not receive the other side's hello message");
+        timer.lockAcquired();
+        // the map of the reader for the process the request gets written to
+        final Map<Long,CompletableFuture<Object>> p = pending;
+        future.whenComplete((response, error) -> {
+          // whoever removes the request releases its slot, this covers requests
+          // which were given up before the response arrived
+          if(p.remove(id, future)) {
+            inFlight.release();
+          }
+          if(error == null) {
+            timer.responseArrived();
+            metrics.finish(timer);
+          } else {
+            metrics.failed(timer, error);
+          }
+        });
+        p.put(id, future);
+        codec.encode(request);
+        timer.encoded();
+        codec.flush();
+        timer.flushed();
+      } finally {
+        synchronizer.unlock();
       }
     } catch (IOException ex) {
-      throw new RuntimeException("Could not create input connection",ex);      
+      future.completeExceptionally(new RuntimeException("Problem when writing to output connection",ex));
     }
-    copyStream(process.getErrorStream(), System.out);
-    //System.err.println("DONE setting up the interaction");
+    return future;
   }
-
-  @Override
-  protected void stopInteraction() {
-    stopRequested = true;
+  
+  private void ensureAsyncMode() {
+    synchronizer.lock();
     try {
-      ir.close();
+      if(!asyncMode) {
+        inFlight = new Semaphore(maxInFlight);
+        asyncMode = true;
+        startReader();
+      }
+    } finally {
+      synchronizer.unlock();
+    }
+  }
+  
+  /**
+   * Start a reader for the current process, must be called while holding the lock.
+   */
+  private void startReader() {
+    final Codec c = codec;
+    final Map<Long,CompletableFuture<Object>> p = new ConcurrentHashMap<>();
+    pending = p;
+    Threads.start("Process4JsonStream-reader", () -> readResponses(c, p));
+  }
+  
+  /**
+   * Read responses and complete the matching futures until the stream ends.
+   * 
+   * Only the requests in the map of this reader get completed, so that the 
+   * reader of a process which was replaced does not touch the requests 
+   * sent to the new process.
+   * 
+   * @param c the codec to read with
+   * @param pending the requests sent to the process this reader reads from
+   */
+  private void readResponses(Codec c, Map<Long,CompletableFuture<Object>> pending) {
+    Throwable error = null;
+    try {
+      Object obj;
+      // stop as soon as the process was replaced, the codec then reads from the new one
+      while(pending == this.pending && (obj = c.decode()) != null) {
+        Object idObj = obj instanceof Map ? ((Map<?,?>)obj).remove(requestIdField) : null;
+        CompletableFuture<Object> future = null;
+        if(idObj instanceof Number) {
+          future = pending.remove(((Number)idObj).longValue());
+        } else if(idObj instanceof String) {
+          try {
+            future = pending.remove(Long.parseLong((String)idObj));
+          } catch (NumberFormatException ex) {
+            // handled below
+          }
+        }
+        if(future == null) {
+          LOGGER.warn("Ignoring response with missing or unknown request id {}, the request may have timed out", idObj);
+        } else {
+          inFlight.release();
+          future.complete(obj);
+        }
+      }
     } catch (IOException ex) {
-      //ignore
+      if(!stopRequested) {
+        error = ex;
+      }
+    }
+    // the stream ended: complete all requests still waiting for a response
+    for(Long id : new ArrayList<>(pending.keySet())) {
+      CompletableFuture<Object> future = pending.remove(id);
+      if(future != null) {
+        inFlight.release();
+        if(error == null) {
+          future.complete(null);
+        } else {
+          future.completeExceptionally(new RuntimeException("Problem when reading from input connection",error));
+        }
+      }
     }
+  }
+  
+  ///////////////////////////////////////////////////////////////////
+  
+  @Override
+  protected void setupInteraction() {
+    // no request may be written to the new process before its reader exists
+    synchronizer.lock();
     try {
-      ps.close();
-    } catch (Exception ex) {
-      //ignore
+      super.setupInteraction();
+      if(asyncMode) {
+        startReader();
+      }
+    } finally {
+      synchronizer.unlock();
     }
   }
   
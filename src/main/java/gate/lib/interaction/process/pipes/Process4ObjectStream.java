@@ -19,13 +19,7 @@
  */
 package gate.lib.interaction.process.pipes;
 
-import gate.lib.interaction.process.ProcessBase;
-import java.io.EOFException;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -33,18 +27,22 @@ import java.util.Map;
 /**
  * Minimalist class for exchanging objects through object streams  with a command line process.
  * <p>
- * NOTE: at the moment, reading from the process can block forever, there is
- * no timeout! 
+ * This is a {@link Process4CodecStream} which uses a {@link JavaObjectCodec}.
+ * The reset policy of the object output stream can be configured through
+ * the methods of this class, see {@link JavaObjectCodec} for details.
+ * <p>
+ * NOTE: reading from the process can block forever unless a timeout is
+ * used, see setDefaultTimeout(long) and process(Object, long).
  */
-public class Process4ObjectStream extends ProcessBase
+public class Process4ObjectStream extends Process4CodecStream
 {
 
-  private final Object synchronizer = new Object();
-
-  private ObjectInputStream ois;
-  private ObjectOutputStream oos;
+  private final JavaObjectCodec objectCodec;
   
-  private Process4ObjectStream() {}
+  private Process4ObjectStream(JavaObjectCodec codec) {
+    super(codec);
+    objectCodec = codec;
+  }
   
   /**
    * Factory method to create a process that exchanges ObjectStream data.
@@ -54,16 +52,8 @@ public class Process4ObjectStream extends ProcessBase
    * @return the initialised process instance
    */
   public static Process4ObjectStream create(File workingDirectory, Map<String,String> env,  List<String> command) {
-    Process4ObjectStream ret = new Process4ObjectStream();
-    if(workingDirectory != null) {
-      ret.workingDir = workingDirectory;
-    }
-    if(env != null) {
-      ret.envvars.putAll(env);
-    }
-    ret.command.addAll(command);
-    ret.updateCommand4OS(ret.command);
-    ret.ensureProcess();
+    Process4ObjectStream ret = new Process4ObjectStream(new JavaObjectCodec());
+    ret.startProcess(workingDirectory, env, command);
     return ret;
   }
 
@@ -75,94 +65,65 @@ public class Process4ObjectStream extends ProcessBase
    * @return the initialised process instance
    */
   public static Process4ObjectStream create(File workingDirectory, Map<String,String> env,  String... command) {
-    Process4ObjectStream ret = new Process4ObjectStream();
-    if(workingDirectory != null) {
-      ret.workingDir = workingDirectory;
-    }
-    if(env != null) {
-      ret.envvars.putAll(env);
-    }
-    ret.command.addAll(Arrays.asList(command));    
-    ret.updateCommand4OS(ret.command);
-    ret.ensureProcess(); 
-    return ret;
+    return create(workingDirectory, env, Arrays.asList(command));
+  }
+  
+  /**
+   * Reset the object stream after this many objects have been written.
+   * 
+   * @param n number of objects, 1 resets after every object, 0 (the default) never resets
+   */
+  public void setResetEveryObjects(int n) {
+    objectCodec.setResetEveryObjects(n);
   }
   
-    
-  @Override
-  public Object process(Object data) {
-    try {
-      synchronized(synchronizer) {
-        oos.writeObject(data);
-        oos.flush();
-        // if we get an end of file, we return null 
-        // This is mainly for the case where the other side got a STOP command
-        // and terminated without sending any response back first.
-        try {
-          return ois.readObject();
-        } catch (EOFException eofex) {
-          return null;
-        }
-      }
-    } catch (IOException|ClassNotFoundException ex) {
-      throw new RuntimeException("Problem when writing to object stream",ex);
-    }
+  /**
+   * Get the number of objects after which the stream gets reset.
+   * @return number of objects or 0 if never reset based on object count
+   */
+  public int getResetEveryObjects() {
+    return objectCodec.getResetEveryObjects();
   }
-
   
   /**
-   * Check if the external process is running.
-   * @return the indicator if running or not
+   * Reset the object stream after this many bytes have been written.
+   * 
+   * @param n number of bytes, 0 (the default) never resets
    */
-  @Override
-  public boolean isAlive() {
-    return !need2start();
+  public void setResetEveryBytes(long n) {
+    objectCodec.setResetEveryBytes(n);
   }
   
-  ///////////////////////////////////////////////////////////////////
+  /**
+   * Get the number of bytes after which the stream gets reset.
+   * @return number of bytes or 0 if never reset based on bytes written
+   */
+  public long getResetEveryBytes() {
+    return objectCodec.getResetEveryBytes();
+  }
   
+  /**
+   * Get the number of times the object output stream has been reset.
+   * @return reset count
+   */
+  public long getResetCount() {
+    return objectCodec.getResetCount();
+  }
   
-
-  @Override
-  protected void setupInteraction() {
-    // NOTE: creating an object input stream will block until the header of 
-    // the first object is received so we have to have the convention that
-    // both sides need to first send some Hello object.
-    // This should be a string that indicates the sending component and version.
-    try {
-      oos = new ObjectOutputStream(process.getOutputStream());
-      oos.writeObject("Hello from Process4ObjectStream v1.0");
-    } catch (IOException ex) {
-      throw new RuntimeException("Could not create object output stream",ex);
-    }
-    try {
-      InputStream pis = process.getInputStream();
-      ois = new ObjectInputStream(pis);
-      try {
-        Object ret = ois.readObject();
-        System.err.println("Got hello from process: "+ret);
-      } catch (ClassNotFoundException ex) {
-        throw new RuntimeException("Could not receive the other side's hello object");
-      }
-    } catch (IOException ex) {
-      throw new RuntimeException("Could not create object input stream",ex);      
-    }
-    copyStream(process.getErrorStream(), System.out);
+  /**
+   * Get the number of objects written since the last reset.
+   * @return number of objects
+   */
+  public long getObjectsSinceReset() {
+    return objectCodec.getObjectsSinceReset();
   }
-
-  @Override
-  protected void stopInteraction() {
-    stopRequested = true;
-    try {
-      ois.close();
-    } catch (IOException ex) {
-      //ignore
-    }
-    try {
-      oos.close();
-    } catch (IOException ex) {
-      //ignore
-    }
+  
+  /**
+   * Get the number of bytes sent since the last reset.
+   * @return number of bytes
+   */
+  public long getBytesSinceReset() {
+    return objectCodec.getBytesSinceReset();
   }
   
 }
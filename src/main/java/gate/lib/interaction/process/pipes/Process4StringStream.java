@@ -19,43 +19,58 @@
  */
 package gate.lib.interaction.process.pipes;
 
-import gate.lib.interaction.process.ProcessBase;
-import java.io.BufferedReader;
-import java.io.EOFException;
+import gate.lib.interaction.process.metrics.RequestTimer;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Minimalist class for exchanging String lines
  * 
  * This just sends or retrieves arbitrary lines of String which could be 
  * JSON we already have or want to parse ourself, or anything else. 
+ * This is a {@link Process4CodecStream} which uses a {@link StringLinesCodec}.
  * <p>
  * Note: the string being sent over this connection in either direction should
  * NOT contain any newline character!
  * <p>
- * NOTE: at the moment, reading from the process can block forever, there is
- * no timeout! 
+ * Documents which are too large to keep in memory or which contain newlines
+ * can be sent with processStream(Reader, ResponseHandler), which sends the 
+ * document in chunks and reads the response in chunks as well, see
+ * {@link StringLinesCodec} for the format the process has to support.
+ * <p>
+ * NOTE: reading from the process can block forever unless a timeout is
+ * used, see setDefaultTimeout(long) and process(Object, long).
  */
-public class Process4StringStream extends ProcessBase
+public class Process4StringStream extends Process4CodecStream
 {
 
+  /**
+   * Consumes the response to a chunked document.
+   * @param <T> the type of the result
+   */
+  public interface ResponseHandler<T> {
+    /**
+     * Read the response.
+     * @param response reader for the text of the response, which does not
+     * need to be read to the end
+     * @return the result
+     * @throws IOException if reading fails
+     */
+    T handle(Reader response) throws IOException;
+  }
   
-  private final Object synchronizer = new Object();
+  private volatile int chunkSize = 65536;
   
-
   private Process4StringStream() {
+    super(new StringLinesCodec());
   }
   
-  private BufferedReader ir;
-  private PrintStream ps;
-  
   /**
    * Factory method to create a process that exchanges strings over stdin/stdout.
    * @param workingDirectory directory to use as a working directory by the process
@@ -65,15 +80,7 @@ public class Process4StringStream extends ProcessBase
    */
   public static Process4StringStream create(File workingDirectory, Map<String,String> env,  List<String> command) {
     Process4StringStream ret = new Process4StringStream();    
-    if(workingDirectory != null) {
-      ret.workingDir = workingDirectory;
-    }
-    if(env != null) {
-      ret.envvars.putAll(env);
-    }
-    ret.command.addAll(command);
-    ret.updateCommand4OS(ret.command);
-    ret.ensureProcess();
+    ret.startProcess(workingDirectory, env, command);
     return ret;
   }
   
@@ -85,95 +92,128 @@ public class Process4StringStream extends ProcessBase
    * @return the initialised process instance
    */
   public static Process4StringStream create(File workingDirectory, Map<String,String> env,  String... command) {
-    Process4StringStream ret = new Process4StringStream();    
-    if(workingDirectory != null) {
-      ret.workingDir = workingDirectory;
-    }
-    if(env != null) {
-      ret.envvars.putAll(env);
+    return create(workingDirectory, env, Arrays.asList(command));
+  }
+  
+  /**
+   * Set the maximum size of the chunks of a document sent by processStream().
+   * @param size the maximum number of chars in a chunk, at least 2
+   */
+  public void setChunkSize(int size) {
+    if(size < 2) {
+      throw new IllegalArgumentException("Chunk size must be at least 2");
     }
-    ret.command.addAll(Arrays.asList(command));    
-    ret.updateCommand4OS(ret.command);
-    ret.ensureProcess(); 
-    return ret;
-    
+    chunkSize = size;
   }
   
+  /**
+   * Get the maximum size of the chunks of a document sent by processStream().
+   * @return the maximum number of chars in a chunk
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
   
-  @Override
-  public Object process(Object data) {
+  /**
+   * Process a document of any size in chunks.
+   * 
+   * The document is read and sent in chunks by a separate thread, while 
+   * the handler reads the response as it arrives, so that neither the 
+   * document nor the response has to be kept in memory and the process
+   * can respond before it has read the whole document. No other request 
+   * is exchanged with the process until the handler returns. Whatever the
+   * handler did not read of the response gets skipped.
+   * The default timeout is used for the whole exchange.
+   * 
+   * @param <T> the type of the result
+   * @param document the document to send, gets read until the end but not closed
+   * @param handler gets called with a reader for the response
+   * @return the result of the handler
+   */
+  public <T> T processStream(Reader document, ResponseHandler<T> handler) {
+    RequestTimer timer = metrics.start();
+    synchronizer.lock();
     try {
-      synchronized(synchronizer) {
-        String str = (String)data;
-        ps.println(str);
-        ps.flush();
-        // if we get an end of file, we return null 
-        // This is mainly for the case where the other side got a STOP command
-        // and terminated without sending any response back first.
-        try {
-          str = ir.readLine();
-          return str;
-        } catch (EOFException eofex) {
-          return null;
-        }
-      }
-    } catch (IOException ex) {
-      throw new RuntimeException("Problem when writing to output connection",ex);
+      awaitRestart();
+      timer.lockAcquired();
+      return callWithTimeout(defaultTimeout, () -> exchangeStream(document, handler, timer));
+    } finally {
+      synchronizer.unlock();
     }
   }
   
-  
   /**
-   * Check if the external process is running.
-   * @return flag 
+   * Process a document of any size in chunks and write the response.
+   * 
+   * This is processStream(Reader, ResponseHandler) with a handler which
+   * copies the response to the writer.
+   * 
+   * @param document the document to send, gets read until the end but not closed
+   * @param response where to write the response, does not get flushed or closed
    */
-  @Override
-  public boolean isAlive() {
-    return !need2start();
+  public void processStream(Reader document, Writer response) {
+    processStream(document, reader -> {
+      char[] buf = new char[8192];
+      int n;
+      while((n = reader.read(buf)) >= 0) {
+        response.write(buf, 0, n);
+      }
+      return null;
+    });
   }
   
-  ///////////////////////////////////////////////////////////////////
-  
-  
-
-  @Override
-  protected void setupInteraction() {
-    try {
-      //System.err.println("Setting up the Print Stream");
-      ps = new PrintStream(process.getOutputStream(),false,"UTF-8");
-      //ps.println("Hello from Process4ObjectStream v1.0");
-    } catch (Exception ex) {
-      throw new RuntimeException("Could not create output connection",ex);
-    }
+  private <T> T exchangeStream(Reader document, ResponseHandler<T> handler, RequestTimer timer) {
+    StringLinesCodec lines = (StringLinesCodec)codec;
+    final int size = chunkSize;
+    metrics.awaitResponse(timer);
     try {
-      //System.err.println("Setting up the input stream");
-      InputStream pis = process.getInputStream();
-      ir = new BufferedReader(new InputStreamReader(pis,"UTF-8"));
+      CompletableFuture<Void> writing = writeAsync(() -> {
+        lines.encodeChunked(document, size);
+        timer.encoded();
+        lines.flush();
+        timer.flushed();
+      });
+      T ret;
       try {
-        //String ret = ir.readLine();
-        //System.err.println("Got hello from process: "+ret);
-      } catch (Exception ex) {
-        throw new RuntimeException("Could not receive the other side's hello message");
+        Reader response = lines.decodeChunked();
+        try {
+          ret = handler.handle(response);
+        } catch (Throwable ex) {
+          try {
+            skipRest(response);
+          } catch (IOException | RuntimeException skipError) {
+            ex.addSuppressed(skipError);
+          }
+          throw ex;
+        }
+        skipRest(response);
+      } catch (IOException | RuntimeException ex) {
+        awaitWrite(writing, ex);
+        throw ex;
       }
+      awaitWrite(writing, false);
+      metrics.finish(timer);
+      return ret;
     } catch (IOException ex) {
-      throw new RuntimeException("Could not create input connection",ex);      
+      RuntimeException rex = new RuntimeException("Problem when streaming the document", ex);
+      metrics.failed(timer, rex);
+      throw rex;
+    } catch (RuntimeException ex) {
+      metrics.failed(timer, ex);
+      throw ex;
     }
-    copyStream(process.getErrorStream(), System.out);
-    //System.err.println("DONE setting up the interaction");
   }
-
-  @Override
-  protected void stopInteraction() {
-    stopRequested = true;
-    try {
-      ir.close();
-    } catch (IOException ex) {
-      //ignore
-    }
+  
+  /**
+   * Skip what the handler did not read, so that the next response starts
+   * at the beginning. If that fails, the process gets restarted.
+   */
+  private void skipRest(Reader response) throws IOException {
     try {
-      ps.close();
-    } catch (Exception ex) {
-      //ignore
+      response.close();
+    } catch (IOException | RuntimeException ex) {
+      restart("Could not skip the rest of the response");
+      throw ex;
     }
   }
   
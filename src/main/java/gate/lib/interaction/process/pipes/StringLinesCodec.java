@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.pipes;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Codec which exchanges Strings as UTF-8 lines.
+ * 
+ * Each String is written as one line and each line read is one response.
+ * The Strings sent in either direction must not contain any newline
+ * character.
+ * <p>
+ * Documents of any size and content can be exchanged in chunks with 
+ * encodeChunked(Reader, int) and decodeChunked(): each chunk is a line 
+ * consisting of the character U+0002 and the number of Unicode code
+ * points in the chunk, followed by exactly that many code points of text,
+ * which may include newlines. A chunk of size 0 marks the end of the
+ * document. The response to a chunked document is expected in the same 
+ * format.
+ */
+public class StringLinesCodec implements Codec {
+  
+  /**
+   * The first character of the line which starts a chunk.
+   */
+  public static final char CHUNK_MARKER = '\u0002';
+  
+  private InputStream pis;
+  private BufferedReader ir;
+  private PrintStream ps;
+
+  @Override
+  public void init(InputStream in, OutputStream out) throws IOException {
+    ps = new PrintStream(out, false, "UTF-8");
+    pis = in;
+    ir = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+  }
+
+  @Override
+  public void encode(Object data) throws IOException {
+    ps.println((String)data);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    ps.flush();
+  }
+
+  @Override
+  public Object decode() throws IOException {
+    return ir.readLine();
+  }
+
+  /**
+   * Write a document as chunks followed by the end marker, without flushing.
+   * 
+   * @param document the document to write, gets read until the end
+   * @param chunkSize the maximum number of chars in a chunk, at least 2
+   * @throws IOException if reading the document or writing fails
+   */
+  public void encodeChunked(Reader document, int chunkSize) throws IOException {
+    char[] buf = new char[chunkSize];
+    int len = 0;
+    int n;
+    while((n = document.read(buf, len, buf.length-len)) >= 0) {
+      len += n;
+      if(len == 0) {
+        continue;
+      }
+      // keep a high surrogate for the next chunk, together with its low surrogate
+      int send = Character.isHighSurrogate(buf[len-1]) ? len-1 : len;
+      writeChunk(buf, send);
+      if(send < len) {
+        buf[0] = buf[len-1];
+        len = 1;
+      } else {
+        len = 0;
+      }
+    }
+    writeChunk(buf, len);
+    ps.print(CHUNK_MARKER);
+    ps.print("0\n");
+  }
+  
+  private void writeChunk(char[] buf, int len) {
+    if(len == 0) {
+      return;
+    }
+    ps.print(CHUNK_MARKER);
+    ps.print(Character.codePointCount(buf, 0, len));
+    ps.print('\n');
+    ps.print(len == buf.length ? buf : Arrays.copyOf(buf, len));
+  }
+  
+  /**
+   * Get a reader for a response which is sent as chunks.
+   * 
+   * The chunks are read from the process as the returned reader gets read.
+   * Closing the reader skips the rest of the response, so that the next
+   * response can be read.
+   * 
+   * @return reader for the text of the response
+   */
+  public Reader decodeChunked() {
+    return new ChunkedReader();
+  }
+  
+  /**
+   * Reads the text of the chunks until the end marker.
+   */
+  private class ChunkedReader extends Reader {
+    // the number of code points left in the current chunk
+    private int remaining = 0;
+    // if the last char was a high surrogate, the low surrogate still belongs to the chunk
+    private boolean afterHigh = false;
+    private boolean ended = false;
+    
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      if(len == 0) {
+        return 0;
+      }
+      while(remaining == 0 && !afterHigh) {
+        if(ended) {
+          return -1;
+        }
+        String header = ir.readLine();
+        if(header == null) {
+          throw new EOFException("Process ended before the end of the response");
+        }
+        if(header.isEmpty() || header.charAt(0) != CHUNK_MARKER) {
+          throw new IOException("Expected the header of a chunk, got: "+
+                  header.substring(0, Math.min(header.length(), 100)));
+        }
+        remaining = Integer.parseInt(header.substring(1).trim());
+        ended = remaining == 0;
+      }
+      int n = ir.read(cbuf, off, remaining == 0 ? 1 : Math.min(len, remaining));
+      if(n < 0) {
+        throw new EOFException("Process ended before the end of the response");
+      }
+      for(int i=off; i<off+n; i++) {
+        if(afterHigh && Character.isLowSurrogate(cbuf[i])) {
+          afterHigh = false;
+          continue;
+        }
+        remaining--;
+        afterHigh = Character.isHighSurrogate(cbuf[i]);
+      }
+      if(afterHigh && remaining == 0) {
+        // only the low surrogate of a pair still belongs to the chunk, an
+        // unpaired high surrogate at its end is followed by the next header
+        ir.mark(1);
+        int next = ir.read();
+        ir.reset();
+        afterHigh = next >= 0 && Character.isLowSurrogate((char)next);
+      }
+      return n;
+    }
+    
+    @Override
+    public void close() throws IOException {
+      char[] buf = new char[8192];
+      while(read(buf, 0, buf.length) >= 0) {
+        // skip
+      }
+    }
+  }
+  
+  @Override
+  public void close() {
+    // NOTE: closing the reader would block while another thread is waiting
+    // for a response, so only the underlying stream gets closed
+    try {
+      pis.close();
+    } catch (IOException ex) {
+      //ignore
+    }
+    ps.close();
+  }
+  
+}
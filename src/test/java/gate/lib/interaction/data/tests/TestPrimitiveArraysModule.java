@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.data.tests;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gate.lib.interaction.data.PrimitiveArraysModule;
+import gate.lib.interaction.data.SparseDoubleVector;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Test class.
+ * @author Johann Petrak
+ */
+public class TestPrimitiveArraysModule {
+  
+  private static Map<String,Object> roundTrip(ObjectMapper mapper, Object data) throws Exception {
+    String json = mapper.writeValueAsString(data);
+    @SuppressWarnings("unchecked")
+    Map<String,Object> ret = mapper.readValue(json, Map.class);
+    return ret;
+  }
+  
+  /**
+   * Test the plain and packed forms.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testRoundTrip() throws Exception {
+    SparseDoubleVector v = new SparseDoubleVector(3);
+    v.getLocations()[0] = 2;
+    v.getLocations()[1] = 4;
+    v.getLocations()[2] = 8;
+    v.getValues()[0] = 0.5;
+    v.getValues()[1] = 1.5;
+    v.getValues()[2] = -1.0;
+    Map<String,Object> data = new HashMap<>();
+    data.put("vector", v);
+    data.put("dense", new double[] {1.0, 2.5});
+    data.put("ints", new int[] {1, 2, 3});
+    data.put("longs", new long[] {1L, 1L << 40});
+    data.put("mixed", Arrays.asList(1, "a"));
+    data.put("mixedNumbers", Arrays.asList(1, 2.5, 1L << 40, "x"));
+    for(boolean packed : new boolean[] { false, true }) {
+      ObjectMapper mapper = new ObjectMapper().registerModule(new PrimitiveArraysModule(packed));
+      Map<String,Object> ret = roundTrip(mapper, data);
+      assertArrayEquals(new double[] {1.0, 2.5}, (double[])ret.get("dense"), 0.0);
+      assertArrayEquals(new int[] {1, 2, 3}, (int[])ret.get("ints"));
+      assertArrayEquals(new long[] {1L, 1L << 40}, (long[])ret.get("longs"));
+      assertEquals(Arrays.asList(1, "a"), ret.get("mixed"));
+      // numbers keep their own type when the array is not all numbers
+      assertEquals(Arrays.asList(1, 2.5, 1L << 40, "x"), ret.get("mixedNumbers"));
+      Map<?,?> vmap = (Map<?,?>)ret.get("vector");
+      assertArrayEquals(v.getLocations(), (int[])vmap.get("indices"));
+      assertArrayEquals(v.getValues(), (double[])vmap.get("values"), 0.0);
+      // read back as a typed vector
+      SparseDoubleVector back = mapper.readValue(mapper.writeValueAsString(v), SparseDoubleVector.class);
+      assertArrayEquals(v.getLocations(), back.getLocations());
+      assertArrayEquals(v.getValues(), back.getValues(), 0.0);
+      assertTrue(Double.isNaN(back.getInstanceWeight()));
+    }
+    ObjectMapper mapper = new ObjectMapper().registerModule(new PrimitiveArraysModule());
+    @SuppressWarnings("unchecked")
+    List<Object> list = mapper.readValue("[1, 2.5, {\"f32le\": \"AACAPw==\"}]", List.class);
+    assertArrayEquals(new float[] {1.0f}, (float[])list.get(2), 0.0f);
+  }
+  
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.data.tests;
+
+import gate.lib.interaction.data.SparseDoubleVector;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Test class.
+ * @author Johann Petrak
+ */
+public class TestSparseDoubleVector {
+  
+  // A vector with indices 1,5,100, values 0.5,-2.0,3.25 and weight 0.75
+  // as written by the default serialization of version 4.1
+  private static final String OLD_FORMAT = 
+          "rO0ABXNyACxnYXRlLmxpYi5pbnRlcmFjdGlvbi5kYXRhLlNwYXJzZURvdWJsZVZlY3Rvcg"+
+          "AAAAAAAAACAgADRAAOaW5zdGFuY2VXZWlnaHRbAAdpbmRpY2VzdAACW0lbAAZ2YWx1ZXN0"+
+          "AAJbRHhwP+gAAAAAAAB1cgACW0lNumAmduqypQIAAHhwAAAAAwAAAAEAAAAFAAAAZHVyAA"+
+          "JbRD6mjBSrY1oeAgAAeHAAAAADP+AAAAAAAADAAAAAAAAAAEAKAAAAAAAA";
+  
+  private static byte[] serialize(Object obj) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+      oos.writeObject(obj);
+    }
+    return bytes.toByteArray();
+  }
+  
+  private static SparseDoubleVector deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+      return (SparseDoubleVector)ois.readObject();
+    }
+  }
+  
+  private static SparseDoubleVector vector(int[] indices, double[] values) {
+    SparseDoubleVector v = new SparseDoubleVector(indices.length);
+    System.arraycopy(indices, 0, v.getLocations(), 0, indices.length);
+    System.arraycopy(values, 0, v.getValues(), 0, values.length);
+    return v;
+  }
+  
+  /**
+   * Test reading the format written by earlier versions.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testReadOldFormat() throws Exception {
+    SparseDoubleVector v = deserialize(Base64.getDecoder().decode(OLD_FORMAT));
+    assertArrayEquals(new int[] {1,5,100}, v.getLocations());
+    assertArrayEquals(new double[] {0.5,-2.0,3.25}, v.getValues(), 0.0);
+    assertEquals(0.75, v.getInstanceWeight(), 0.0);
+  }
+  
+  /**
+   * Test writing and reading the compact format.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testRoundTrip() throws Exception {
+    // indices do not need to be sorted
+    int[] indices = new int[] {0, 3, 1000000, 7, Integer.MAX_VALUE};
+    double[] values = new double[] {1.0, Math.PI, -0.0, Double.NaN, 1e300};
+    SparseDoubleVector v = vector(indices, values);
+    SparseDoubleVector back = deserialize(serialize(v));
+    assertArrayEquals(indices, back.getLocations());
+    assertArrayEquals(values, back.getValues(), 0.0);
+    assertTrue(Double.isNaN(back.getInstanceWeight()));
+    
+    // empty vector
+    back = deserialize(serialize(new SparseDoubleVector(0)));
+    assertEquals(0, back.nLocations());
+    
+    // float values
+    v.setSerializeValuesAsFloat(true);
+    v.setInstanceWeight(2.0);
+    back = deserialize(serialize(v));
+    assertArrayEquals(indices, back.getLocations());
+    assertEquals((float)Math.PI, back.getValues()[1], 0.0);
+    assertTrue(back.getSerializeValuesAsFloat());
+    assertEquals(2.0, back.getInstanceWeight(), 0.0);
+  }
+  
+  /**
+   * A corrupt length of the compact format fails without allocating it.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testCorruptLength() throws Exception {
+    byte[] bytes = serialize(vector(new int[] {1,5,100}, new double[] {0.5,-2.0,3.25}));
+    // the length of 30 bytes, followed by the flags and the count
+    byte[] header = new byte[] {0, 0, 0, 30, 0, 3};
+    int pos = -1;
+    for(int i=0; pos < 0 && i+header.length <= bytes.length; i++) {
+      if(Arrays.equals(header, Arrays.copyOfRange(bytes, i, i+header.length))) {
+        pos = i;
+      }
+    }
+    assertTrue(pos >= 0);
+    bytes[pos] = 0x7F;
+    try {
+      deserialize(bytes);
+      fail("Expected an exception");
+    } catch (IOException ex) {
+      // expected
+    }
+  }
+  
+  /**
+   * Check that a typical sorted vector needs much less space than before.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testSize() throws Exception {
+    int n = 1000;
+    int[] indices = new int[n];
+    double[] values = new double[n];
+    for(int i=0; i<n; i++) {
+      indices[i] = i*3;
+      values[i] = i*0.5;
+    }
+    SparseDoubleVector v = vector(indices, values);
+    int size = serialize(v).length;
+    // the default format needs 4 bytes per index and 8 bytes per value
+    assertTrue("Size is "+size, size < n*10);
+    v.setSerializeValuesAsFloat(true);
+    int floatSize = serialize(v).length;
+    assertTrue("Float size is "+floatSize, floatSize < n*6);
+  }
+  
+  /**
+   * Test the vector operations.
+   */
+  @Test
+  public void testOperations() {
+    SparseDoubleVector a = vector(new int[] {1, 3, 5}, new double[] {1.0, 2.0, -3.0});
+    SparseDoubleVector b = vector(new int[] {0, 3, 5, 9}, new double[] {4.0, 0.5, 2.0, 1.0});
+    assertEquals(1.0 - 6.0, a.dot(b), 1e-12);
+    assertEquals(a.dot(b), b.dot(a), 1e-12);
+    assertEquals(0.0, a.dot(new SparseDoubleVector(0)), 0.0);
+    double[] dense = new double[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+    assertEquals(2.0 + 8.0 - 18.0, a.dot(dense), 1e-12);
+    assertEquals(6.0, a.norm1(), 1e-12);
+    assertEquals(Math.sqrt(14.0), a.norm2(), 1e-12);
+    
+    a.axpy(2.0, dense);
+    assertArrayEquals(new double[] {1, 4, 3, 8, 5, 0, 7, 8, 9, 10}, dense, 1e-12);
+    
+    SparseDoubleVector sum = a.add(b);
+    assertArrayEquals(new int[] {0, 1, 3, 5, 9}, sum.getLocations());
+    assertArrayEquals(new double[] {4.0, 1.0, 2.5, -1.0, 1.0}, sum.getValues(), 1e-12);
+    
+    a.scale(2.0);
+    assertArrayEquals(new double[] {2.0, 4.0, -6.0}, a.getValues(), 1e-12);
+    a.normalize();
+    assertEquals(1.0, a.norm2(), 1e-12);
+    SparseDoubleVector zero = new SparseDoubleVector(1);
+    zero.normalize();
+    assertEquals(0.0, zero.getValues()[0], 0.0);
+  }
+  
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.tests;
+
+import gate.lib.interaction.process.ProcessBase;
+import gate.lib.interaction.process.ProcessCache;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * Test class.
+ */
+public class TestProcessCache {
+  
+  /**
+   * Process which returns the data converted to a string and counts the calls.
+   */
+  private static class CountingProcess extends ProcessBase {
+    AtomicInteger calls = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(0);
+    @Override
+    public Object process(Object data) {
+      calls.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+      return "R:"+data;
+    }
+    @Override
+    protected void setupInteraction() { }
+    @Override
+    protected void stopInteraction() { }
+    @Override
+    protected boolean need2start() {
+      return false;
+    }
+  }
+  
+  /**
+   * Test hits, misses and eviction.
+   */
+  @Test
+  public void testCache() {
+    CountingProcess process = new CountingProcess();
+    ProcessCache cache = ProcessCache.create(process, 2);
+    assertEquals("R:a", cache.process("a"));
+    assertEquals("R:a", cache.process("a"));
+    assertEquals(1, process.calls.get());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    // maps with the same content are the same request
+    Map<String,Object> m1 = new HashMap<>();
+    m1.put("x", 1);
+    m1.put("y", 2);
+    Map<String,Object> m2 = new HashMap<>();
+    m2.put("y", 2);
+    m2.put("x", 1);
+    cache.process(m1);
+    cache.process(m2);
+    assertEquals(2, process.calls.get());
+    // "a" was least recently used and gets evicted
+    cache.process("b");
+    assertEquals(2, cache.size());
+    cache.process("a");
+    assertEquals(4, process.calls.get());
+    // batch: only the missing items are sent, each only once
+    List<Object> ret = cache.processBatch(Arrays.asList("a", "c", "c", "b"));
+    assertEquals(Arrays.asList("R:a", "R:c", "R:c", "R:b"), ret);
+    assertEquals(5, process.calls.get());
+  }
+  
+  /**
+   * Control requests always reach the process and the metrics are those
+   * of the process.
+   */
+  @Test
+  public void testUncached() {
+    CountingProcess process = new CountingProcess();
+    ProcessCache cache = ProcessCache.create(process, 10);
+    cache.process("STOP");
+    cache.process("STOP");
+    assertEquals(2, process.calls.get());
+    cache.addUncachedRequest("RELOAD");
+    cache.process("RELOAD");
+    cache.process("RELOAD");
+    assertEquals(4, process.calls.get());
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getHits());
+    // in a batch, each control request is sent
+    List<Object> ret = cache.processBatch(Arrays.asList("a", "STOP", "a", "STOP"));
+    assertEquals(Arrays.asList("R:a", "R:STOP", "R:a", "R:STOP"), ret);
+    assertEquals(7, process.calls.get());
+    assertEquals(1, cache.size());
+    assertSame(process.getMetrics(), cache.getMetrics());
+  }
+  
+  /**
+   * Concurrent identical requests only get processed once.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testSingleFlight() throws Exception {
+    CountingProcess process = new CountingProcess();
+    process.release = new CountDownLatch(1);
+    ProcessCache cache = ProcessCache.create(process, 10);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<Object>> results = new ArrayList<>();
+    for(int i=0; i<4; i++) {
+      results.add(executor.submit(() -> cache.process("same")));
+    }
+    // wait until the other threads are waiting for the first one
+    while(process.calls.get() == 0 || cache.getMerged() < 3) {
+      Thread.sleep(10);
+    }
+    process.release.countDown();
+    for(Future<Object> result : results) {
+      assertEquals("R:same", result.get());
+    }
+    executor.shutdown();
+    assertEquals(1, process.calls.get());
+    assertEquals(1, cache.getMisses());
+    assertEquals(3, cache.getHits());
+  }
+  
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.tests;
+
+import gate.lib.interaction.process.metrics.LatencyHistogram;
+import gate.lib.interaction.process.metrics.ProcessMetrics;
+import gate.lib.interaction.process.metrics.ProcessMetricsListener;
+import gate.lib.interaction.process.metrics.RequestTimer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.ObjectName;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Test class.
+ */
+public class TestProcessMetrics {
+  
+  /**
+   * Percentiles are within the precision of the histogram.
+   */
+  @Test
+  public void testHistogram() {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.getValueAtPercentile(50));
+    for(long i=1; i<=1000; i++) {
+      h.record(i*1000);
+    }
+    assertEquals(1000, h.getCount());
+    assertEquals(1000000, h.getMax());
+    assertEquals(500500.0, h.getMean(), 0.001);
+    long p50 = h.getValueAtPercentile(50);
+    assertTrue("p50 was "+p50, p50 >= 500000 && p50 <= 500000*17/16);
+    long p99 = h.getValueAtPercentile(99);
+    assertTrue("p99 was "+p99, p99 >= 990000 && p99 <= 1000000);
+    assertEquals(1000000, h.getValueAtPercentile(100));
+    h.record(3);
+    assertEquals(3, h.getValueAtPercentile(0));
+    h.reset();
+    assertEquals(0, h.getCount());
+  }
+  
+  /**
+   * Phases, listeners and the MBean.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testMetrics() throws Exception {
+    ProcessMetrics metrics = new ProcessMetrics();
+    List<RequestTimer> seen = new ArrayList<>();
+    metrics.addListener(new ProcessMetricsListener() {
+      @Override
+      public void requestCompleted(RequestTimer timer) {
+        seen.add(timer);
+      }
+      @Override
+      public void requestFailed(RequestTimer timer, Throwable error) {
+      }
+    });
+    RequestTimer timer = metrics.start();
+    timer.lockAcquired();
+    timer.encoded();
+    timer.flushed();
+    Thread.sleep(5);
+    timer.responseArrived();
+    metrics.finish(timer);
+    assertEquals(1, seen.size());
+    assertEquals(1, metrics.getRequestCount());
+    assertTrue(timer.getNanos(ProcessMetrics.Phase.RESPONSE_WAIT) >= 5000000);
+    assertTrue(timer.getNanos(ProcessMetrics.Phase.TOTAL) >= 
+               timer.getNanos(ProcessMetrics.Phase.RESPONSE_WAIT));
+    metrics.failed(metrics.start(), new RuntimeException());
+    assertEquals(1, metrics.getErrorCount());
+    ObjectName name = metrics.registerMBean("test metrics");
+    assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "RequestCount"));
+    metrics.unregisterMBean();
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+  }
+  
+}
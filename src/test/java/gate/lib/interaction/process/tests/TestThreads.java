@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.tests;
+
+import gate.lib.interaction.process.Threads;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Test the implementations of Threads.
+ */
+public class TestThreads {
+
+  /**
+   * The implementation used by the tests, which is always the one for
+   * Java 8 because the tests use the classes directory, not the jar.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testDefault() throws Exception {
+    assertFalse(Threads.isVirtual());
+    Thread[] ran = new Thread[1];
+    Thread t = Threads.start("test-thread", () -> ran[0] = Thread.currentThread());
+    t.join();
+    assertEquals(t, ran[0]);
+    assertTrue(t.isDaemon());
+    assertEquals("test-thread", t.getName());
+    t = Threads.factory("test-factory").newThread(() -> {});
+    assertTrue(t.isDaemon());
+    assertEquals("test-factory", t.getName());
+    assertTrue(Threads.executor().submit(() -> Thread.currentThread().isDaemon()).get());
+  }
+
+  /**
+   * The implementation for Java 21 and later, which is only tested when
+   * running on Java 21 and if it was compiled.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testJava21() throws Exception {
+    String version = System.getProperty("java.specification.version");
+    assumeTrue(!version.startsWith("1.") && Integer.parseInt(version) >= 21);
+    File classes = new File(Threads.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    File versions = new File(classes, "META-INF/versions/21");
+    assumeTrue(new File(versions, "gate/lib/interaction/process/Threads.class").exists());
+    Method isVirtualThread = Thread.class.getMethod("isVirtual");
+
+    Class<?> threads = loadThreads(classes, versions);
+    assertTrue((Boolean)threads.getMethod("isVirtual").invoke(null));
+    Thread t = (Thread)threads.getMethod("start", String.class, Runnable.class)
+            .invoke(null, "test-thread", (Runnable)() -> {});
+    t.join();
+    assertTrue((Boolean)isVirtualThread.invoke(t));
+    assertEquals("test-thread", t.getName());
+    t = ((ThreadFactory)threads.getMethod("factory", String.class).invoke(null, "test-factory"))
+            .newThread(() -> {});
+    assertTrue((Boolean)isVirtualThread.invoke(t));
+    assertEquals("test-factory", t.getName());
+    ExecutorService executor = (ExecutorService)threads.getMethod("executor").invoke(null);
+    assertTrue(executor.submit((Callable<Boolean>)() ->
+            (Boolean)isVirtualThread.invoke(Thread.currentThread())).get());
+
+    // virtual threads can be turned off
+    String old = System.getProperty("gate.lib.interaction.virtualThreads");
+    System.setProperty("gate.lib.interaction.virtualThreads", "false");
+    try {
+      threads = loadThreads(classes, versions);
+    } finally {
+      if(old == null) {
+        System.clearProperty("gate.lib.interaction.virtualThreads");
+      } else {
+        System.setProperty("gate.lib.interaction.virtualThreads", old);
+      }
+    }
+    assertFalse((Boolean)threads.getMethod("isVirtual").invoke(null));
+    t = (Thread)threads.getMethod("start", String.class, Runnable.class)
+            .invoke(null, "test-thread", (Runnable)() -> {});
+    t.join();
+    assertFalse((Boolean)isVirtualThread.invoke(t));
+    assertTrue(t.isDaemon());
+  }
+
+  // Load and initialize Threads from the Java 21 classes in a separate
+  // class loader, like a multi-release jar would on Java 21
+  private static Class<?> loadThreads(File classes, File versions) throws Exception {
+    ClassLoader loader = new URLClassLoader(
+            new URL[] { versions.toURI().toURL(), classes.toURI().toURL() },
+            ClassLoader.getSystemClassLoader().getParent());
+    return Class.forName("gate.lib.interaction.process.Threads", true, loader);
+  }
+
+}
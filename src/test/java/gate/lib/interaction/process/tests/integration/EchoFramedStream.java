@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.lib.interaction.process.tests.integration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A simple process that will echo back the binary frames it gets.
+ * 
+ * This reads length-prefixed frames from standard input and echoes them
+ * back to standard output until the input ends. Frames which are passed 
+ * through shared memory are echoed back through the response half of the 
+ * shared memory region. A shared frame which starts with the byte -1 
+ * gets a response descriptor which points into the request half, one
+ * which starts with -2 gets a response which is too long for the region. This is for testing only.
+ * 
+ * @author Johann Petrak
+ */
+public class EchoFramedStream {
+
+  /**
+   * Simple main method for testing
+   * @param args not used
+   * @throws IOException passes on IOException
+   */
+  public static void main(String[] args) throws IOException {
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(System.in));
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(System.out));
+    byte[] buffer = new byte[1024];
+    MappedByteBuffer shared = null;
+    while(true) {
+      int len;
+      try {
+        len = dis.readInt();
+      } catch (EOFException ex) {
+        break;
+      }
+      if(len == -2) {
+        String path = dis.readUTF();
+        int size = dis.readInt();
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
+          shared = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        System.err.println("Mapped shared memory "+path);
+        continue;
+      }
+      if(len == -1) {
+        int offset = dis.readInt();
+        len = dis.readInt();
+        if(shared.get(offset) == -1 || shared.get(offset) == -2) {
+          dos.writeInt(-1);
+          dos.writeInt(shared.get(offset) == -1 ? 0 : shared.capacity() / 2);
+          dos.writeInt(shared.get(offset) == -1 ? len : shared.capacity());
+          dos.flush();
+          continue;
+        }
+        // copy the request to the start of the response half
+        int responseOffset = shared.capacity() / 2;
+        for(int i=0; i<len; i++) {
+          shared.put(responseOffset+i, shared.get(offset+i));
+        }
+        dos.writeInt(-1);
+        dos.writeInt(responseOffset);
+        dos.writeInt(len);
+        dos.flush();
+        continue;
+      }
+      if(len > buffer.length) {
+        buffer = new byte[len];
+      }
+      dis.readFully(buffer, 0, len);
+      dos.writeInt(len);
+      dos.write(buffer, 0, len);
+      dos.flush();
+    }
+    System.err.println("Terminating echo");
+  }
+}
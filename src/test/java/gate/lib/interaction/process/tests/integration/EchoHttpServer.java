@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.tests.integration;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A simple HTTP server that echoes back the requests it receives.
+ *
+ * The response to a POST request is the path, the query and the body
+ * of the request, separated by "|". A GET request for /health returns
+ * "OK" once the server is ready. A request for /port returns the port
+ * and a request for /exit ends the process without a response.
+ * A request for /ndjson streams back each line of the request body.
+ *
+ * This is for testing only.
+ */
+public class EchoHttpServer {
+
+  /**
+   * Start the server.
+   * @param port the port to use, 0 for any free port
+   * @param startupDelay the time in milliseconds after which the health path
+   * reports that the server is ready
+   * @return the running server
+   * @throws IOException if the server cannot be started
+   */
+  public static HttpServer start(int port, long startupDelay) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+    final long readyAt = System.currentTimeMillis()+startupDelay;
+    final AtomicInteger healthChecks = new AtomicInteger();
+    server.createContext("/health", exchange -> {
+      int checks = healthChecks.incrementAndGet();
+      boolean ready = System.currentTimeMillis() >= readyAt;
+      byte[] ret = (ready ? "OK" : "STARTING").getBytes(StandardCharsets.UTF_8);
+      System.err.println("EchoHttpServer: health check "+checks+", ready: "+ready);
+      exchange.sendResponseHeaders(ready ? 200 : 503, ret.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(ret);
+      }
+    });
+    final int actualPort = server.getAddress().getPort();
+    server.createContext("/port", exchange -> {
+      byte[] ret = String.valueOf(actualPort).getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, ret.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(ret);
+      }
+    });
+    server.createContext("/exit", exchange -> {
+      System.err.println("EchoHttpServer: exiting");
+      System.exit(1);
+    });
+    server.createContext("/ndjson", exchange -> {
+      InputStream in = exchange.getRequestBody();
+      if("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+        in = new GZIPInputStream(in);
+      }
+      String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      boolean gzip = accept != null && accept.contains("gzip");
+      if(gzip) {
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+      exchange.sendResponseHeaders(200, 0);
+      OutputStream out = exchange.getResponseBody();
+      if(gzip) {
+        out = new GZIPOutputStream(out, true);
+      }
+      // send back each line as soon as it was read
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+      Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+      String line;
+      while((line = reader.readLine()) != null) {
+        writer.write(line);
+        writer.write('\n');
+        writer.flush();
+      }
+      writer.close();
+      in.close();
+    });
+    server.createContext("/", exchange -> {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int n;
+      try (InputStream in = exchange.getRequestBody()) {
+        while((n = in.read(buf)) > 0) {
+          body.write(buf, 0, n);
+        }
+      }
+      String query = exchange.getRequestURI().getQuery();
+      byte[] ret = (exchange.getRequestURI().getPath()+"|"+
+              (query == null ? "" : query)+"|"+
+              body.toString("UTF-8")).getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, ret.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(ret);
+      }
+    });
+    server.setExecutor(Executors.newFixedThreadPool(8));
+    server.start();
+    return server;
+  }
+
+  /**
+   * Run the server until the process gets killed.
+   * @param args the port, optionally followed by the time in milliseconds
+   * to wait before listening and the time after which the server reports
+   * to be ready
+   * @throws Exception if anything goes wrong
+   */
+  public static void main(String[] args) throws Exception {
+    int port = Integer.parseInt(args[0]);
+    if(args.length > 1) {
+      Thread.sleep(Long.parseLong(args[1]));
+    }
+    start(port, args.length > 2 ? Long.parseLong(args[2]) : 0);
+    System.err.println("EchoHttpServer: listening on port "+port);
+  }
+
+}
@@ -28,19 +28,25 @@ import java.io.ObjectOutputStream;
  * A simple process that will echo back the object stream data it gets.
  * 
  * This reads object stream data from standard input and echoes the data
- * back to standard output. This is for testing only.
+ * back to standard output. If a number is given as the first argument,
+ * the output stream is reset after that many objects. This is for testing only.
  * 
  * @author Johann Petrak
  */
 public class EchoObjectStream {
 
+  // set the system property echo.quiet to true to suppress the messages for each request
+  private static final boolean QUIET = Boolean.getBoolean("echo.quiet");
+
   /**
    * Simple main method for testing
-   * @param args not used
+   * @param args optional number of objects after which to reset the output
    * @throws IOException passes on IOException
    * @throws ClassNotFoundException passes on ClassNotFoundException
    */
   public static void main(String[] args) throws IOException, ClassNotFoundException {
+    int resetEvery = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+    int sinceReset = 0;
     ObjectOutputStream oos = new ObjectOutputStream(System.out);
     // Send the hello object
     oos.writeObject("Hello");
@@ -50,15 +56,23 @@ public class EchoObjectStream {
     ois.readObject();
     System.err.println("EOS: BEfore loop");
     while(true) {
-      System.err.println("EchoObjectStream: before reading");
+      if(!QUIET) {
+        System.err.println("EchoObjectStream: before reading");
+      }
       Object obj = ois.readObject();
-      System.err.println("EchoObjectStream: got an object, class is "+obj.getClass());
+      if(!QUIET) {
+        System.err.println("EchoObjectStream: got an object, class is "+obj.getClass());
+      }
       // we terminate if we get the string STOP
       if(obj.equals("STOP")) {
         System.err.println("Received the stop signal");
         break;
       }
       oos.writeObject(obj);
+      if(resetEvery > 0 && ++sinceReset >= resetEvery) {
+        oos.reset();
+        sinceReset = 0;
+      }
       oos.flush();
     }
     System.err.println("Terminating echo");
@@ -25,6 +25,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.Map;
 import org.apache.commons.text.StringEscapeUtils;
 
@@ -38,6 +39,9 @@ import org.apache.commons.text.StringEscapeUtils;
  */
 public class EchoStream {
 
+  // set the system property echo.quiet to true to suppress the messages for each request
+  private static final boolean QUIET = Boolean.getBoolean("echo.quiet");
+
   /**
    * Simple echo process for testing.
    * Simple process which will run forever and echo whatever it receives on
@@ -53,19 +57,44 @@ public class EchoStream {
     BufferedReader ois = new BufferedReader(new InputStreamReader(System.in,"UTF-8"));
     String line;
     while(true) {
-      System.err.println("ES: before reading");
+      if(!QUIET) {
+        System.err.println("ES: before reading");
+      }
       line = ois.readLine();
       if(line==null) {
         System.err.println("Received a null line, terminating");
         break;
       }
-      System.err.println("ES: got a line >"+StringEscapeUtils.escapeJson(line)+"<");
+      if(line.startsWith("\u0002")) {
+        echoChunks(line, ois, oos);
+        continue;
+      }
+      if(!QUIET) {
+        System.err.println("ES: got a line >"+StringEscapeUtils.escapeJson(line)+"<");
+      }
       line = line.trim();
       // e terminate if we get the string STOP instead of a JSON object or a json map
       // that contains the key/value cmd/"STOP"
       if(line.equals("STOP") || line.equals("\"STOP\"")) {
         System.err.println("Received STOP signal from string");
         break;
+      } else if(line.equals("HANG")) {
+        // simulate a process which never responds
+        System.err.println("Received HANG, sleeping");
+        try {
+          Thread.sleep(Long.MAX_VALUE);
+        } catch (InterruptedException ex) {
+          break;
+        }
+      } else if(line.startsWith("CHATTY ")) {
+        // simulate a process which writes a lot before it is ready
+        int n = Integer.parseInt(line.substring(7).trim());
+        for(int i=0; i<n; i++) {
+          oos.println("chatter "+i);
+        }
+        oos.println("READY");
+        oos.flush();
+        continue;
       } else if(line.startsWith("{")) {
         try {
           Map<?,?> m = (Map<?,?>)mapper.readValue(line,Map.class);
@@ -75,15 +104,58 @@ public class EchoStream {
           if(val != null && val.equals("STOP")) {
             System.err.println("Received the stop signal from JSON");
             break;        
+          } else if(val != null && val.equals("IGNORE")) {
+            // simulate a request which never gets a response
+            continue;
           }
         } catch (IOException ex) {
           // ignore... could have been something that is not actually a JSON map
         }
       }
-      System.err.println("Sending back line ..");
+      if(!QUIET) {
+        System.err.println("Sending back line ..");
+      }
       oos.println(line);
       oos.flush();
     }
     System.err.println("Terminating echo");
   }
+  
+  /**
+   * Echo a document sent in chunks, chunk by chunk.
+   */
+  private static void echoChunks(String header, BufferedReader in, PrintStream out) throws IOException {
+    char[] buf = new char[8192];
+    int chunks = 0;
+    while(true) {
+      if(header == null) {
+        throw new IOException("Input ended before the end marker");
+      }
+      int n = Integer.parseInt(header.substring(1).trim());
+      out.print("\u0002"+n+"\n");
+      if(n == 0) {
+        break;
+      }
+      // copy n code points
+      while(n > 0) {
+        int len = in.read(buf, 0, Math.min(n, buf.length-1));
+        if(len < 0) {
+          throw new IOException("Input ended within a chunk");
+        }
+        if(Character.isHighSurrogate(buf[len-1])) {
+          buf[len++] = (char)in.read();
+        }
+        out.print(len == buf.length ? buf : Arrays.copyOf(buf, len));
+        n -= Character.codePointCount(buf, 0, len);
+      }
+      // send back each chunk as soon as it was read
+      out.flush();
+      chunks++;
+      header = in.readLine();
+    }
+    out.flush();
+    if(!QUIET) {
+      System.err.println("ES: echoed "+chunks+" chunks");
+    }
+  }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.tests.integration;
+import gate.lib.interaction.process.pipes.Process4CodecStream;
+import gate.lib.interaction.process.pipes.StringLinesCodec;
+import gate.lib.interaction.process.tests.Utils;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Test class.
+ */
+public class TestProcess4CodecStream {
+  
+  /**
+   * Use the generic transport with a codec which wraps the lines in brackets.
+   */
+  @Test
+  public void testAll() {
+    Process4CodecStream process = 
+            Process4CodecStream.create(new BracketCodec(), new File("."), null,
+            ("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoStream")
+                    .split("\\s+",-1));
+    assertTrue(process.isAlive());
+    assertEquals("[x]", process.process("x"));
+    List<Object> batch = Arrays.asList("a", "b", "c");
+    assertEquals(Arrays.asList("[a]", "[b]", "[c]"), process.processBatch(batch));
+    process.process("STOP");
+    process.stop();
+    assertFalse(process.isAlive());
+  }
+  
+  /**
+   * A response which cannot be decoded while the process blocks writing 
+   * responses and the rest of the batch is still being written.
+   */
+  @Test
+  public void testDecodeError() {
+    Process4CodecStream process = 
+            Process4CodecStream.create(new BracketCodec(), new File("."), null,
+            ("java -Decho.quiet=true -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoStream")
+                    .split("\\s+",-1));
+    char[] chars = new char[1000000];
+    Arrays.fill(chars, 'x');
+    long start = System.currentTimeMillis();
+    try {
+      process.processBatch(Arrays.asList("CHATTY 100000", new String(chars)));
+      fail("Expected an exception");
+    } catch (RuntimeException ex) {
+      assertEquals("Cannot decode chatter 0", ex.getMessage());
+    }
+    assertTrue(System.currentTimeMillis()-start < 10000);
+    // the process got restarted
+    assertEquals("[x]", process.process("x"));
+    process.process("STOP");
+    process.stop();
+  }
+  
+  /**
+   * Codec which sends strings unchanged and wraps the responses in brackets.
+   * 
+   * Responses starting with "chatter" cannot be decoded.
+   */
+  private static class BracketCodec extends StringLinesCodec {
+    @Override
+    public Object decode() throws java.io.IOException {
+      Object ret = super.decode();
+      if(ret != null && ret.toString().startsWith("chatter")) {
+        throw new RuntimeException("Cannot decode "+ret);
+      }
+      return ret == null ? null : "["+ret+"]";
+    }
+  }
+  
+}
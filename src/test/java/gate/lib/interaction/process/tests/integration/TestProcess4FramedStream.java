@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction 
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.tests.integration;
+import gate.lib.interaction.process.SharedMemoryRegion;
+import gate.lib.interaction.process.pipes.Process4FramedStream;
+import gate.lib.interaction.process.tests.Utils;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Test class.
+ * @author Johann Petrak
+ */
+public class TestProcess4FramedStream {
+  
+  /**
+   * Exchange some frames with the echo process.
+   */
+  @Test
+  public void testAll() {
+    Process4FramedStream process = 
+            Process4FramedStream.create(new File("."), null,
+            ("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoFramedStream")
+                    .split("\\s+",-1));
+    assertTrue(process.isAlive());
+    byte[] bytes = "Something\n\u0000else".getBytes(StandardCharsets.UTF_8);
+    assertArrayEquals(bytes, (byte[])process.process(bytes));
+    assertArrayEquals(new byte[0], (byte[])process.process(new byte[0]));
+    // a large direct buffer
+    ByteBuffer direct = ByteBuffer.allocateDirect(1000000);
+    for(int i=0; i<direct.capacity(); i++) {
+      direct.put((byte)i);
+    }
+    direct.flip();
+    ByteBuffer ret = process.processBuffer(direct);
+    assertEquals(direct, ret);
+    // a batch
+    List<Object> rets = process.processBatch(Arrays.asList(bytes, ByteBuffer.wrap(bytes, 1, 3)));
+    assertArrayEquals(bytes, (byte[])rets.get(0));
+    assertArrayEquals(Arrays.copyOfRange(bytes, 1, 4), (byte[])rets.get(1));
+    // closing our side ends the echo process
+    process.stop();
+    assertFalse(process.isAlive());
+  }
+  
+  /**
+   * Exchange large frames through shared memory.
+   */
+  @Test
+  public void testSharedMemory() {
+    Process4FramedStream process = 
+            Process4FramedStream.create(new File("."), null,
+            ("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoFramedStream")
+                    .split("\\s+",-1));
+    SharedMemoryRegion region = SharedMemoryRegion.create(1000000);
+    process.enableSharedMemory(region, 1000);
+    byte[] small = new byte[] { 1, 2, 3 };
+    byte[] large = new byte[100000];
+    for(int i=0; i<large.length; i++) {
+      large[i] = (byte)(i*7);
+    }
+    assertArrayEquals(small, (byte[])process.process(small));
+    assertArrayEquals(large, (byte[])process.process(large));
+    // requests are released once the response has been read
+    assertEquals(0, region.getAllocationCount());
+    // too large for the region, sent through the pipe
+    byte[] huge = new byte[600000];
+    assertArrayEquals(huge, (byte[])process.process(huge));
+    List<Object> rets = process.processBatch(Arrays.asList(large, small, large));
+    assertArrayEquals(large, (byte[])rets.get(0));
+    assertArrayEquals(small, (byte[])rets.get(1));
+    assertArrayEquals(large, (byte[])rets.get(2));
+    assertEquals(0, region.getAllocationCount());
+    // the space is also released if the response is invalid
+    byte[] bad = large.clone();
+    for(byte marker : new byte[] { -1, -2 }) {
+      bad[0] = marker;
+      try {
+        process.process(bad);
+        fail("Expected an exception");
+      } catch (RuntimeException ex) {
+        assertTrue(ex.getCause().getMessage().contains("response half"));
+      }
+      assertEquals(0, region.getAllocationCount());
+    }
+    assertArrayEquals(large, (byte[])process.process(large));
+    process.stop();
+    assertFalse(region.getFile().exists());
+  }
+  
+  /**
+   * Test the ring allocation of the request half.
+   */
+  @Test
+  public void testRegionAllocation() {
+    SharedMemoryRegion region = SharedMemoryRegion.create(200);
+    assertEquals(100, region.getResponseOffset());
+    assertEquals(0, region.allocate(40));
+    assertEquals(40, region.allocate(40));
+    assertEquals(-1, region.allocate(40));
+    region.release();
+    // wraps around to the start
+    assertEquals(0, region.allocate(30));
+    assertEquals(-1, region.allocate(20));
+    region.release();
+    assertEquals(30, region.allocate(60));
+    region.release();
+    region.release();
+    assertEquals(0, region.getAllocationCount());
+    assertEquals(0, region.allocate(100));
+    region.close();
+    assertFalse(region.getFile().exists());
+  }
+  
+}
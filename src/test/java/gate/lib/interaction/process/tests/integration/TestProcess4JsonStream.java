@@ -18,18 +18,24 @@
  * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 package gate.lib.interaction.process.tests.integration;
+import gate.lib.interaction.process.ProcessTimeoutException;
 import gate.lib.interaction.process.pipes.Process4JsonStream;
 import gate.lib.interaction.process.tests.Utils;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 
 /**
@@ -74,6 +80,11 @@ public class TestProcess4JsonStream {
     @SuppressWarnings("unchecked")
     List<Double> retvals = (List<Double>)ret2.get("vals");
     System.err.println("Array back: "+retvals);
+    assertEquals(origs, retvals);
+    
+    // test a batch
+    List<Object> rets = process.processBatch(Arrays.asList(m, ret, ret2));
+    assertEquals(Arrays.asList(m, ret, ret2), rets);
     
     // send the stop signal, can do this as a JSON object or just raw String for the EchoStream class  
     // Note the raw string will get transmitted as JSON as well, i.e. it will be sent over quoted.
@@ -88,5 +99,146 @@ public class TestProcess4JsonStream {
             
   }
   
+  /**
+   * Test the streaming wire format.
+   */
+  @Test
+  public void testStreaming() {
+    Process4JsonStream process = 
+            Process4JsonStream.create(new File("."), null,
+            ("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoStream")
+                    .split("\\s+",-1));
+    process.setWireFormat(Process4JsonStream.WireFormat.JSON_STREAMING);
+    Map<Object,Object> m = new HashMap<>();
+    m.put("x","y\nz");
+    m.put("vals",Arrays.asList(1.1,2.2));
+    assertEquals(m, process.process(m));
+    // any JSON value can be exchanged now, not just maps
+    assertEquals(Arrays.asList(1,2,3), process.process(Arrays.asList(1,2,3)));
+    assertEquals("some string", process.process("some string"));
+    List<Object> batch = Arrays.asList(m, 12, "x");
+    assertEquals(batch, process.processBatch(batch));
+    assertNull(process.process("STOP"));
+    process.stop();
+    assertFalse(process.isAlive());
+  }
+  
+  /**
+   * Test the binary wire formats.
+   */
+  @Test
+  public void testBinary() {
+    for(Process4JsonStream.WireFormat format : 
+            new Process4JsonStream.WireFormat[] { 
+              Process4JsonStream.WireFormat.SMILE, 
+              Process4JsonStream.WireFormat.CBOR }) {
+      // the framed echo process just sends back the bytes it gets
+      Process4JsonStream process = 
+              Process4JsonStream.create(new File("."), null,
+              ("java -cp "+Utils.getClassPath()+
+               " gate.lib.interaction.process.tests.integration.EchoFramedStream")
+                      .split("\\s+",-1));
+      process.setWireFormat(format);
+      Map<Object,Object> m = new HashMap<>();
+      m.put("x","y");
+      m.put("vals",Arrays.asList(1.1,2.2));
+      assertEquals(m, process.process(m));
+      List<Object> batch = Arrays.asList(m, m, 12);
+      assertEquals(batch, process.processBatch(batch));
+      // a message larger than the buffers which are kept, and a small one after it
+      char[] chars = new char[3000000];
+      Arrays.fill(chars, 'x');
+      Map<Object,Object> large = new HashMap<>();
+      large.put("x", new String(chars));
+      assertEquals(large, process.process(large));
+      assertEquals(m, process.process(m));
+      process.stop();
+      assertFalse(process.isAlive());
+    }
+  }
+  
+  /**
+   * Test pipelined asynchronous requests.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testAsync() throws Exception {
+    Process4JsonStream process = 
+            Process4JsonStream.create(new File("."), null,
+            ("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoStream")
+                    .split("\\s+",-1));
+    process.setMaxInFlight(4);
+    List<CompletableFuture<Object>> futures = new ArrayList<>();
+    for(int i=0; i<20; i++) {
+      Map<Object,Object> m = new HashMap<>();
+      m.put("n", i);
+      futures.add(process.processAsync(m));
+    }
+    for(int i=0; i<20; i++) {
+      @SuppressWarnings("unchecked")
+      Map<Object,Object> ret = (Map<Object,Object>)futures.get(i).get();
+      assertEquals(i, ret.get("n"));
+      assertFalse(ret.containsKey("requestId"));
+    }
+    // the blocking method uses the same mechanism now
+    Map<Object,Object> m = new HashMap<>();
+    m.put("x", "y");
+    @SuppressWarnings("unchecked")
+    Map<Object,Object> ret = (Map<Object,Object>)process.process(m);
+    assertEquals("y", ret.get("x"));
+    // requests which time out do not stay in flight
+    m = new HashMap<>();
+    m.put("cmd", "IGNORE");
+    for(int i=0; i<6; i++) {
+      try {
+        process.process(m, 200);
+        fail("Expected a timeout");
+      } catch (ProcessTimeoutException ex) {
+        // expected
+      }
+    }
+    m = new HashMap<>();
+    m.put("x", "z");
+    @SuppressWarnings("unchecked")
+    Map<Object,Object> ret2 = (Map<Object,Object>)process.process(m, 10000);
+    assertEquals("z", ret2.get("x"));
+    // the echo process ends without a response, so we should get null
+    m = new HashMap<>();
+    m.put("cmd", "STOP");
+    assertNull(process.processAsync(m).get());
+    // requests sent to a restarted process are not touched by the old reader
+    while(process.isAlive()) {
+      Thread.sleep(20);
+    }
+    assertTrue(process.ensureProcess());
+    m = new HashMap<>();
+    m.put("x", "before");
+    assertEquals("before", ((Map<?,?>)process.process(m, 10000)).get("x"));
+    process.stop();
+    assertTrue(process.ensureProcess());
+    m = new HashMap<>();
+    m.put("cmd", "IGNORE");
+    CompletableFuture<Object> ignored = process.processAsync(m);
+    Thread.sleep(500);
+    assertFalse(ignored.isDone());
+    futures.clear();
+    for(int i=0; i<4; i++) {
+      m = new HashMap<>();
+      m.put("n", i);
+      futures.add(process.processAsync(m));
+    }
+    for(int i=0; i<4; i++) {
+      assertEquals(i, ((Map<?,?>)futures.get(i).get(10, TimeUnit.SECONDS)).get("n"));
+    }
+    ignored.cancel(false);
+    m = new HashMap<>();
+    m.put("cmd", "STOP");
+    assertNull(process.processAsync(m).get());
+    process.stop();
+    assertFalse(process.isAlive());
+  }
+  
   
 }
@@ -18,9 +18,13 @@
  * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 package gate.lib.interaction.process.tests.integration;
+import gate.lib.interaction.process.ProcessCache;
 import gate.lib.interaction.process.pipes.Process4ObjectStream;
 import gate.lib.interaction.process.tests.Utils;
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
@@ -47,6 +51,9 @@ public class TestProcess4ObjectStream {
     Object obj = process.process("Something");
     // make sure we got it back properly
     assertEquals("Something", obj);
+    // send a batch
+    List<Object> batch = Arrays.asList("a", 1, 2.5);
+    assertEquals(batch, process.processBatch(batch));
     // send the stop signal
     process.process("STOP");
     // stop process
@@ -55,5 +62,79 @@ public class TestProcess4ObjectStream {
             
   }
   
+  /**
+   * Send a modified object again with and without resetting the stream.
+   */
+  @Test
+  public void testReset() {
+    Process4ObjectStream process = 
+            Process4ObjectStream.create(new File("."), null,
+            ("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoObjectStream 1")
+                    .split("\\s+",-1));
+    HashMap<String,Integer> m = new HashMap<>();
+    m.put("n", 1);
+    assertEquals(m, process.process(m));
+    // without a reset, only a back-reference to the old copy is sent
+    m.put("n", 2);
+    @SuppressWarnings("unchecked")
+    HashMap<String,Integer> ret = (HashMap<String,Integer>)process.process(m);
+    assertEquals(1, (int)ret.get("n"));
+    assertEquals(0, process.getResetCount());
+    assertEquals(2, process.getObjectsSinceReset());
+    process.setResetEveryObjects(1);
+    m.put("n", 3);
+    // the first object still gets written as a back-reference, then the reset happens
+    process.process(m);
+    assertEquals(1, process.getResetCount());
+    assertEquals(0, process.getObjectsSinceReset());
+    assertEquals(m, process.process(m));
+    assertEquals(2, process.getResetCount());
+    process.setResetEveryObjects(0);
+    process.setResetEveryBytes(1);
+    assertEquals("x", process.process("x"));
+    assertEquals(3, process.getResetCount());
+    assertEquals(0, process.getBytesSinceReset());
+    process.process("STOP");
+    process.stop();
+  }
+  
+  /**
+   * Requests with the same JSON representation but different classes 
+   * get different responses from the cache.
+   */
+  @Test
+  public void testCache() {
+    Process4ObjectStream process = 
+            Process4ObjectStream.create(new File("."), null,
+            ("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoObjectStream 1")
+                    .split("\\s+",-1));
+    process.setResetEveryObjects(1);
+    ProcessCache cache = ProcessCache.create(process, 10);
+    assertEquals(Integer.valueOf(1), cache.process(1));
+    assertEquals(Long.valueOf(1), cache.process(1L));
+    assertEquals(Arrays.asList(1, 2), cache.process(Arrays.asList(1, 2)));
+    assertTrue(cache.process(new int[] {1, 2}) instanceof int[]);
+    assertEquals(4, cache.getMisses());
+    assertEquals(Long.valueOf(1), cache.process(1L));
+    assertEquals(1, cache.getHits());
+    // the stop request reaches the process
+    cache.process("STOP");
+    waitFor(() -> !process.isAlive());
+    cache.stop();
+  }
+  
+  private static void waitFor(java.util.function.BooleanSupplier condition) {
+    long end = System.currentTimeMillis() + 30000;
+    while(!condition.getAsBoolean()) {
+      assertTrue("Condition not met in time", System.currentTimeMillis() < end);
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
   
 }
@@ -18,13 +18,22 @@
  * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 package gate.lib.interaction.process.tests.integration;
+import gate.lib.interaction.process.ProcessTimeoutException;
 import gate.lib.interaction.process.pipes.Process4StringStream;
 import gate.lib.interaction.process.tests.Utils;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 import org.apache.commons.text.StringEscapeUtils;
 
@@ -63,6 +72,15 @@ public class TestProcess4StringStream {
     ret = (String)process.process(toSend);
     System.err.println("Got this: "+StringEscapeUtils.escapeJson(ret));
     assertEquals(toSend,ret);
+    
+    // test a batch
+    List<String> batch = Arrays.asList("line 1", "line 2", toSend);
+    List<Object> rets = process.processBatch(batch);
+    assertEquals(batch, rets);
+    assertEquals(3, process.getMetrics().getRequestCount());
+    assertEquals(5, process.getMetrics().getItemCount());
+    assertTrue(process.getMetrics().getBytesSent() > 0);
+    assertTrue(process.getMetrics().getBytesReceived() > 0);
     // stop process
     System.err.println("Sending the STOP command");
     process.process("STOP");
@@ -71,5 +89,220 @@ public class TestProcess4StringStream {
             
   }
   
+  /**
+   * A process which does not respond gets restarted after the timeout.
+   */
+  @Test
+  public void testTimeout() {
+    Process4StringStream process = 
+            Process4StringStream.create(new File("."), null,
+            ("java -cp "+Utils.getClassPath()+                    
+             " gate.lib.interaction.process.tests.integration.EchoStream")
+                    .split("\\s+",-1));
+    assertEquals("x", process.process("x", 10000));
+    long start = System.currentTimeMillis();
+    try {
+      process.process("HANG", 1000);
+      fail("Expected a timeout");
+    } catch (ProcessTimeoutException ex) {
+      // expected
+    }
+    assertTrue(System.currentTimeMillis()-start < 10000);
+    // the next request waits for the restarted process
+    assertEquals("y", process.process("y"));
+    process.setDefaultTimeout(1000);
+    try {
+      process.processBatch(Arrays.asList("a", "HANG"));
+      fail("Expected a timeout");
+    } catch (ProcessTimeoutException ex) {
+      // expected
+    }
+    assertEquals("z", process.process("z"));
+    // the process stops reading while the batch is still being written
+    char[] chars = new char[1000000];
+    Arrays.fill(chars, 'x');
+    start = System.currentTimeMillis();
+    try {
+      process.processBatch(Arrays.asList("HANG", new String(chars)));
+      fail("Expected a timeout");
+    } catch (ProcessTimeoutException ex) {
+      // expected
+    }
+    assertEquals("w", process.process("w"));
+    assertTrue(System.currentTimeMillis()-start < 10000);
+    process.process("STOP");
+    process.stop();
+  }
+  
+  /**
+   * Requests and responses which are much larger than the pipe buffers.
+   */
+  @Test
+  public void testLarge() {
+    Process4StringStream process =
+            Process4StringStream.create(new File("."), null,
+            ("java -Decho.quiet=true -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoStream")
+                    .split("\\s+",-1));
+    // the process writes the first responses before it has read the whole
+    // batch, so this would block if the batch was written before reading
+    char[] chars = new char[20000];
+    Arrays.fill(chars, 'x');
+    String item = new String(chars);
+    List<String> batch = new ArrayList<>();
+    for(int i=0; i<200; i++) {
+      batch.add(i+item);
+    }
+    assertEquals(batch, process.processBatch(batch));
+    process.setFullDuplex(true);
+    StringBuilder sb = new StringBuilder();
+    for(int i=0; i<250; i++) {
+      sb.append(item);
+    }
+    assertEquals(sb.toString(), process.process(sb.toString()));
+    assertEquals("x", process.process("x"));
+    process.process("STOP");
+    process.stop();
+  }
+
+  /**
+   * Documents sent and received in chunks.
+   * @throws IOException if reading fails
+   */
+  @Test
+  public void testChunked() throws IOException {
+    Process4StringStream process =
+            Process4StringStream.create(new File("."), null,
+            ("java -Decho.quiet=true -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoStream")
+                    .split("\\s+",-1));
+    // small chunks so that surrogate pairs get split
+    process.setChunkSize(3);
+    String doc = "Line 1\nLine 2\r\n\u0002 12\uD83D\uDCA934 \uD83D\uDCA9\uD83D\uDCA9\n";
+    StringWriter out = new StringWriter();
+    process.processStream(new StringReader(doc), out);
+    assertEquals(doc, out.toString());
+    // unpaired surrogates, also at the end of the document, cannot be
+    // encoded as UTF-8 and get replaced, without breaking the chunks
+    out = new StringWriter();
+    process.processStream(new StringReader("a\uD83Db\uDCA9c\uD83D"), out);
+    assertEquals("a?b?c?", out.toString());
+    assertEquals("x", process.process("x"));
+    assertEquals(Integer.valueOf(-1), process.processStream(new StringReader(""),
+            response -> response.read()));
+    // a large document which is generated while it is read, the response
+    // is only counted and the process echoes it while it is still sent
+    process.setChunkSize(65536);
+    final long size = 20L*1024*1024;
+    Reader large = new Reader() {
+      long sent = 0;
+      @Override
+      public int read(char[] cbuf, int off, int len) {
+        if(sent >= size) {
+          return -1;
+        }
+        int n = (int)Math.min(len, size-sent);
+        for(int i=0; i<n; i++) {
+          cbuf[off+i] = (sent+i) % 80 == 79 ? '\n' : (char)('a'+(sent+i)%26);
+        }
+        sent += n;
+        return n;
+      }
+      @Override
+      public void close() {
+      }
+    };
+    long count = process.processStream(large, response -> {
+      char[] buf = new char[8192];
+      long total = 0;
+      int n;
+      while((n = response.read(buf)) >= 0) {
+        total += n;
+      }
+      return total;
+    });
+    assertEquals(size, count);
+    // a response which is only read partially gets skipped
+    assertEquals(Character.valueOf('a'), process.processStream(new StringReader("abc\ndef"),
+            response -> (char)response.read()));
+    assertEquals("x", process.process("x"));
+    // also when the handler fails
+    try {
+      process.processStream(new StringReader("abc\ndef"), response -> {
+        response.read();
+        throw new IOException("handler failed");
+      });
+      fail("Expected an exception");
+    } catch (RuntimeException ex) {
+      assertEquals("handler failed", ex.getCause().getMessage());
+    }
+    assertEquals("y", process.process("y"));
+    process.process("STOP");
+    process.stop();
+  }
+
+  /**
+   * A standby process replaces the process after it ended.
+   * @throws InterruptedException if interrupted
+   */
+  @Test
+  public void testStandby() throws InterruptedException {
+    Process4StringStream process = 
+            Process4StringStream.create(new File("."), null,
+            ("java -cp "+Utils.getClassPath()+                    
+             " gate.lib.interaction.process.tests.integration.EchoStream")
+                    .split("\\s+",-1));
+    process.setStandbyCount(1);
+    waitFor(() -> process.getStandbyAvailable() == 1);
+    // end the current process
+    process.process("STOP");
+    waitFor(() -> !process.isAlive());
+    assertTrue(process.ensureProcess());
+    assertEquals(0, process.getStandbyAvailable());
+    assertEquals("x", process.process("x"));
+    // a new standby process gets started in the background
+    waitFor(() -> process.getStandbyAvailable() == 1);
+    process.process("STOP");
+    process.stop();
+    assertEquals(0, process.getStandbyAvailable());
+  }
+  
+  /**
+   * Standby and restarted processes which write a lot before they are ready get warmed up.
+   * @throws InterruptedException if interrupted
+   */
+  @Test
+  public void testWarmup() throws InterruptedException {
+    Process4StringStream process = 
+            Process4StringStream.create(new File("."), null,
+            ("java -Decho.quiet=true -cp "+Utils.getClassPath()+                    
+             " gate.lib.interaction.process.tests.integration.EchoStream")
+                    .split("\\s+",-1));
+    // much more output than fits into the pipe before the process is ready
+    process.setWarmup("CHATTY 50000\n", "^READY$", 30000);
+    process.setStandbyCount(1);
+    waitFor(() -> process.getStandbyAvailable() == 1);
+    process.process("STOP");
+    waitFor(() -> !process.isAlive());
+    assertTrue(process.ensureProcess());
+    assertEquals(0, process.getStandbyAvailable());
+    assertEquals("x", process.process("x"));
+    // a process started without a standby process gets warmed up as well
+    process.setStandbyCount(0);
+    process.process("STOP");
+    waitFor(() -> !process.isAlive());
+    assertTrue(process.ensureProcess());
+    assertEquals("y", process.process("y"));
+    process.process("STOP");
+    process.stop();
+  }
+  
+  private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+    long end = System.currentTimeMillis() + 30000;
+    while(!condition.getAsBoolean()) {
+      assertTrue("Condition not met in time", System.currentTimeMillis() < end);
+      Thread.sleep(20);
+    }
+  }
   
 }
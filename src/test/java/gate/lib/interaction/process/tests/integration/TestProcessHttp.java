@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.tests.integration;
+import com.sun.net.httpserver.HttpServer;
+import gate.lib.interaction.process.http.NdjsonStream;
+import gate.lib.interaction.process.http.ProcessHttp;
+import gate.lib.interaction.process.tests.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Test class.
+ * @author Johann Petrak
+ */
+public class TestProcessHttp {
+
+  /**
+   * Send requests to a server which is already running.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testAll() throws Exception {
+    HttpServer server = EchoHttpServer.start(0, 0);
+    try {
+      ProcessHttp http = new ProcessHttp()
+              .setPort(server.getAddress().getPort())
+              .setPath("/echo")
+              .start();
+      assertEquals("http://127.0.0.1:"+server.getAddress().getPort()+"/echo", http.getUri());
+      assertEquals("/echo||Some text ä", http.processString("Some text ä", null, null));
+      assertEquals("/echo/cmd|a=1|x",
+              http.processString("x", "cmd", Collections.singletonMap("a", "1")));
+      List<CompletableFuture<String>> results = new ArrayList<>();
+      for(int i=0; i<500; i++) {
+        results.add(http.processStringAsync("text"+i, null, null));
+      }
+      for(int i=0; i<500; i++) {
+        assertEquals("/echo||text"+i, results.get(i).get());
+      }
+      http.stop();
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Start the server process and wait until it is ready.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testReadiness() throws Exception {
+    // the server only starts listening after 500ms and reports to be ready after another 500ms
+    ProcessHttp http = new ProcessHttp()
+            .setPort(50000, 60000)
+            .setRunServerCmd("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoHttpServer ${port} 500 500")
+            .setReadiness(30000, "/health")
+            .addWarmupRequest("warm", null, null)
+            .start();
+    assertTrue(http.getTimeToReady() >= 1000);
+    assertTrue(http.getWarmupTime() >= 0);
+    assertEquals("/||x", http.processString("x", null, null));
+    http.stop();
+    // only check that the port accepts connections
+    http = new ProcessHttp()
+            .setPort(50000, 60000)
+            .setRunServerCmd("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoHttpServer ${port} 500")
+            .setReadiness(30000, null)
+            .start();
+    assertTrue(http.getTimeToReady() >= 500);
+    assertEquals("/||y", http.processString("y", null, null));
+    http.stop();
+    // a server which does not get ready in time
+    try {
+      new ProcessHttp()
+              .setPort(50000, 60000)
+              .setRunServerCmd("java -cp "+Utils.getClassPath()+
+               " gate.lib.interaction.process.tests.integration.EchoHttpServer ${port} 0 60000")
+              .setReadiness(1000, "/health")
+              .start();
+      fail("Expected an exception");
+    } catch (RuntimeException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("not ready within 1000ms"));
+    }
+  }
+
+  /**
+   * Run several server instances and kill one of them.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testInstances() throws Exception {
+    ProcessHttp http = new ProcessHttp()
+            .setPort(50000, 60000)
+            .setInstances(3)
+            .setRunServerCmd("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoHttpServer ${port}")
+            .setReadiness(30000, "/health")
+            .start();
+    List<Integer> ports = http.getPorts();
+    assertEquals(3, new HashSet<>(ports).size());
+    Set<String> used = new HashSet<>();
+    List<CompletableFuture<String>> results = new ArrayList<>();
+    for(int i=0; i<300; i++) {
+      results.add(http.processStringAsync("", "port", null));
+    }
+    for(CompletableFuture<String> result : results) {
+      used.add(result.get());
+    }
+    assertTrue(used.size() > 1);
+    // one instance dies, the request gets sent to another one
+    assertEquals("/||x", http.processString("x", null, null));
+    try {
+      http.processString("", "exit", null);
+    } catch (RuntimeException ex) {
+      // the instance did not send a response
+    }
+    for(int i=0; i<20; i++) {
+      assertEquals("/||x"+i, http.processString("x"+i, null, null));
+    }
+    long end = System.currentTimeMillis()+30000;
+    while(http.getRestarts() == 0) {
+      assertTrue("Instance not restarted in time", System.currentTimeMillis() < end);
+      Thread.sleep(20);
+    }
+    assertEquals(3, http.getPorts().size());
+    // the request which made the instance exit was not sent to another one
+    Thread.sleep(500);
+    assertEquals(1, http.getRestarts());
+    // each instance, including the restarted one, answers on its own port
+    Set<String> expected = new HashSet<>();
+    for(int p : http.getPorts()) {
+      expected.add(String.valueOf(p));
+    }
+    used.clear();
+    for(int i=0; i<300; i++) {
+      used.add(http.processString("", "port", null));
+    }
+    assertEquals(expected, used);
+    http.stop();
+  }
+
+  /**
+   * Stream NDJSON records to a server which is already running.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testStream() throws Exception {
+    HttpServer server = EchoHttpServer.start(0, 0);
+    try {
+      for(boolean compression : new boolean[]{false, true}) {
+        ProcessHttp http = new ProcessHttp()
+                .setPort(server.getAddress().getPort())
+                .setCompression(compression)
+                .start();
+        List<Map<String,Object>> batch = new ArrayList<>();
+        for(int i=0; i<1000; i++) {
+          Map<String,Object> m = new HashMap<>();
+          m.put("n", i);
+          m.put("text", "Some text ä "+i);
+          batch.add(m);
+        }
+        assertEquals(batch, http.processBatch(batch, "ndjson", null));
+        // records are generated and consumed one by one
+        final int n = 100000;
+        Iterator<Map<String,Object>> records = new Iterator<Map<String,Object>>() {
+          int i = 0;
+          @Override
+          public boolean hasNext() {
+            return i < n;
+          }
+          @Override
+          public Map<String,Object> next() {
+            return Collections.singletonMap("n", i++);
+          }
+        };
+        int count = 0;
+        try (NdjsonStream stream = http.processStream(records, "ndjson", null)) {
+          while(stream.hasNext()) {
+            assertEquals(count, stream.next().get("n"));
+            count++;
+          }
+        }
+        assertEquals(n, count);
+        http.stop();
+      }
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Streams are limited by the maximum number of connections.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testStreamConnections() throws Exception {
+    HttpServer server = EchoHttpServer.start(0, 0);
+    try {
+      ProcessHttp http = new ProcessHttp()
+              .setPort(server.getAddress().getPort())
+              .setMaxConnections(1)
+              .setTimeouts(500, 60000)
+              .start();
+      List<Map<String,Object>> batch = Collections.singletonList(Collections.singletonMap("n", 1));
+      NdjsonStream first = http.processStream(batch.iterator(), "ndjson", null);
+      try {
+        http.processStream(batch.iterator(), "ndjson", null);
+        fail("Expected no free connection");
+      } catch (RuntimeException ex) {
+        assertTrue(ex.getMessage().contains("No free connection"));
+      }
+      first.close();
+      assertEquals(batch, http.processBatch(batch, "ndjson", null));
+      http.stop();
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * An interim 100 Continue response is skipped.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testStreamContinue() throws Exception {
+    try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      Thread server = new Thread(() -> {
+        try (Socket socket = serverSocket.accept()) {
+          // read the whole request up to the last chunk
+          InputStream in = socket.getInputStream();
+          String end = "\r\n0\r\n\r\n";
+          StringBuilder seen = new StringBuilder();
+          int c;
+          while(!seen.toString().endsWith(end) && (c = in.read()) >= 0) {
+            seen.append((char)c);
+          }
+          String body = "{\"n\":1}\n";
+          OutputStream out = socket.getOutputStream();
+          out.write(("HTTP/1.1 100 Continue\r\n\r\n"+
+                  "HTTP/1.1 200 OK\r\nContent-Type: application/x-ndjson\r\n"+
+                  "Content-Length: "+body.length()+"\r\n\r\n"+body).getBytes(StandardCharsets.UTF_8));
+          out.flush();
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      });
+      server.start();
+      ProcessHttp http = new ProcessHttp()
+              .setPort(serverSocket.getLocalPort())
+              .start();
+      List<Map<String,Object>> batch = Collections.singletonList(Collections.singletonMap("n", 1));
+      assertEquals(batch, http.processBatch(batch, "ndjson", null));
+      server.join();
+      http.stop();
+    }
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.tests.integration;
+import gate.lib.interaction.process.ProcessBase;
+import gate.lib.interaction.process.ProcessPool;
+import gate.lib.interaction.process.metrics.ProcessMetrics;
+import gate.lib.interaction.process.pipes.Process4JsonStream;
+import gate.lib.interaction.process.pipes.Process4StringStream;
+import gate.lib.interaction.process.tests.Utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+/**
+ * Test class.
+ * @author Johann Petrak
+ */
+public class TestProcessPool {
+
+  /**
+   * Send requests from several threads to a pool of echo processes.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testAll() throws Exception {
+    ProcessPool pool =
+            ProcessPool.create(3, Process4JsonStream::create, new File("."), null,
+            ("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoStream")
+                    .split("\\s+",-1));
+    assertEquals(3, pool.size());
+    assertTrue(pool.isAlive());
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Object>> results = new ArrayList<>();
+    for(int i=0; i<100; i++) {
+      final Map<Object,Object> m = new HashMap<>();
+      m.put("n", i);
+      results.add(executor.submit(() -> pool.process(m)));
+    }
+    for(int i=0; i<100; i++) {
+      @SuppressWarnings("unchecked")
+      Map<Object,Object> ret = (Map<Object,Object>)results.get(i).get();
+      assertEquals(i, ret.get("n"));
+    }
+    executor.shutdown();
+    // the metrics of the pool are those of all workers
+    assertEquals(100, pool.getMetrics().getRequestCount());
+    assertEquals(100, pool.getMetrics().getHistogram(ProcessMetrics.Phase.TOTAL).getCount());
+    long sent = 0;
+    for(ProcessBase worker : pool.getWorkers()) {
+      sent += worker.getMetrics().getBytesSent();
+    }
+    assertEquals(sent, pool.getMetrics().getBytesSent());
+    pool.getMetrics().reset();
+    assertEquals(0, pool.getWorkers().get(0).getMetrics().getRequestCount());
+    pool.stop();
+    assertFalse(pool.isAlive());
+  }
+
+  /**
+   * Send many requests in the background without our own executor.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testAsync() throws Exception {
+    ProcessPool pool =
+            ProcessPool.create(2, Process4StringStream::create, new File("."), null,
+            ("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoStream")
+                    .split("\\s+",-1));
+    List<CompletableFuture<Object>> results = new ArrayList<>();
+    for(int i=0; i<200; i++) {
+      results.add(pool.processAsync("line"+i));
+    }
+    for(int i=0; i<200; i++) {
+      assertEquals("line"+i, results.get(i).get());
+    }
+    pool.stop();
+  }
+
+
+}
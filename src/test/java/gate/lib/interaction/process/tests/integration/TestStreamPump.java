@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2018-2019 The University of Sheffield.
+ *
+ * This file is part of gatelib-interaction
+ * (see https://github.com/GateNLP/gatelib-interaction).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.lib.interaction.process.tests.integration;
+import gate.lib.interaction.process.StreamPump;
+import gate.lib.interaction.process.pipes.Process4StringStream;
+import gate.lib.interaction.process.tests.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+
+/**
+ * Test class.
+ * @author Johann Petrak
+ */
+public class TestStreamPump {
+
+  /**
+   * Check that the recent output of a process is kept.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testRecentOutput() throws Exception {
+    Process4StringStream process =
+            Process4StringStream.create(new File("."), null,
+            ("java -cp "+Utils.getClassPath()+
+             " gate.lib.interaction.process.tests.integration.EchoStream")
+                    .split("\\s+",-1));
+    assertEquals("hello", process.process("hello"));
+    waitFor(() -> process.getRecentOutput().contains("ES: got a line >hello<"));
+    process.process("STOP");
+    process.stop();
+    waitFor(() -> process.getRecentOutput().contains("Terminating echo"));
+  }
+
+  /**
+   * Copy and log the standard error of an echo process which ends right away.
+   * @throws Exception if anything goes wrong
+   */
+  @Test
+  public void testCopyAndLog() throws Exception {
+    List<String> command = Arrays.asList("java", "-cp", Utils.getClassPath(),
+            "gate.lib.interaction.process.tests.integration.EchoStream");
+    StreamPump pump = new StreamPump("TestStreamPump");
+    pump.setRecentLines(2);
+    // copy
+    Process p = new ProcessBuilder(command).start();
+    p.getOutputStream().close();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StreamPump.Source source = pump.add(p.getErrorStream(), out, p);
+    assertTrue(source.awaitFinished(30000));
+    String expected = "ES: before reading\nReceived a null line, terminating\nTerminating echo\n";
+    assertEquals(expected, out.toString("UTF-8").replace("\r", ""));
+    assertTrue(source.getBytesCopied() >= expected.length());
+    assertEquals(Arrays.asList("Received a null line, terminating", "Terminating echo"),
+            source.getRecentLines());
+    // log, with only one line per second
+    pump.setMaxLogLinesPerSecond(1);
+    p = new ProcessBuilder(command).start();
+    p.getOutputStream().close();
+    source = pump.add(p.getErrorStream(), NOPLogger.NOP_LOGGER, p);
+    assertTrue(source.awaitFinished(30000));
+    assertTrue(source.getLinesSuppressed() >= 1);
+    assertEquals(2, source.getRecentLines().size());
+    waitFor(() -> pump.size() == 0);
+  }
+
+  private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+    long end = System.currentTimeMillis() + 30000;
+    while(!condition.getAsBoolean()) {
+      assertTrue("Condition not met in time", System.currentTimeMillis() < end);
+      Thread.sleep(20);
+    }
+  }
+
+}